@@ -31,7 +31,9 @@ import android.widget.Toast;
 public class ImageDetailActivity extends FragmentActivity implements OnClickListener{
 
 	public static final String EXTRA_IMAGE="extra_image";
+	// Shared with ImageGridFragment, each keeps its own size of an image in the entry
 	private static final String IMAGE_CACHE_DIR="images";
+	private static final int IMAGE_CACHE_VARIANTS=2;
 	private static final int OFF_SCREEN_PAGE_LIMIT=2;
 	
 	private ImageFetcher mImageFetcher;
@@ -59,6 +61,7 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
 		// will use more memory and require a large memory cache.Ȩͼڴռ
 		final int longest=(screenWidth>screenHeight?screenWidth:screenHeight)/2;
 		ImageCache.ImageCacheParams cacheParams=new ImageCache.ImageCacheParams(this, IMAGE_CACHE_DIR);
+		cacheParams.diskCacheVariants=IMAGE_CACHE_VARIANTS;
 		cacheParams.setMemCacheSizePercent(0.25f);
 		
 		//The ImageFetcher takes care of loading images into ImageView children asynchronously
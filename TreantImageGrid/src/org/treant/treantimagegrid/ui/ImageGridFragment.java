@@ -3,6 +3,7 @@ package org.treant.treantimagegrid.ui;
 import org.treant.treantimagegrid.BuildConfig;
 import org.treant.treantimagegrid.ImagesURL;
 import org.treant.treantimagegrid.R;
+import org.treant.treantimagegrid.util.ImageCache;
 import org.treant.treantimagegrid.util.ImageCache.ImageCacheParams;
 import org.treant.treantimagegrid.util.ImageFetcher;
 import org.treant.treantimagegrid.util.Utils;
@@ -46,7 +47,11 @@ import android.widget.Toast;
 public class ImageGridFragment extends Fragment implements AdapterView.OnItemClickListener {
 
 	private static final String TAG="ImageGridActivity";
-	private static final String IMAGE_CACHE_DIR="thumbs";
+	// Shared with ImageDetailActivity, each keeps its own size of an image in the entry
+	private static final String IMAGE_CACHE_DIR="images";
+	private static final int IMAGE_CACHE_VARIANTS=2;
+	// Where the thumbnails were kept before they moved into IMAGE_CACHE_DIR
+	private static final String OBSOLETE_IMAGE_CACHE_DIR="thumbs";
 	
 	private int mImageThumbSize;
 	private int mImageThumbSpacing;
@@ -71,6 +76,8 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
 		mAdapter=new ImageAdapter(getActivity());
 		
 		ImageCacheParams cacheParams=new ImageCacheParams(getActivity(), IMAGE_CACHE_DIR);
+		cacheParams.diskCacheVariants=IMAGE_CACHE_VARIANTS;
+		cacheParams.obsoleteDiskCacheDir=ImageCache.getDiskCacheDir(getActivity(), OBSOLETE_IMAGE_CACHE_DIR);
 		
 		cacheParams.setMemCacheSizePercent(0.25f);
 	
@@ -0,0 +1,45 @@
+package org.treant.treantimagegrid.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of direct buffers of one size. Direct buffers are expensive to
+ * allocate and are only freed by the garbage collector, so copies through a
+ * channel borrow one from here instead of allocating their own.
+ */
+final class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /** Guarded by this. */
+    private final List<ByteBuffer> pooled = new ArrayList<ByteBuffer>();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns a cleared buffer. Hand it back with {@link #release} when done.
+     */
+    ByteBuffer acquire() {
+        synchronized (this) {
+            if (!pooled.isEmpty()) {
+                return pooled.remove(pooled.size() - 1);
+            }
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Returns {@code buffer} to the pool, unless the pool is full already.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (pooled.size() < maxPooled) {
+            buffer.clear();
+            pooled.add(buffer);
+        }
+    }
+}
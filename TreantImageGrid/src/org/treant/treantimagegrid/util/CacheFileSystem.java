@@ -0,0 +1,87 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The file operations a {@link DiskLruCache} needs, so that a cache can live
+ * somewhere other than the device's storage. Caches use {@link #DISK} unless
+ * {@link DiskLruCache.Options#fileSystem} names another implementation, such
+ * as {@link InMemoryFileSystem}.
+ *
+ * <p>Files are named by {@code File} objects, whether or not an implementation
+ * keeps them on disk. Like a POSIX file system, an implementation must keep
+ * serving streams that were opened before their file was deleted or replaced
+ * by a rename; snapshots rely on that.
+ *
+ * <p>Values that are stored on disk can also be read and written through
+ * channels, see {@link DiskLruCache.Snapshot#getChannel}; that only works
+ * with the {@code FileInputStream} and {@code FileOutputStream} that
+ * {@link #DISK} hands out.
+ */
+public interface CacheFileSystem {
+    /** The device's file system. */
+    CacheFileSystem DISK = new DiskFileSystem();
+
+    /** Opens {@code file} for reading. */
+    InputStream open(File file) throws FileNotFoundException;
+
+    /** Creates {@code file}, or empties it if it exists, and opens it for writing. */
+    OutputStream create(File file) throws FileNotFoundException;
+
+    /** Opens {@code file} for writing at its end, creating it if needed. */
+    OutputStream append(File file) throws FileNotFoundException;
+
+    /**
+     * Renames {@code from} to {@code to}, replacing {@code to} if it exists.
+     * Returns false if that failed.
+     */
+    boolean rename(File from, File to);
+
+    /**
+     * Deletes {@code file}, or the empty directory {@code file}. Returns
+     * false if it doesn't exist or couldn't be deleted.
+     */
+    boolean delete(File file);
+
+    /** Returns true if {@code file} exists. */
+    boolean exists(File file);
+
+    /**
+     * Cuts {@code file} off after its first {@code length} bytes. A file that
+     * is no longer than that is left alone.
+     */
+    void truncate(File file, long length) throws IOException;
+
+    /**
+     * Cuts the file that {@code out}, a stream opened by this file system
+     * that is still open, writes to off after its first {@code length} bytes.
+     * Unlike {@link #truncate(File, long)} this reaches the file even after it
+     * was replaced by a rename.
+     */
+    void truncate(OutputStream out, long length) throws IOException;
+
+    /**
+     * Forces the contents of {@code file} to the storage device, like
+     * {@code FileChannel.force} does.
+     */
+    void sync(File file) throws IOException;
+
+    /**
+     * Forces what was written to {@code out}, a stream opened by this file
+     * system that is still open, to the storage device.
+     */
+    void sync(OutputStream out) throws IOException;
+
+    /** Returns the size of {@code file} in bytes, or 0 if it doesn't exist. */
+    long size(File file);
+
+    /** Returns the files in {@code directory}, or null if it isn't a directory. */
+    File[] list(File directory);
+
+    /** Creates {@code directory} and its parents, if they don't exist yet. */
+    void mkdirs(File directory) throws IOException;
+}
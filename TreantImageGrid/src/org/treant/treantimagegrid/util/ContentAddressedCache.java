@@ -0,0 +1,462 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A {@link DiskLruCache} that stores identical payloads once, however many
+ * keys they are stored under. Payloads are downloads and such, whose content
+ * isn't known until they have been written, so a value is first written
+ * under its own key and then moved to a content entry named by the MD5 of
+ * its bytes. The key's entry is left behind as a link to it.
+ *
+ * <p>Every entry has two values. A content entry holds the payload and the
+ * number of links to it; a link holds nothing and the key of its content
+ * entry; a key whose payload hasn't been moved yet holds the payload and
+ * nothing. {@link #get} follows links, so callers always read the payload
+ * from value {@link #PAYLOAD}.
+ *
+ * <p>Reading a key touches both its link and its content entry, so a payload
+ * stays as recent as its most recent key. A content entry is removed as soon
+ * as its last link is evicted or removed: removals carry the content key the
+ * link held, see {@link DiskLruCache.Options#removalValueIndex}, so this works
+ * for links written before the cache was opened too. One whose links are lost
+ * in some other way is evicted like any entry that isn't read anymore.
+ * Reference counts may therefore be too high, but never too low: they are
+ * raised before a link is written. A link whose content entry was evicted is
+ * removed when it is read, which makes it a miss. In a cache shared by
+ * several processes, see {@link DiskLruCache.Options#multiProcess}, each
+ * process lowers the counts for the links it removes itself.
+ *
+ * <p>With a {@link DiskLruCache.Options#ioScheduler}, payloads are moved as
+ * writes of that scheduler, after commit() has returned.
+ */
+public final class ContentAddressedCache implements Closeable {
+    /** The index of the payload in the snapshots returned by this cache. */
+    public static final int PAYLOAD = 0;
+    /** A content entry's reference count, a link's content key, or empty. */
+    private static final int REFERENCE = 1;
+    private static final int VALUE_COUNT = 2;
+
+    private final DiskLruCache cache;
+    private final boolean deduplicate;
+    /** Moves payloads behind reads, or null to move them in commit(). */
+    private final IoScheduler scheduler;
+    /**
+     * Held while a reference count is read and written, which only takes the
+     * small REFERENCE values; payloads are hashed and copied without it.
+     */
+    private final Object referenceLock = new Object();
+
+    private ContentAddressedCache(DiskLruCache cache, boolean deduplicate,
+            IoScheduler scheduler) {
+        this.cache = cache;
+        this.deduplicate = deduplicate;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. The eviction listener of {@code options} is replaced by one that
+     * keeps the reference counts and then calls it, and its removal value
+     * index is set.
+     *
+     * @param deduplicate whether to move payloads to content entries. Without
+     *     it every key keeps its own payload, as in a plain cache.
+     */
+    public static ContentAddressedCache open(File directory, int appVersion, long maxSize,
+            DiskLruCache.Options options, boolean deduplicate) throws IOException {
+        final DiskLruCache.EvictionListener downstream = options.evictionListener;
+        final ContentAddressedCache[] opened = new ContentAddressedCache[1];
+        options.evictionListener = new DiskLruCache.EvictionListener() {
+            @Override public void onRemoved(List<DiskLruCache.Removal> removals) {
+                ContentAddressedCache cache;
+                synchronized (opened) {
+                    cache = opened[0];
+                }
+                if (cache != null) {
+                    cache.releaseLinks(removals);
+                }
+                if (downstream != null) {
+                    downstream.onRemoved(removals);
+                }
+            }
+        };
+        options.removalValueIndex = REFERENCE;
+        DiskLruCache cache = DiskLruCache.open(directory, appVersion, VALUE_COUNT, maxSize,
+                options);
+        ContentAddressedCache result = new ContentAddressedCache(cache, deduplicate,
+                options.ioScheduler);
+        synchronized (opened) {
+            opened[0] = result;
+        }
+        return result;
+    }
+
+    /** Returns the cache that holds the entries. */
+    public DiskLruCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns a snapshot whose value {@link #PAYLOAD} is the payload stored
+     * under {@code key}, or null if there is none.
+     */
+    public DiskLruCache.Snapshot get(String key) throws IOException {
+        return resolve(key, cache.get(key));
+    }
+
+    /**
+     * Returns an editor for the payload of {@code key}, or null if another
+     * edit of it is in progress. The caller writes value {@link #PAYLOAD} and
+     * ends the edit with {@link #commit}, or with the editor's own abort()
+     * or suspend().
+     */
+    public DiskLruCache.Editor edit(String key) throws IOException {
+        return cache.edit(key);
+    }
+
+    /**
+     * Commits {@code editor}, an editor of {@code key} returned by
+     * {@link #edit}, and moves the payload to its content entry.
+     */
+    public void commit(final String key, DiskLruCache.Editor editor) throws IOException {
+        editor.set(REFERENCE, "");
+        editor.commit();
+        if (!deduplicate) {
+            return;
+        }
+        if (scheduler == null) {
+            deduplicate(key);
+            return;
+        }
+        scheduler.submitWrite(this, key, new Runnable() {
+            @Override public void run() {
+                try {
+                    if (!cache.isClosed()) {
+                        deduplicate(key);
+                    }
+                } catch (IOException e) {
+                    // the payload stays where it is, readable under its own key
+                } catch (IllegalStateException e) {
+                    // closed meanwhile
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the edit of {@code key} in progress to end, and returns a
+     * snapshot of its payload as {@link #get} does.
+     */
+    public DiskLruCache.Snapshot awaitEdit(String key) throws IOException,
+            InterruptedException {
+        DiskLruCache.Snapshot snapshot;
+        try {
+            snapshot = cache.awaitEdit(key).get();
+        } catch (ExecutionException e) {
+            throw new AssertionError(e); // the future never fails
+        }
+        return resolve(key, snapshot);
+    }
+
+    /**
+     * Returns a snapshot of the payload that {@code snapshot}, a snapshot of
+     * {@code key}, holds or links to.
+     */
+    private DiskLruCache.Snapshot resolve(String key, DiskLruCache.Snapshot snapshot)
+            throws IOException {
+        if (snapshot == null || snapshot.getLength(REFERENCE) == 0) {
+            return snapshot;
+        }
+        String contentKey;
+        try {
+            contentKey = snapshot.getString(REFERENCE);
+        } finally {
+            snapshot.close();
+        }
+        DiskLruCache.Snapshot content = cache.get(contentKey);
+        if (content == null) {
+            // the payload was evicted; a miss, so that it is stored again
+            cache.remove(key);
+        }
+        return content;
+    }
+
+    /**
+     * Moves the payload of {@code key} to the content entry for its bytes,
+     * creating that entry if it doesn't exist yet, and turns {@code key}
+     * into a link to it. Leaves the payload in place if any of the entries
+     * is being edited.
+     */
+    private void deduplicate(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            return;
+        }
+        String contentKey;
+        try {
+            if (snapshot.getLength(REFERENCE) != 0) {
+                return; // already a link
+            }
+            contentKey = contentKey(snapshot.getInputStream(PAYLOAD));
+        } finally {
+            snapshot.close();
+        }
+
+        if (!addReference(contentKey) && !copyPayload(key, contentKey)) {
+            return;
+        }
+
+        DiskLruCache.Editor link = cache.edit(key);
+        if (link == null) {
+            return; // the reference count is one too high, which is harmless
+        }
+        boolean committed = false;
+        try {
+            link.set(PAYLOAD, "");
+            link.set(REFERENCE, contentKey);
+            link.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                abortQuietly(link);
+            }
+        }
+    }
+
+    /**
+     * Raises the reference count of the content entry {@code contentKey}.
+     * Returns false if there is no such entry or it couldn't be edited.
+     */
+    private boolean addReference(String contentKey) throws IOException {
+        synchronized (referenceLock) {
+            DiskLruCache.Snapshot content = cache.get(contentKey);
+            if (content == null) {
+                return false;
+            }
+            DiskLruCache.Editor editor = null;
+            boolean committed = false;
+            try {
+                long references;
+                try {
+                    // null if the entry was evicted meanwhile, rather than an editor of a new one
+                    editor = content.edit();
+                    references = parseReferences(content.getString(REFERENCE));
+                } finally {
+                    content.close();
+                }
+                if (editor == null) {
+                    return false;
+                }
+                editor.set(REFERENCE, Long.toString(references + 1));
+                editor.commit();
+                committed = true;
+                return true;
+            } finally {
+                if (editor != null && !committed) {
+                    abortQuietly(editor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the content entry {@code contentKey} with a copy of the payload
+     * of {@code key} and one reference. Returns false if it couldn't.
+     */
+    private boolean copyPayload(String key, String contentKey) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(contentKey);
+        if (editor == null) {
+            return false;
+        }
+        boolean committed = false;
+        try {
+            DiskLruCache.Snapshot snapshot = cache.get(key);
+            if (snapshot == null) {
+                return false;
+            }
+            try {
+                editor.transferFrom(PAYLOAD,
+                        Channels.newChannel(snapshot.getInputStream(PAYLOAD)));
+            } finally {
+                snapshot.close();
+            }
+            editor.set(REFERENCE, "1");
+            editor.commit();
+            committed = true;
+            return true;
+        } finally {
+            if (!committed) {
+                abortQuietly(editor);
+            }
+        }
+    }
+
+    /**
+     * Lowers the reference counts of the content entries that the removed
+     * links pointed to, and removes those that are no longer referenced.
+     */
+    private void releaseLinks(List<DiskLruCache.Removal> removals) {
+        for (DiskLruCache.Removal removal : removals) {
+            if (removal.cause == DiskLruCache.RemovalCause.CLEARED) {
+                return; // the content entries go too
+            }
+            if (removal.cause == DiskLruCache.RemovalCause.REMOTE) {
+                continue; // up to the process that removed the link
+            }
+            String contentKey = removal.value;
+            if (!isContentKey(contentKey) || cache.isClosed()) {
+                continue; // not a link
+            }
+            try {
+                release(contentKey);
+            } catch (IOException e) {
+                // the content entry is evicted in time
+            } catch (IllegalStateException e) {
+                return; // closed meanwhile
+            }
+        }
+    }
+
+    private void release(String contentKey) throws IOException {
+        synchronized (referenceLock) {
+            DiskLruCache.Snapshot content = cache.get(contentKey);
+            if (content == null) {
+                return;
+            }
+            DiskLruCache.Editor editor = null;
+            boolean completed = false;
+            try {
+                long references;
+                try {
+                    editor = content.edit();
+                    references = parseReferences(content.getString(REFERENCE)) - 1;
+                } finally {
+                    content.close();
+                }
+                if (editor == null) {
+                    return;
+                }
+                if (references > 0) {
+                    editor.set(REFERENCE, Long.toString(references));
+                    editor.commit();
+                    completed = true;
+                } else {
+                    editor.abort();
+                    completed = true;
+                    cache.remove(contentKey);
+                }
+            } finally {
+                if (editor != null && !completed) {
+                    abortQuietly(editor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends an edit that failed before it was committed, so that it doesn't
+     * keep its key from being edited until the cache is closed. A commit that
+     * failed after it had ended the edit leaves nothing to abort.
+     */
+    private static void abortQuietly(DiskLruCache.Editor editor) {
+        try {
+            editor.abort();
+        } catch (IOException e) {
+            // the edit has ended either way
+        } catch (IllegalStateException e) {
+            // ended already
+        }
+    }
+
+    /**
+     * Returns true if {@code value}, the REFERENCE value of a removed entry,
+     * is a content key, which makes the entry a link. That of a content entry
+     * is its reference count, and that of a payload not yet moved is empty.
+     */
+    private static boolean isContentKey(String value) {
+        if (value == null || value.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseReferences(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 1; // not a content entry; never drop it to zero
+        }
+    }
+
+    /** Returns the MD5 of the bytes of {@code in} as 32 hex digits, closing it. */
+    private static String contentKey(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] md5 = digest.digest();
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (md5[i] & 0xff);
+            low = (low << 8) | (md5[i + 8] & 0xff);
+        }
+        return EntryIndex.hexKey(high, low);
+    }
+
+    /** Returns true if this cache has been closed. */
+    public boolean isClosed() {
+        return cache.isClosed();
+    }
+
+    /** Forces buffered operations to the filesystem, see {@link DiskLruCache#flush}. */
+    public void flush() throws IOException {
+        cache.flush();
+    }
+
+    /** Removes every payload and link, see {@link DiskLruCache#evictAll}. */
+    public void evictAll() throws IOException {
+        cache.evictAll();
+    }
+
+    /** Closes this cache. Stored values will remain on the filesystem. */
+    @Override public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.cancelWrites(this);
+        }
+        cache.close();
+    }
+
+    /** Closes the cache and deletes all of its stored values. */
+    public void delete() throws IOException {
+        if (scheduler != null) {
+            scheduler.cancelWrites(this);
+        }
+        cache.delete();
+    }
+}
@@ -0,0 +1,90 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * The device's file system, see {@link CacheFileSystem#DISK}.
+ */
+final class DiskFileSystem implements CacheFileSystem {
+    @Override public InputStream open(File file) throws FileNotFoundException {
+        return new FileInputStream(file);
+    }
+
+    @Override public OutputStream create(File file) throws FileNotFoundException {
+        return new FileOutputStream(file);
+    }
+
+    @Override public OutputStream append(File file) throws FileNotFoundException {
+        return new FileOutputStream(file, true);
+    }
+
+    @Override public boolean rename(File from, File to) {
+        return from.renameTo(to);
+    }
+
+    @Override public boolean delete(File file) {
+        return file.delete();
+    }
+
+    @Override public boolean exists(File file) {
+        return file.exists();
+    }
+
+    @Override public void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() > length) {
+                raf.setLength(length);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override public void truncate(OutputStream out, long length) throws IOException {
+        if (!(out instanceof FileOutputStream)) {
+            throw new IOException("not a file stream: " + out);
+        }
+        FileChannel channel = ((FileOutputStream) out).getChannel();
+        if (channel.size() > length) {
+            channel.truncate(length);
+        }
+    }
+
+    @Override public void sync(File file) throws IOException {
+        // a read-only descriptor can be synced too, and this can't create the file
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override public void sync(OutputStream out) throws IOException {
+        out.flush();
+        if (out instanceof FileOutputStream) {
+            ((FileOutputStream) out).getChannel().force(false);
+        }
+    }
+
+    @Override public long size(File file) {
+        return file.length();
+    }
+
+    @Override public File[] list(File directory) {
+        return directory.listFiles();
+    }
+
+    @Override public void mkdirs(File directory) {
+        directory.mkdirs();
+    }
+}
@@ -16,15 +16,14 @@
 
 package org.treant.treantimagegrid.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,17 +34,37 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
 
 /**
  ******************************************************************************
@@ -63,7 +82,8 @@ import java.util.concurrent.TimeUnit;
  * <p>The cache stores its data in a directory on the filesystem. This
  * directory must be exclusive to the cache; the cache may delete or overwrite
  * files from its directory. It is an error for multiple processes to use the
- * same cache directory at the same time.
+ * same cache directory at the same time, unless all of them open it with
+ * {@link Options#multiProcess}.
  *
  * <p>This cache limits the number of bytes that it will store on the
  * filesystem. When the number of stored bytes exceeds the limit, the cache will
@@ -89,7 +109,43 @@ import java.util.concurrent.TimeUnit;
  *
  * <p>Clients call {@link #get} to read a snapshot of an entry. The read will
  * observe the value at the time that {@link #get} was called. Updates and
- * removals after the call do not impact ongoing reads.
+ * removals after the call do not impact ongoing reads. While an entry is
+ * being edited, reads keep getting its committed values; a caller that
+ * couldn't start an edit can wait for the one in progress with
+ * {@link #awaitEdit}.
+ *
+ * <p>Which entry is evicted first is up to the cache's {@link EvictionPolicy}.
+ * The policy is chosen when the cache is opened and recorded in the journal,
+ * so later opens that don't name a policy keep using it. An
+ * {@link EvictionListener} set in the options hears about every entry
+ * that is evicted, removed, expires or is deleted with the cache.
+ *
+ * <p>An edit can put its entry in groups with {@link Editor#setTags}, such as
+ * the album or the user an image belongs to. The tags are journaled with the
+ * entry and indexed in memory, so {@link #removeGroup} drops a whole group
+ * without touching any other entry.
+ *
+ * <p>Values of up to {@link Options#packedValueMaxSize} bytes can be packed
+ * into shared segment files instead of each getting a file of their own, see
+ * {@link PackStore}. Editors buffer such values in memory, so committing one
+ * creates, renames and deletes no files at all.
+ *
+ * <p>With {@link Options#directoryFanOut}, value files are spread over 16 or
+ * 256 subdirectories by the first digits of their key, which keeps each
+ * directory small. The layout is recorded in the journal; opening a cache
+ * with a different fan-out moves its files into the new layout.
+ *
+ * <p>An entry may be given an expiry time with {@link Editor#setExpiresAt}, or
+ * by default with {@link Options#defaultTimeToLiveMillis}. Once it has passed
+ * the entry is a miss, and the background thread removes it a few entries
+ * at a time. Expired entries are also the first to go when the cache is
+ * over its maximum size.
+ *
+ * <p>With {@link Options#multiProcess}, several processes can share one
+ * cache directory, such as an app and its sync service. They take turns
+ * with the journal through file locks, and each one reads what the others
+ * appended before every operation, so that an entry committed by one
+ * process is a hit in all of them.
  *
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
@@ -100,9 +156,17 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String CHECKPOINT_FILE = "journal.ckpt";
+    static final String CHECKPOINT_FILE_TMP = "journal.ckpt.tmp";
+    static final String JOURNAL_FILE_OLD = "journal.old";
+    static final String LOCK_FILE = "journal.lock";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
+    static final String META_EVICTION_POLICY = "eviction-policy";
+    static final String META_FAN_OUT = "fan-out";
+    static final String META_WRITER = "writer";
+    static final String META_GENERATION = "generation";
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
@@ -110,10 +174,40 @@ public final class DiskLruCache implements Closeable {
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    /** Direct buffers for Editor.transferFrom, shared by all caches. */
+    private static final BufferPool DIRECT_BUFFERS = new BufferPool(64 * 1024, 4);
+
+    /** Journal records appended before a new checkpoint is written. */
+    private static final int CHECKPOINT_INTERVAL = 1000;
+    /** Journal records applied per lock acquisition while replaying the tail. */
+    private static final int REPLAY_BATCH_SIZE = 256;
+    /**
+     * With sampled reads, unjournaled reads per entry after which a recency
+     * snapshot (a checkpoint) is written. A checkpoint costs about as much as
+     * one READ record per entry, so this keeps snapshots an order of magnitude
+     * smaller than the READ records they replace.
+     */
+    private static final int RECENCY_SNAPSHOT_READS_PER_ENTRY = 16;
+    /** Journals smaller than this are never compacted. */
+    private static final long COMPACT_MIN_BYTES = 32 * 1024;
+    /** Compact once the journal is this many times the size of a compacted one. */
+    private static final int COMPACT_GROWTH_FACTOR = 2;
+    /** Expired entries removed per lock acquisition by the sweeper. */
+    private static final int SWEEP_BATCH_SIZE = 32;
+    /** Entries evicted per lock acquisition by the background thread. */
+    private static final int TRIM_BATCH_SIZE = 64;
+    /** How often a caller waiting for an edit of another process checks on it. */
+    private static final long SHARED_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /** Journal bytes appended before a shared compaction that had to wait is tried again. */
+    private static final long SHARED_COMPACTION_RETRY_BYTES = 8 * 1024;
+    /** The longest value a removal carries, see Options.removalValueIndex. */
+    private static final long MAX_REMOVAL_VALUE_LENGTH = 256;
 
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
+     * This cache uses a journal file named "journal". The journal is written
+     * in the compact binary format described in DiskLruJournal; the records it
+     * holds are the same as those of the original text journal, which looks
+     * like this:
      *     libcore.io.DiskLruCache
      *     1
      *     100
@@ -149,19 +243,172 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Compaction is triggered by size: once the journal is COMPACT_GROWTH_FACTOR
+     * times larger than a compacted journal for the live entries would be. The
+     * cache lock is only held to encode the index into memory; the new journal
+     * is written without it, and the journal appender swaps it in after
+     * appending the records that arrived in the meantime.
+     *
+     * A text journal left behind by an earlier version is still read when the
+     * cache is opened, and is immediately rewritten in the binary format.
+     *
+     * Every CHECKPOINT_INTERVAL records the complete index is also written to
+     * "journal.ckpt", together with the journal length it corresponds to. When
+     * a checkpoint exists, open() loads it and returns; the journal past the
+     * checkpoint is replayed on the background thread while the cache already
+     * serves reads and edits. Keys touched by callers during that replay are
+     * remembered in liveKeys, and their older journal records are skipped.
+     * Entries created in the journal tail are misses until the replay reaches
+     * them. Rebuilding the journal invalidates the checkpoint.
+     *
+     * With Options.readSampleRate other than 1 most READ records are never
+     * written. Access order is still tracked exactly in memory and reaches
+     * disk through checkpoints (and rebuilt journals), which store entries in
+     * LRU order. A checkpoint is forced once enough unjournaled reads have
+     * accumulated, and on close(). After a crash, order is exact up to the
+     * last checkpoint and approximated by the sampled READs after it.
+     *
+     * With Options.keepPartialValues an edit of a new entry journals its
+     * progress in PARTIAL records: the bytes written to each dirty file and
+     * their CRC32. A DIRTY entry with such a record is not deleted when the
+     * cache is opened but kept in partials, outside of lruEntries, until an
+     * edit of its key takes it over or it is evicted.
+     *
+     * An entry that expires has an EXPIRE record right behind its CLEAN or
+     * PACKED record; the two are journaled as a batch. Expiry times are kept
+     * in the expiries queue, soonest first. The queue is not updated when an
+     * entry is edited or removed, so the sweeper checks each expiry it takes
+     * from the queue against the entry before removing it.
+     *
+     * Group tags are journaled the same way, as TAG records in the batch of
+     * the CLEAN or PACKED record, one per tag. Every clean record of an entry
+     * repeats its tags, so they survive compaction and checkpoints. The groups
+     * map indexes the keys by tag; it is kept in step with Entry.tags.
+     *
+     * With Options.multiProcess the processes that have the cache open share
+     * the journal, and "journal.lock" holds their file locks, see
+     * ProcessLock. A process holds the journal lock from before it reads the
+     * records the others appended since its last turn, the journal tail, until
+     * it has written its own. Each turn that appends starts with a META
+     * "writer" record naming its process, so that a DIRTY record tells which
+     * process is editing the entry; the edit is ended by whoever next wants
+     * the entry once that process is gone. In a shared journal a PARTIAL
+     * record always ends the edit, as written by suspend(); progress is not
+     * journaled.
+     *
+     * Compaction happens under the journal lock, and only once every process
+     * reads the current generation of the journal. The current journal is
+     * renamed to "journal.old" and the compacted one, which starts with a
+     * META "generation" record, takes its place. The other processes read
+     * "journal.old" to its end on their next turn and then continue in the new
+     * journal after its compacted records. Checkpoints aren't written.
      */
 
     private final File directory;
+    private final CacheFileSystem fileSystem;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File journalFileOld;
+    private final File checkpointFile;
+    private final File checkpointFileTmp;
     private final int appVersion;
-    private final long maxSize;
+    private long maxSize;
     private final int valueCount;
     private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
-    private int redundantOpCount;
+    private final Options options;
+    /** Appends journal records off the cache lock; null once the cache is closed. */
+    private JournalAppender journalWriter;
+    /** The entries in LRU order, which {@link LruEvictionPolicy} evicts in. */
+    private final EntryIndex<Entry> lruEntries = new EntryIndex<Entry>();
+    /** Values of interrupted edits that may be resumed, oldest first. */
+    private final LinkedHashMap<String, Partial> partials = new LinkedHashMap<String, Partial>();
+    /** The number of bytes held by partials. */
+    private long partialSize;
+    /** Expiry times of entries, soonest first; may hold outdated ones. */
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>();
+    /** True while the sweeper is waiting for or running on the background thread. */
+    private boolean sweepScheduled;
+    /** True while a trim is waiting for the background thread. */
+    private boolean trimScheduled;
+    /** When Options.sizePolicy is asked for the maximum size next, or 0 if it isn't set. */
+    private long nextSizeCheck;
+    /** True while a size check is waiting for or running on the background thread. */
+    private boolean sizeCheckScheduled;
+    /**
+     * True if a commit that takes the cache over its maximum size asks the
+     * size policy before the interval is up; false once an answer left no
+     * room above the size it was asked for, which means the cache is full.
+     */
+    private boolean sizeCheckWhenFull = true;
+    /** The keys of the readable entries by group tag. */
+    private final Map<String, Set<String>> groups = new HashMap<String, Set<String>>();
+    private EvictionPolicy policy;
+    private final PackStore pack;
+    /** The eviction policy named by the journal, or null if it names none. */
+    private String journaledPolicy;
+    /**
+     * Files committed since the journal was last synced, for a BATCHED
+     * cache. Guarded by itself rather than the cache lock, as the journal
+     * thread takes them while callers wait for it with the cache lock held.
+     */
+    private final List<File> unsyncedFiles = new ArrayList<File>();
+    /** The fan-out of the value files according to the journal, 0 if flat. */
+    private int journaledFanOut;
+    /** The subdirectories of the value files by bucket, or null if they aren't fanned out. */
+    private final File[] fanOutDirectories;
+    /** True from the compaction snapshot until the appender has swapped journals. */
+    private boolean compacting;
+    /**
+     * True if records were dropped from the shared journal after a failed
+     * write, so that it has to be compacted from the index. Set on the
+     * appender thread while a turn with the journal waits for the write.
+     */
+    private boolean journalIncomplete;
+    /** Size of one entry in the last compacted journal, used to estimate the next one. */
+    private long compactedBytesPerEntry;
+    private int compactionCount;
+    private long lastCompactionPauseNanos;
+    private long totalCompactionPauseNanos;
+    private int recordsSinceCheckpoint;
+    /** Reads whose READ record was skipped by sampling since the last checkpoint. */
+    private int unjournaledReads;
+    /** State of the xorshift generator that picks which reads to journal. */
+    private int readSampleSeed = 0x2545f491;
+    /** The journal offset the checkpoint loaded by open() was taken at. */
+    private long checkpointOffset;
+
+    /** Records of the batch operation in progress, appended together by endBatch(); or null. */
+    private JournalAppender.Batch journalBatch;
+    /** True if a cleanup was asked for while a batch was in progress. */
+    private boolean cleanupDeferred;
+    /** True while a cleanup is waiting for Options.ioScheduler to be idle. */
+    private boolean cleanupIdleScheduled;
+
+    /** The locks shared with the other processes, or null unless Options.multiProcess. */
+    private ProcessLock processLock;
+    /** How many lockShared() calls haven't been matched by unlockShared() yet. */
+    private int sharedLockDepth;
+    /** The journal generation this process reads, see ProcessLock. */
+    private long sharedGeneration;
+    /** How far this process has read the shared journal. */
+    private long journalOffset;
+    /** The journal length before which a compaction that had to wait isn't tried again. */
+    private long sharedCompactionRetryOffset;
+    /** True once this turn with the journal has appended its writer record. */
+    private boolean writerJournaled;
+    /** The process that wrote the journal records being read, or null if unknown. */
+    private String tailWriter;
+
+    /** Keys edited or removed while the journal tail is replayed, or null when not replaying. */
+    private Set<String> liveKeys;
+
+    /**
+     * Guards the checkpoint file. Incrementing journalGeneration while holding
+     * it invalidates checkpoint snapshots taken from the previous journal.
+     */
+    private final Object checkpointLock = new Object();
+    private volatile int journalGeneration;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
@@ -247,20 +494,86 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Releases the memory mapping of 'buffer' right away rather than when it is
+     * garbage collected. There is no public API for this, so it tries the
+     * hidden one of each platform and leaves the mapping to the garbage
+     * collector if none is available.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Android
+            Method free = buffer.getClass().getMethod("free");
+            free.setAccessible(true);
+            free.invoke(buffer);
+            return;
+        } catch (Exception ignored) {
+        }
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception ignored) {
+        }
+        try {
+            // Java 8 and earlier
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * Writes all of 'src' to 'out', through its channel if it is a file.
+     */
+    private static void writeFully(OutputStream out, ByteBuffer src) throws IOException {
+        if (out instanceof FileOutputStream) {
+            FileChannel channel = ((FileOutputStream) out).getChannel();
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } else if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        } else {
+            byte[] buffer = new byte[Math.min(src.remaining(), IO_BUFFER_SIZE)];
+            while (src.hasRemaining()) {
+                int count = Math.min(src.remaining(), buffer.length);
+                src.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
     /**
      * Recursively delete everything in {@code dir}.
      */
     // TODO: this should specify paths as Strings rather than as Files
     public static void deleteContents(File dir) throws IOException {
-        File[] files = dir.listFiles();
+        deleteContents(CacheFileSystem.DISK, dir);
+    }
+
+    /**
+     * Recursively delete everything in {@code dir} on {@code fileSystem}.
+     */
+    static void deleteContents(CacheFileSystem fileSystem, File dir) throws IOException {
+        File[] files = fileSystem.list(dir);
         if (files == null) {
             throw new IllegalArgumentException("not a directory: " + dir);
         }
         for (File file : files) {
-            if (file.isDirectory()) {
-                deleteContents(file);
+            if (fileSystem.list(file) != null) {
+                deleteContents(fileSystem, file);
             }
-            if (!file.delete()) {
+            if (!fileSystem.delete(file)) {
                 throw new IOException("failed to delete file: " + file);
             }
         }
@@ -271,355 +584,2863 @@ public final class DiskLruCache implements Closeable {
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            Checkpoint checkpoint = null;
+            DiskLruJournal.Buffer compaction = null;
+            int entryCount = 0;
+            JournalAppender appender;
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+                lockShared();
+                try {
+                    if (trimToSize(TRIM_BATCH_SIZE)) {
+                        submitTrim();
+                    }
+                    if (journalRebuildRequired() && processLock != null) {
+                        compactShared();
+                    } else if (journalRebuildRequired()) {
+                        long start = System.nanoTime();
+                        compaction = encodeIndex();
+                        entryCount = lruEntries.size();
+                        journalWriter.beginCompaction();
+                        compacting = true;
+                        // the compacted journal serves as a checkpoint
+                        recordsSinceCheckpoint = 0;
+                        unjournaledReads = 0;
+                        lastCompactionPauseNanos = System.nanoTime() - start;
+                        totalCompactionPauseNanos += lastCompactionPauseNanos;
+                    } else if (checkpointRequired()) {
+                        checkpoint = snapshotCheckpoint();
+                    }
+                } finally {
+                    unlockShared();
                 }
+                appender = journalWriter;
+            }
+            if (compaction != null) {
+                compactJournal(appender, compaction, entryCount);
+            }
+            if (checkpoint != null) {
+                writeCheckpoint(appender, checkpoint);
+            }
+            int segment;
+            synchronized (DiskLruCache.this) {
+                segment = liveKeys == null && journalWriter != null ? pack.startCompaction() : 0;
+            }
+            if (segment != 0) {
+                compactPackSegment(appender, segment);
             }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
-        this.directory = directory;
-        this.appVersion = appVersion;
-        this.journalFile = new File(directory, JOURNAL_FILE);
-        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
-        this.valueCount = valueCount;
-        this.maxSize = maxSize;
-    }
-
     /**
-     * Opens the cache in {@code directory}, creating a cache if none exists
-     * there.
-     *
-     * @param directory a writable directory
-     * @param appVersion
-     * @param valueCount the number of values per cache entry. Must be positive.
-     * @param maxSize the maximum number of bytes this cache should use to store
-     * @throws IOException if reading or writing the cache directory fails
+     * Removes a batch of expired entries, and queues itself again behind
+     * whatever else is waiting for the background thread if more are left.
      */
-    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
-            throws IOException {
-        if (maxSize <= 0) {
-            throw new IllegalArgumentException("maxSize <= 0");
-        }
-        if (valueCount <= 0) {
-            throw new IllegalArgumentException("valueCount <= 0");
-        }
-
-        // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
-            try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
-                return cache;
-            } catch (IOException journalIsCorrupt) {
-//                System.logW("DiskLruCache " + directory + " is corrupt: "
-//                        + journalIsCorrupt.getMessage() + ", removing");
-                cache.delete();
+    private final Callable<Void> sweepCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                sweepScheduled = false;
+                if (journalWriter == null || liveKeys != null) {
+                    return null; // closed, or the replay sweeps once it is done
+                }
+                boolean more;
+                lockShared();
+                try {
+                    beginBatch();
+                    try {
+                        more = removeExpired(System.currentTimeMillis(), SWEEP_BATCH_SIZE);
+                    } finally {
+                        endBatch();
+                    }
+                } finally {
+                    unlockShared();
+                }
+                if (more) {
+                    submitSweep();
+                }
             }
+            return null;
         }
+    };
 
-        // create a new empty cache
-        directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        cache.rebuildJournal();
-        return cache;
-    }
-
-    private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
-        try {
-            String magic = readAsciiLine(in);
-            String version = readAsciiLine(in);
-            String appVersionString = readAsciiLine(in);
-            String valueCountString = readAsciiLine(in);
-            String blank = readAsciiLine(in);
-            if (!MAGIC.equals(magic)
-                    || !VERSION_1.equals(version)
-                    || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
-                    || !"".equals(blank)) {
-                throw new IOException("unexpected journal header: ["
-                        + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
-            }
-
-            while (true) {
+    /**
+     * Evicts a batch of entries, and queues itself again behind whatever else
+     * is waiting for the background thread if the cache is still too large.
+     * A cache that shrinks a lot at once is trimmed like this, so that reads
+     * and edits get the lock in between.
+     */
+    private final Callable<Void> trimCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                trimScheduled = false;
+                if (journalWriter == null) {
+                    return null; // closed
+                }
+                boolean more;
+                lockShared();
                 try {
-                    readJournalLine(readAsciiLine(in));
-                } catch (EOFException endOfJournal) {
-                    break;
+                    beginBatch();
+                    try {
+                        more = trimToSize(TRIM_BATCH_SIZE);
+                    } finally {
+                        endBatch();
+                    }
+                } finally {
+                    unlockShared();
+                }
+                if (more) {
+                    submitTrim();
                 }
             }
-        } finally {
-            closeQuietly(in);
-        }
-    }
-
-    private void readJournalLine(String line) throws IOException {
-        String[] parts = line.split(" ");
-        if (parts.length < 2) {
-            throw new IOException("unexpected journal line: " + line);
+            return null;
         }
+    };
 
-        String key = parts[1];
-        if (parts[0].equals(REMOVE) && parts.length == 2) {
-            lruEntries.remove(key);
-            return;
+    /** Asks Options.sizePolicy for the maximum size, off the cache lock. */
+    private final Callable<Void> sizeCheckCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            long currentSize;
+            synchronized (DiskLruCache.this) {
+                if (journalWriter == null) {
+                    sizeCheckScheduled = false;
+                    return null; // closed
+                }
+                currentSize = size;
+            }
+            long newMaxSize = options.sizePolicy.maxSize(directory, currentSize);
+            synchronized (DiskLruCache.this) {
+                sizeCheckScheduled = false;
+                if (journalWriter != null && newMaxSize > 0) {
+                    sizeCheckWhenFull = newMaxSize > currentSize;
+                    setMaxSize(newMaxSize);
+                }
+            }
+            return null;
         }
+    };
 
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
+    /** Starts the cleanup once Options.ioScheduler is idle. */
+    private final Runnable idleCleanup = new Runnable() {
+        @Override public void run() {
+            synchronized (DiskLruCache.this) {
+                cleanupIdleScheduled = false;
+                if (journalWriter != null) {
+                    executorService.submit(cleanupCallable);
+                }
+            }
         }
+    };
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
-            entry.readable = true;
-            entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
-        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
-            entry.currentEditor = new Editor(entry);
-        } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
-        } else {
-            throw new IOException("unexpected journal line: " + line);
+    /** Starts the sweeper once Options.ioScheduler is idle. */
+    private final Runnable idleSweep = new Runnable() {
+        @Override public void run() {
+            synchronized (DiskLruCache.this) {
+                if (journalWriter != null) {
+                    executorService.submit(sweepCallable);
+                } else {
+                    sweepScheduled = false;
+                }
+            }
         }
-    }
+    };
 
     /**
-     * Computes the initial size and collects garbage as a part of opening the
-     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * Delivers removals to the eviction listener. A thread of its own, so
+     * that a slow listener doesn't hold up eviction and journal compaction.
      */
-    private void processJournal() throws IOException {
-        deleteIfExists(journalFileTmp);
-        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-            Entry entry = i.next();
-            if (entry.currentEditor == null) {
-                for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
-                }
-            } else {
-                entry.currentEditor = null;
-                for (int t = 0; t < valueCount; t++) {
-                    deleteIfExists(entry.getCleanFile(t));
-                    deleteIfExists(entry.getDirtyFile(t));
-                }
-                i.remove();
+    private final ExecutorService listenerExecutor = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    /** Removals not yet handed to the listener, or null if none are waiting. */
+    private List<Removal> pendingRemovals;
+    private final Callable<Void> deliverRemovalsCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            List<Removal> removals;
+            synchronized (DiskLruCache.this) {
+                removals = pendingRemovals;
+                pendingRemovals = null;
             }
+            options.evictionListener.onRemoved(Collections.unmodifiableList(removals));
+            return null;
         }
-    }
+    };
 
     /**
-     * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
+     * How hard a cache works to keep committed entries across a crash of the
+     * device, see {@link Options#durability}. Renames are not synced to
+     * their directory, which Java has no way to do.
      */
-    private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
-        }
-
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+    public enum Durability {
+        /**
+         * Never sync. A crash of the device may lose any recent commit, and
+         * leave journal records whose values are missing or incomplete; such
+         * entries are dropped as they are found. The fastest by far.
+         */
+        NONE,
 
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            }
-        }
+        /**
+         * Sync the values committed recently and then the journal every
+         * {@link Options#syncIntervalMillis}, on the journal thread. Commits
+         * don't wait; a crash loses at most the commits of one interval.
+         * Costs a handful of syncs per interval, whatever the commit rate.
+         */
+        BATCHED,
 
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        /**
+         * Sync an entry's values and the journal before commit() returns.
+         * A commit that returned survives a crash. Commits made at the same
+         * time share the journal sync, but a thread can't commit faster
+         * than two syncs of the device take; packed values need one.
+         */
+        PER_COMMIT
     }
 
-    private static void deleteIfExists(File file) throws IOException {
-//        try {
-//            Libcore.os.remove(file.getPath());
-//        } catch (ErrnoException errnoException) {
-//            if (errnoException.errno != OsConstants.ENOENT) {
-//                throw errnoException.rethrowAsIOException();
-//            }
-//        }
-        if (file.exists() && !file.delete()) {
-            throw new IOException();
-        }
+    /** Why an entry left the cache, see {@link EvictionListener}. */
+    public enum RemovalCause {
+        /** Evicted to keep the cache within its maximum size. */
+        CAPACITY,
+        /**
+         * Removed by {@link DiskLruCache#remove} or {@link DiskLruCache#removeGroup},
+         * or dropped after a failed commit.
+         */
+        EXPLICIT,
+        /** Removed because it expired. */
+        EXPIRED,
+        /**
+         * Deleted together with the rest of the cache by {@link DiskLruCache#delete}
+         * or {@link DiskLruCache#evictAll}.
+         */
+        CLEARED,
+        /** Removed by another process that shares the cache, see {@link Options#multiProcess}. */
+        REMOTE
     }
 
-    /**
-     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
-     * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
-     */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
-
-        if (!entry.readable) {
-            return null;
-        }
-
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
+    /** An entry that left the cache. */
+    public static final class Removal {
+        public final String key;
+        /** The number of bytes its values took. */
+        public final long size;
+        public final RemovalCause cause;
+        /**
+         * The value at {@link Options#removalValueIndex}, or null if there is
+         * none or it couldn't be read.
          */
-        InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
-            }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
-        }
+        public final String value;
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        Removal(String key, long size, RemovalCause cause, String value) {
+            this.key = key;
+            this.size = size;
+            this.cause = cause;
+            this.value = value;
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        @Override public String toString() {
+            return cause + " " + key + " " + size;
+        }
     }
 
     /**
-     * Returns an editor for the entry named {@code key}, or null if another
-     * edit is in progress.
+     * Learns about the entries that leave a cache, see
+     * {@link Options#evictionListener}. Removals are collected under the
+     * cache lock and delivered in batches on a thread of their own, in the
+     * order they happened, so a listener may take its time and may call into
+     * the cache. A listener shared by several caches, such as the segments of
+     * a {@link ShardedDiskLruCache}, is called from several threads.
      */
-    public Editor edit(String key) throws IOException {
-        return edit(key, ANY_SEQUENCE_NUMBER);
+    public interface EvictionListener {
+        void onRemoved(List<Removal> removals);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
-        }
-
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+    /** Picks the maximum size of a cache, see {@link Options#sizePolicy}. */
+    public interface SizePolicy {
+        /**
+         * Returns the maximum number of bytes for the cache in
+         * {@code directory}, which currently holds {@code size} bytes.
+         */
+        long maxSize(File directory, long size);
+    }
+
+    /**
+     * Tunables of a cache. The defaults give the behavior of
+     * {@link #open(File, int, int, long)}.
+     */
+    public static final class Options implements Cloneable {
+        /**
+         * Flush the journal once this many records are waiting. Zero leaves
+         * it to the interval, to {@link DiskLruCache#flush} and to the
+         * appender's own queue limit.
+         */
+        public int journalFlushRecords = 0;
+
+        /**
+         * Flush the journal once its oldest waiting record is this many
+         * milliseconds old. Zero disables flushing on an interval.
+         */
+        public long journalFlushIntervalMillis = 0;
+
+        /**
+         * Journal one in this many reads. 1 journals every read and keeps
+         * exact LRU order across a crash. Larger values, or 0 for no READ
+         * records at all, trade some of that precision for far fewer journal
+         * writes and journal rebuilds; recency is then persisted through
+         * periodic snapshots of the LRU order instead.
+         */
+        public int readSampleRate = 1;
+
+        /**
+         * The eviction policy, one of the names in {@link EvictionPolicy}.
+         * Null keeps the policy the cache was created with, which is
+         * {@link EvictionPolicy#LRU} for a new cache.
+         */
+        public String evictionPolicy = null;
+
+        /**
+         * Values of at most this many bytes are appended to shared pack
+         * segments instead of being stored in a file each. Zero, the
+         * default, packs nothing. Values that are already packed stay
+         * readable either way.
+         */
+        public int packedValueMaxSize = 0;
+
+        /** Pack segments are closed once they reach this many bytes. */
+        public int packSegmentSize = 4 * 1024 * 1024;
+
+        /**
+         * A closed pack segment is compacted once less than this fraction of
+         * its bytes belong to values that are still in the cache.
+         */
+        public float packMinLiveRatio = 0.5f;
+
+        /**
+         * Keep what was written to a new entry whose edit was interrupted, by
+         * a crash or by {@link Editor#suspend}, so that a later edit can
+         * continue it with {@link Editor#resume}. The progress of such edits
+         * is journaled together with a CRC32 of the bytes written, which
+         * resume() verifies. Partial values count towards the maximum size
+         * and are evicted first. Ignored when values are packed.
+         */
+        public boolean keepPartialValues = false;
+
+        /**
+         * With keepPartialValues, journal the progress of an edit whenever
+         * this many more bytes have been written.
+         */
+        public int partialCheckpointBytes = 64 * 1024;
+
+        /**
+         * Entries whose edit doesn't call {@link Editor#setExpiresAt} expire
+         * this many milliseconds after they are committed. Zero, the
+         * default, keeps them until they are evicted.
+         */
+        public long defaultTimeToLiveMillis = 0;
+
+        /**
+         * Where the cache keeps its files. {@link InMemoryFileSystem} runs a
+         * cache without storage, for benchmarks and tests.
+         */
+        public CacheFileSystem fileSystem = CacheFileSystem.DISK;
+
+        /**
+         * Spread the value files over this many subdirectories, 16 or 256,
+         * by the first one or two hex digits of their key; other keys are
+         * spread by their hash. Zero, the default, keeps all files in the
+         * cache directory. Caches written with another fan-out have their
+         * files moved when they are opened.
+         */
+        public int directoryFanOut = 0;
+
+        /** When committed entries are synced to the device. */
+        public Durability durability = Durability.NONE;
+
+        /** How often a {@link Durability#BATCHED} cache syncs. */
+        public long syncIntervalMillis = 1000;
+
+        /** Told about every entry that is evicted or removed; may be null. */
+        public EvictionListener evictionListener = null;
+
+        /**
+         * The index of a value that the removals handed to the
+         * {@link #evictionListener} carry in {@link Removal#value}, or -1 for
+         * none. It is read as the entry is removed, so it should be a small
+         * value such as the key of another entry; longer ones are left out.
+         * Entries removed by another process don't carry it.
+         */
+        public int removalValueIndex = -1;
+
+        /**
+         * Picks the maximum size while the cache runs, instead of keeping
+         * the one it was opened with; see {@link FreeSpaceSizePolicy}. It is
+         * asked when the cache is opened and then, on the background thread,
+         * after a commit once {@link #sizeCheckIntervalMillis} have passed.
+         * A commit that takes the cache over its maximum size asks it right
+         * away, before anything is evicted, unless its last answer left no
+         * room above the size of the cache at the time. A {@link ShardedDiskLruCache} asks it for
+         * the size of the whole cache.
+         */
+        public SizePolicy sizePolicy = null;
+
+        /** How often the size policy is asked for the maximum size. */
+        public long sizeCheckIntervalMillis = 60 * 1000;
+
+        /**
+         * Holds journal compaction, checkpoints, pack compaction and expiry
+         * sweeps back until this scheduler is idle, so that they don't
+         * compete with reads; may be null. Trims that keep the cache within
+         * its maximum size still start right away.
+         */
+        public IoScheduler ioScheduler = null;
+
+        /**
+         * Lets other processes open the same directory at the same time,
+         * each of them with this option set too. They share the entries and
+         * the journal, at the cost of a file lock and a flush of the journal
+         * for every operation. Requires {@link CacheFileSystem#DISK} and no
+         * packed values; checkpoints are not written. A process may open a
+         * directory only once at a time, and at most 32 processes may have it
+         * open.
+         */
+        public boolean multiProcess = false;
+
+        /** Returns a copy of these options, for a cache that changes some of them. */
+        Options copy() {
+            try {
+                return (Options) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) {
+        this.directory = directory;
+        this.options = options;
+        this.fileSystem = options.fileSystem != null ? options.fileSystem : CacheFileSystem.DISK;
+        this.appVersion = appVersion;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.journalFileOld = new File(directory, JOURNAL_FILE_OLD);
+        this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+        this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TMP);
+        this.valueCount = valueCount;
+        this.maxSize = maxSize;
+        this.policy = newPolicy(options.evictionPolicy != null
+                ? options.evictionPolicy : EvictionPolicy.LRU);
+        this.pack = new PackStore(fileSystem, directory, options.packSegmentSize,
+                options.packMinLiveRatio, durable());
+        this.fanOutDirectories = newFanOutDirectories(options.directoryFanOut);
+    }
+
+    /** Returns the subdirectories of a fan-out of {@code count}, or null for 0. */
+    private File[] newFanOutDirectories(int count) {
+        if (count == 0) {
+            return null;
+        }
+        File[] result = new File[count];
+        for (int i = 0; i < count; i++) {
+            String name = Integer.toHexString(i);
+            if (count > 16 && i < 16) {
+                name = "0" + name;
+            }
+            result[i] = new File(directory, name);
+        }
+        return result;
+    }
+
+    private int fanOutDirectoryCount() {
+        return fanOutDirectories != null ? fanOutDirectories.length : 0;
+    }
+
+    /**
+     * Moves the value files of a cache that was written with another fan-out,
+     * journaledFanOut, into this cache's layout, and then deletes the old
+     * subdirectories if they are empty. Runs after a full replay, before the
+     * journal is rewritten; if that doesn't happen the next open moves
+     * whatever is still left.
+     */
+    private void moveValueFiles() throws IOException {
+        File[] from = journaledFanOut == 16 || journaledFanOut == 256
+                ? newFanOutDirectories(journaledFanOut) : null;
+        for (EntryIndex<Entry>.Cursor c = lruEntries.cursor(); c.hasNext(); ) {
+            Entry entry = c.next();
+            String key = c.key();
+            for (int i = 0; i < valueCount; i++) {
+                if (entry.locations == null || entry.locations[i] == 0) {
+                    moveFile(entry.getCleanFile(from, key, i), entry.getCleanFile(key, i));
+                }
+            }
+        }
+        for (String key : partials.keySet()) {
+            Entry entry = new Entry();
+            for (int i = 0; i < valueCount; i++) {
+                moveFile(entry.getDirtyFile(from, key, i), entry.getDirtyFile(key, i));
+            }
+        }
+        if (from != null) {
+            for (File dir : from) {
+                fileSystem.delete(dir);
+            }
+        }
+    }
+
+    private void moveFile(File from, File to) throws IOException {
+        if (from.equals(to) || !fileSystem.exists(from) || fileSystem.rename(from, to)) {
+            return;
+        }
+        fileSystem.mkdirs(to.getParentFile());
+        if (!fileSystem.rename(from, to)) {
+            throw new IOException("failed to move " + from + " to " + to);
+        }
+    }
+
+    /**
+     * Creates or appends to the dirty file {@code file}, creating its
+     * fan-out subdirectory if that is missing.
+     */
+    private OutputStream openDirtyFile(File file, boolean append) throws IOException {
+        try {
+            return append ? fileSystem.append(file) : fileSystem.create(file);
+        } catch (FileNotFoundException e) {
+            if (fanOutDirectories == null) {
+                throw e;
+            }
+            fileSystem.mkdirs(file.getParentFile());
+            return append ? fileSystem.append(file) : fileSystem.create(file);
+        }
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
+            throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new Options());
+    }
+
+    /**
+     * Opens the cache in {@code directory} with the given {@code options},
+     * creating a cache if none exists there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param options tunables of the cache
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("valueCount <= 0");
+        }
+        if (options.directoryFanOut != 0 && options.directoryFanOut != 16
+                && options.directoryFanOut != 256) {
+            throw new IllegalArgumentException("directoryFanOut must be 0, 16 or 256");
+        }
+        if (options.removalValueIndex < -1 || options.removalValueIndex >= valueCount) {
+            throw new IllegalArgumentException("removalValueIndex out of range");
+        }
+        if (options.multiProcess) {
+            return openShared(directory, appVersion, valueCount, maxSize, options);
+        }
+
+        // prefer to pick up where we left off
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+        if (cache.fileSystem.exists(cache.journalFile)) {
+            try {
+                if (cache.readCheckpoint()) {
+                    cache.applySizePolicy();
+                    long length = cache.fileSystem.size(cache.journalFile);
+                    cache.openJournalWriter(length);
+                    cache.journalPolicy();
+                    cache.executorService.submit(cache.new ReplayCallable(
+                            cache.checkpointOffset, length));
+                    return cache;
+                }
+                boolean rewriteJournal = cache.readJournal();
+                cache.processJournal();
+                cache.applySizePolicy();
+                if (cache.journaledFanOut != cache.fanOutDirectoryCount()) {
+                    cache.moveValueFiles();
+                    rewriteJournal = true;
+                }
+                if (rewriteJournal) {
+                    cache.rebuildJournal();
+                } else {
+                    cache.openJournalWriter(cache.fileSystem.size(cache.journalFile));
+                    cache.journalPolicy();
+                }
+                synchronized (cache) {
+                    if (cache.expiredEntriesPending(System.currentTimeMillis())) {
+                        cache.submitSweep();
+                    }
+                }
+                return cache;
+            } catch (IOException journalIsCorrupt) {
+//                System.logW("DiskLruCache " + directory + " is corrupt: "
+//                        + journalIsCorrupt.getMessage() + ", removing");
+                cache.delete();
+            }
+        }
+
+        // create a new empty cache
+        cache.fileSystem.mkdirs(directory);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+        cache.applySizePolicy();
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    /**
+     * Opens a cache with Options.multiProcess. The journal is read with the
+     * journal lock held, and deleted for being corrupt only if no other
+     * process has the cache open.
+     */
+    private static DiskLruCache openShared(File directory, int appVersion, int valueCount,
+            long maxSize, Options options) throws IOException {
+        if (options.fileSystem != null && options.fileSystem != CacheFileSystem.DISK) {
+            throw new IllegalArgumentException("multiProcess requires CacheFileSystem.DISK");
+        }
+        if (options.packedValueMaxSize > 0) {
+            throw new IllegalArgumentException("multiProcess doesn't support packed values");
+        }
+        CacheFileSystem.DISK.mkdirs(directory);
+        ProcessLock processLock = ProcessLock.open(new File(directory, LOCK_FILE));
+        DiskLruCache cache = null;
+        boolean opened = false;
+        try {
+            processLock.lock();
+            long generation = processLock.generation();
+            processLock.claimSlot(generation);
+            cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+            cache.joinShared(processLock, generation);
+            try {
+                cache.readSharedJournal();
+            } catch (IOException journalIsCorrupt) {
+                if (cache.journalWriter != null || !processLock.isAlone()) {
+                    throw journalIsCorrupt; // the other processes still use it
+                }
+                for (File file : CacheFileSystem.DISK.list(directory)) {
+                    if (!file.getName().equals(LOCK_FILE)) {
+                        if (CacheFileSystem.DISK.list(file) != null) {
+                            deleteContents(file);
+                        }
+                        CacheFileSystem.DISK.delete(file);
+                    }
+                }
+                cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+                cache.joinShared(processLock, generation);
+                cache.applySizePolicy();
+                cache.rebuildJournal();
+            }
+            synchronized (cache) {
+                cache.unlockShared();
+            }
+            opened = true;
+            return cache;
+        } finally {
+            if (!opened) {
+                if (cache != null) {
+                    closeQuietly(cache.journalWriter);
+                }
+                closeQuietly(processLock);
+            }
+        }
+    }
+
+    /**
+     * Makes this cache use {@code processLock}, whose journal lock the
+     * caller holds, to read journal generation {@code generation}.
+     */
+    private void joinShared(ProcessLock processLock, long generation) {
+        this.processLock = processLock;
+        this.sharedGeneration = generation;
+        this.sharedLockDepth = 1;
+    }
+
+    /**
+     * Reads the shared journal and opens it for appending, with the journal
+     * lock held. A journal that has to be rewritten, for being in the text
+     * format or for another fan-out, is only rewritten if no other process
+     * has the cache open; otherwise this fails.
+     */
+    private void readSharedJournal() throws IOException {
+        recoverSharedJournal();
+        deleteIfExists(checkpointFile); // the other processes have moved past it
+        if (!fileSystem.exists(journalFile)) {
+            applySizePolicy();
+            rebuildJournal();
+            return;
+        }
+        byte[] journal = DiskLruJournal.readFile(fileSystem, journalFile);
+        boolean rewriteJournal = !DiskLruJournal.isBinary(journal);
+        if (rewriteJournal) {
+            readTextJournal(new ByteArrayInputStream(journal));
+        } else {
+            DiskLruJournal.Reader reader = new DiskLruJournal.Reader(journal, valueCount);
+            reader.readHeader(appVersion, valueCount);
+            tailWriter = null;
+            while (reader.next()) {
+                applySharedRecord(reader, false);
+            }
+            journalOffset = reader.position();
+            if (reader.truncated) {
+                // a process died in the middle of an append
+                fileSystem.truncate(journalFile, journalOffset);
+            }
+        }
+        processJournal();
+        applySizePolicy();
+        if (journaledFanOut != fanOutDirectoryCount()) {
+            rewriteJournal = true;
+        }
+        if (rewriteJournal && !processLock.isAlone()) {
+            throw new IOException("journal can't be rewritten while other processes use it");
+        }
+        if (journaledFanOut != fanOutDirectoryCount()) {
+            moveValueFiles();
+        }
+        openJournalWriter(fileSystem.size(journalFile));
+        if (rewriteJournal) {
+            compactShared();
+        } else {
+            journalPolicy();
+        }
+        endDeadEdits();
+        if (expiredEntriesPending(System.currentTimeMillis())) {
+            submitSweep();
+        }
+    }
+
+    /**
+     * Takes the maximum size from Options.sizePolicy, if there is one, while
+     * the cache is opened.
+     */
+    private synchronized void applySizePolicy() {
+        if (options.sizePolicy == null) {
+            return;
+        }
+        long newMaxSize = options.sizePolicy.maxSize(directory, size);
+        if (newMaxSize > 0) {
+            maxSize = newMaxSize;
+            policy.setMaxSize(newMaxSize);
+        }
+        nextSizeCheck = System.currentTimeMillis() + options.sizeCheckIntervalMillis;
+    }
+
+    /**
+     * Loads the index from the checkpoint file. Returns false, leaving the
+     * index empty, if there is no usable checkpoint; the journal must then be
+     * replayed in full. On success the journal past the checkpoint still has
+     * to be replayed, see {@link ReplayCallable}.
+     */
+    private boolean readCheckpoint() {
+        if (!fileSystem.exists(checkpointFile)) {
+            return false;
+        }
+        try {
+            long length = fileSystem.size(journalFile);
+            DiskLruJournal.Reader journalHeader = new DiskLruJournal.Reader(DiskLruJournal.readFile(
+                    fileSystem, journalFile, 0, Math.min(length, 32)), valueCount);
+            journalHeader.readHeader(appVersion, valueCount);
+
+            DiskLruJournal.Reader reader = new DiskLruJournal.Reader(
+                    DiskLruJournal.readFile(fileSystem, checkpointFile), valueCount);
+            reader.readHeader(appVersion, valueCount);
+            long offset = reader.readOffset();
+            if (offset > length) {
+                throw new IOException("checkpoint is ahead of the journal");
+            }
+            while (reader.next()) {
+                applyJournalRecord(reader);
+            }
+            if (reader.truncated) {
+                throw new IOException("truncated checkpoint");
+            }
+            if (journaledFanOut != fanOutDirectoryCount()) {
+                throw new IOException("fan-out changed"); // files are moved after a full replay
+            }
+            checkpointOffset = offset;
+            liveKeys = new HashSet<String>();
+            return true;
+        } catch (IOException unusable) {
+            lruEntries.clear();
+            expiries.clear();
+            groups.clear();
+            size = 0;
+            policy = newPolicy(policy.name());
+            journaledPolicy = null;
+            journaledFanOut = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Replays the journal records written after the checkpoint, a batch at a
+     * time so that callers are never locked out for long. Dirty entries that
+     * are left once the tail has been applied are deleted, as processJournal()
+     * does for a full replay.
+     */
+    private final class ReplayCallable implements Callable<Void> {
+        private final long start;
+        private final long end;
+
+        private ReplayCallable(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override public Void call() throws Exception {
+            boolean rewriteJournal;
+            try {
+                DiskLruJournal.Reader reader = new DiskLruJournal.Reader(
+                        DiskLruJournal.readFile(fileSystem, journalFile, start, end), valueCount);
+                boolean more = true;
+                while (more) {
+                    synchronized (DiskLruCache.this) {
+                        if (journalWriter == null) {
+                            return null; // closed, the journal is replayed again on the next open
+                        }
+                        for (int i = 0; i < REPLAY_BATCH_SIZE && (more = reader.next()); i++) {
+                            if (reader.op == DiskLruJournal.OP_META
+                                    || !liveKeys.contains(reader.key)) {
+                                applyJournalRecord(reader);
+                            }
+                        }
+                    }
+                }
+                rewriteJournal = reader.truncated;
+            } catch (IOException journalIsCorrupt) {
+                // keep what has been applied and write a journal that matches it
+                rewriteJournal = true;
+            }
+
+            synchronized (DiskLruCache.this) {
+                if (journalWriter == null) {
+                    return null;
+                }
+                processJournal();
+                liveKeys = null;
+                if (rewriteJournal) {
+                    rebuildJournal();
+                }
+                trimToSize();
+                if (expiredEntriesPending(System.currentTimeMillis())) {
+                    submitSweep();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Replays the journal from a single bulk read. Returns true if the journal
+     * should be rewritten before it is appended to, either because it is in
+     * the old text format or because its last record was cut short.
+     */
+    private boolean readJournal() throws IOException {
+        byte[] journal = DiskLruJournal.readFile(fileSystem, journalFile);
+        if (!DiskLruJournal.isBinary(journal)) {
+            readTextJournal(new ByteArrayInputStream(journal));
+            return true;
+        }
+
+        DiskLruJournal.Reader reader = new DiskLruJournal.Reader(journal, valueCount);
+        reader.readHeader(appVersion, valueCount);
+        while (reader.next()) {
+            applyJournalRecord(reader);
+        }
+        return reader.truncated;
+    }
+
+    /**
+     * Reads a journal in the libcore.io.DiskLruCache version 1 text format.
+     */
+    private void readTextJournal(InputStream in) throws IOException {
+        String magic = readAsciiLine(in);
+        String version = readAsciiLine(in);
+        String appVersionString = readAsciiLine(in);
+        String valueCountString = readAsciiLine(in);
+        String blank = readAsciiLine(in);
+        if (!MAGIC.equals(magic)
+                || !VERSION_1.equals(version)
+                || !Integer.toString(appVersion).equals(appVersionString)
+                || !Integer.toString(valueCount).equals(valueCountString)
+                || !"".equals(blank)) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+        }
+
+        while (true) {
+            try {
+                readJournalLine(readAsciiLine(in));
+            } catch (EOFException endOfJournal) {
+                break;
+            }
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+
+        String key = parts[1];
+        if (parts[0].equals(REMOVE) && parts.length == 2) {
+            applyJournalRecord(DiskLruJournal.OP_REMOVE, key, null, null);
+        } else if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+            long[] lengths = new long[valueCount];
+            parseLengths(copyOfRange(parts, 2, parts.length), lengths);
+            applyJournalRecord(DiskLruJournal.OP_CLEAN, key, lengths, null);
+        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            applyJournalRecord(DiskLruJournal.OP_DIRTY, key, null, null);
+        } else if (parts[0].equals(READ) && parts.length == 2) {
+            applyJournalRecord(DiskLruJournal.OP_READ, key, null, null);
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Parses lengths using decimal numbers like "10123", as written by the
+     * text journal.
+     */
+    private static void parseLengths(String[] strings, long[] lengths) throws IOException {
+        if (strings.length != lengths.length) {
+            throw invalidLengths(strings);
+        }
+
+        try {
+            for (int i = 0; i < strings.length; i++) {
+                lengths[i] = Long.parseLong(strings[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw invalidLengths(strings);
+        }
+    }
+
+    private static IOException invalidLengths(String[] strings) throws IOException {
+        throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+    }
+
+    private void applyJournalRecord(DiskLruJournal.Reader reader) {
+        if (reader.op == DiskLruJournal.OP_META) {
+            applyMeta(reader.key, reader.value);
+        } else if (reader.op == DiskLruJournal.OP_PARTIAL) {
+            applyPartial(reader.key, reader.lengths, reader.checksums);
+        } else if (reader.op == DiskLruJournal.OP_EXPIRE) {
+            applyExpiry(reader.key, reader.expiresAt);
+        } else if (reader.op == DiskLruJournal.OP_TAG) {
+            applyTag(reader.key, reader.value);
+        } else {
+            applyJournalRecord(reader.op, reader.key, reader.lengths, reader.locations);
+        }
+    }
+
+    private void applyJournalRecord(int op, String key, long[] lengths, long[] locations) {
+        if (op == DiskLruJournal.OP_REMOVE) {
+            Entry removed = lruEntries.remove(key);
+            if (removed != null) {
+                for (int i = 0; i < valueCount; i++) {
+                    size -= removed.lengths[i];
+                }
+                setTags(removed, key, null);
+                policy.recordRemoval(key);
+            }
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            lruEntries.put(key, entry);
+        }
+
+        if (op == DiskLruJournal.OP_CLEAN || op == DiskLruJournal.OP_PACKED) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.partial = null;
+            entry.expiresAt = 0;
+            setTags(entry, key, null);
+            for (int i = 0; i < valueCount; i++) {
+                size = size - entry.lengths[i] + lengths[i];
+                entry.lengths[i] = lengths[i];
+            }
+            if (op == DiskLruJournal.OP_PACKED) {
+                if (entry.locations == null) {
+                    entry.locations = new long[valueCount];
+                }
+                System.arraycopy(locations, 0, entry.locations, 0, valueCount);
+            } else {
+                entry.locations = null;
+            }
+            lruEntries.touch(key);
+            policy.recordWrite(key, entry.weight());
+        } else if (op == DiskLruJournal.OP_DIRTY) {
+            entry.currentEditor = new Editor(entry, key);
+        } else if (op == DiskLruJournal.OP_READ && entry.readable) {
+            lruEntries.touch(key);
+            policy.recordAccess(key);
+        }
+    }
+
+    /**
+     * Applies a PARTIAL record, which follows the DIRTY record of its edit.
+     */
+    private void applyPartial(String key, long[] lengths, long[] checksums) {
+        Entry entry = lruEntries.get(key);
+        if (entry != null && entry.currentEditor != null) {
+            entry.partial = new Partial(lengths.clone(), checksums.clone());
+        }
+    }
+
+    /**
+     * Applies an EXPIRE record, which follows the CLEAN or PACKED record of
+     * its entry.
+     */
+    private void applyExpiry(String key, long expiresAt) {
+        Entry entry = lruEntries.get(key);
+        if (entry != null && entry.readable) {
+            entry.expiresAt = expiresAt;
+            scheduleExpiry(entry, key);
+        }
+    }
+
+    /**
+     * Applies a TAG record, which follows the CLEAN or PACKED record of its
+     * entry.
+     */
+    private void applyTag(String key, String tag) {
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.readable) {
+            return;
+        }
+        String[] tags;
+        if (entry.tags == null) {
+            tags = new String[] { tag };
+        } else {
+            tags = new String[entry.tags.length + 1];
+            System.arraycopy(entry.tags, 0, tags, 0, entry.tags.length);
+            tags[entry.tags.length] = tag;
+        }
+        setTags(entry, key, tags);
+    }
+
+    /**
+     * Replaces the tags of {@code entry}, whose key is {@code key}, which may
+     * be null, and indexes them.
+     */
+    private void setTags(Entry entry, String key, String[] tags) {
+        if (entry.tags == tags) {
+            return;
+        }
+        if (entry.tags != null) {
+            for (String tag : entry.tags) {
+                Set<String> keys = groups.get(tag);
+                if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                    groups.remove(tag);
+                }
+            }
+        }
+        entry.tags = tags;
+        if (tags != null) {
+            for (String tag : tags) {
+                Set<String> keys = groups.get(tag);
+                if (keys == null) {
+                    keys = new HashSet<String>();
+                    groups.put(tag, keys);
+                }
+                keys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Applies a META record. A journaled eviction policy replaces the current
+     * one unless the caller asked for a policy explicitly; it is then fed the
+     * entries loaded so far in LRU order.
+     */
+    private void applyMeta(String name, String value) {
+        if (META_FAN_OUT.equals(name)) {
+            try {
+                journaledFanOut = Integer.parseInt(value);
+            } catch (NumberFormatException ignored) {
+            }
+            return;
+        }
+        if (!META_EVICTION_POLICY.equals(name)) {
+            return; // written by a later version
+        }
+        journaledPolicy = value;
+        if (options.evictionPolicy != null || value.equals(policy.name())
+                || !EvictionPolicy.isSupported(value)) {
+            return;
+        }
+        policy = newPolicy(value);
+        // copied first: recording a write may reorder the index
+        List<Entry> entries = new ArrayList<Entry>(lruEntries.size());
+        List<String> keys = new ArrayList<String>(lruEntries.size());
+        for (EntryIndex<Entry>.Cursor c = lruEntries.cursor(); c.hasNext(); ) {
+            entries.add(c.next());
+            keys.add(c.key());
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.readable) {
+                policy.recordWrite(keys.get(i), entry.weight());
+            }
+        }
+    }
+
+    private EvictionPolicy newPolicy(String name) {
+        EvictionPolicy result = EvictionPolicy.create(name, lruEntries);
+        result.setMaxSize(maxSize);
+        return result;
+    }
+
+    /**
+     * Records the eviction policy in the journal if it is not there yet. A
+     * checkpoint naming the previous policy is deleted: the next open would
+     * otherwise use that policy until the tail replay reaches this record.
+     */
+    private void journalPolicy() throws IOException {
+        if (!policy.name().equals(journaledPolicy)) {
+            journalWriter.appendMeta(META_EVICTION_POLICY, policy.name());
+            journaledPolicy = policy.name();
+            synchronized (checkpointLock) {
+                deleteIfExists(checkpointFile);
+            }
+        }
+    }
+
+    /**
+     * Collects garbage as a part of opening the cache. Dirty entries left by
+     * the journal are assumed to be inconsistent and will be deleted, except
+     * for the partial values of new entries if those are kept; entries
+     * edited by callers during a tail replay are left alone, and so are the
+     * edits of other processes sharing the cache, see endDeadEdits().
+     */
+    private void processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        for (EntryIndex<Entry>.Cursor i = lruEntries.cursor(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.currentEditor != null && entry.currentEditor.owner == null
+                    && (liveKeys == null || !liveKeys.contains(entry.currentEditor.key))) {
+                String key = entry.currentEditor.key;
+                entry.currentEditor = null;
+                Partial partial = keepPartials() && !entry.readable ? entry.partial : null;
+                if (partial != null && partial.weight() == 0) {
+                    partial = null;
+                }
+                for (int t = 0; t < valueCount; t++) {
+                    size -= entry.lengths[t];
+                    deleteIfExists(entry.getCleanFile(key, t));
+                    if (partial == null || partial.lengths[t] == 0) {
+                        deleteIfExists(entry.getDirtyFile(key, t));
+                    }
+                }
+                setTags(entry, key, null);
+                i.remove();
+                policy.recordRemoval(key);
+                if (partial != null) {
+                    addPartial(key, partial);
+                }
+            }
+        }
+        countPackedValues();
+    }
+
+    /** Returns true if interrupted edits are kept, see Options.keepPartialValues. */
+    private boolean keepPartials() {
+        return options.keepPartialValues && options.packedValueMaxSize <= 0;
+    }
+
+    private void addPartial(String key, Partial partial) {
+        partials.put(key, partial);
+        partialSize += partial.weight();
+    }
+
+    /** Removes and returns the partial values of {@code key}, or null if there are none. */
+    private Partial takePartial(String key) {
+        Partial partial = partials.remove(key);
+        if (partial != null) {
+            partialSize -= partial.weight();
+        }
+        return partial;
+    }
+
+    /** Deletes the partial values of {@code key}. */
+    private void discardPartial(String key) throws IOException {
+        takePartial(key);
+        Entry entry = new Entry();
+        for (int i = 0; i < valueCount; i++) {
+            deleteIfExists(entry.getDirtyFile(key, i));
+        }
+        journalAppend(DiskLruJournal.OP_REMOVE, key, null);
+    }
+
+    /**
+     * Applies a record of the shared journal, see Options.multiProcess.
+     * While {@code tailing} the record was appended by another process since
+     * this one opened the cache: its removals are reported, the waiters of
+     * the edits it ends are completed, and its policy and fan-out records are
+     * ignored, as those only take effect when a cache is opened.
+     */
+    private void applySharedRecord(DiskLruJournal.Reader reader, boolean tailing) {
+        String key = reader.key;
+        if (reader.op == DiskLruJournal.OP_META) {
+            if (META_WRITER.equals(key)) {
+                tailWriter = reader.value;
+            } else if (!tailing) {
+                applyMeta(key, reader.value);
+            }
+            return;
+        }
+        Entry entry = lruEntries.get(key);
+        Editor editor = entry != null ? entry.currentEditor : null;
+        if (reader.op == DiskLruJournal.OP_PARTIAL) {
+            // the edit was suspended
+            if (editor != null && !entry.readable) {
+                lruEntries.remove(key);
+                takePartial(key);
+                addPartial(key, new Partial(reader.lengths.clone(), reader.checksums.clone()));
+            }
+        } else {
+            if (reader.op == DiskLruJournal.OP_DIRTY || reader.op == DiskLruJournal.OP_REMOVE) {
+                takePartial(key); // resumed or discarded by the other process
+            }
+            if (reader.op == DiskLruJournal.OP_REMOVE && tailing && entry != null
+                    && entry.readable) {
+                reportRemoval(key, entry.weight(), RemovalCause.REMOTE, null);
+            }
+            applyJournalRecord(reader);
+            Entry applied = lruEntries.get(key);
+            if (reader.op == DiskLruJournal.OP_DIRTY) {
+                applied.currentEditor.owner = tailWriter != null ? tailWriter : "";
+            } else if (reader.op == DiskLruJournal.OP_CLEAN
+                    || reader.op == DiskLruJournal.OP_PACKED) {
+                applied.sequenceNumber = nextSequenceNumber++; // older snapshots are stale
+            }
+        }
+        if (tailing && editor != null
+                && (lruEntries.get(key) != entry || entry.currentEditor != editor)) {
+            completeWaiters(editor, key);
+        }
+    }
+
+    /**
+     * Takes the journal lock for a turn with the shared journal, and reads
+     * what the other processes appended since the last turn of this one.
+     * Does nothing unless Options.multiProcess; calls nest. Must be called
+     * with the cache lock held, and matched by unlockShared() before that is
+     * released.
+     */
+    private void lockShared() throws IOException {
+        if (processLock == null || sharedLockDepth++ > 0) {
+            return;
+        }
+        try {
+            processLock.lock();
+        } catch (IOException e) {
+            sharedLockDepth--;
+            throw e;
+        }
+        boolean caughtUp = false;
+        try {
+            writerJournaled = false;
+            catchUp();
+            caughtUp = true;
+        } finally {
+            if (!caughtUp) {
+                sharedLockDepth--;
+                processLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Ends a turn started by lockShared(): writes the records this process
+     * appended and releases the journal lock.
+     */
+    private void unlockShared() throws IOException {
+        if (processLock == null || --sharedLockDepth > 0) {
+            return;
+        }
+        try {
+            journalWriter.flush();
+            journalOffset = fileSystem.size(journalFile);
+        } finally {
+            processLock.unlock();
+            if (journalIncomplete) {
+                submitCleanup();
+            }
+        }
+    }
+
+    /**
+     * Applies the records the other processes appended since the last turn
+     * of this one, following the journal into its next generation if one of
+     * them compacted it.
+     */
+    private void catchUp() throws IOException {
+        long generation = processLock.generation();
+        if (generation != sharedGeneration) {
+            if (generation != sharedGeneration + 1 || !fileSystem.exists(journalFileOld)) {
+                throw new IOException("lost track of the shared journal");
+            }
+            applyTail(journalFileOld, fileSystem.size(journalFileOld));
+            recoverSharedJournal();
+            long length = processLock.compactedLength();
+            journalWriter.switchTo(fileSystem.append(journalFile), length);
+            journalOffset = length;
+            sharedGeneration = generation;
+            processLock.setSeenGeneration(generation);
+        }
+        long end = fileSystem.size(journalFile);
+        if (end < journalOffset) {
+            recoverSharedJournal();
+            end = fileSystem.size(journalFile);
+            if (end < journalOffset) {
+                throw new IOException("the shared journal shrank");
+            }
+        }
+        if (end > journalOffset) {
+            applyTail(journalFile, end);
+            if (size + partialSize > maxSize) {
+                submitTrim();
+            }
+        }
+    }
+
+    /**
+     * Applies the records of {@code file} from journalOffset up to
+     * {@code end}. A record cut short by a process that died while appending
+     * it is cut off, so that the records appended after it can be read.
+     */
+    private void applyTail(File file, long end) throws IOException {
+        DiskLruJournal.Reader reader = new DiskLruJournal.Reader(
+                DiskLruJournal.readFile(fileSystem, file, journalOffset, end), valueCount);
+        tailWriter = null;
+        while (reader.next()) {
+            applySharedRecord(reader, true);
+        }
+        journalOffset += reader.position();
+        if (reader.truncated) {
+            fileSystem.truncate(file, journalOffset);
+        }
+    }
+
+    /**
+     * Puts a journal back in place if a process died in the middle of
+     * compactShared(): the compacted one if its generation had started, the
+     * previous one otherwise. Must be called with the journal lock held.
+     */
+    private void recoverSharedJournal() throws IOException {
+        if (fileSystem.exists(journalFile)) {
+            return;
+        }
+        if (fileSystem.exists(journalFileTmp)
+                && compactedGeneration(journalFileTmp) == processLock.generation()) {
+            fileSystem.rename(journalFileTmp, journalFile);
+        } else if (fileSystem.exists(journalFileOld)) {
+            fileSystem.rename(journalFileOld, journalFile);
+        }
+    }
+
+    /** Returns the generation that the compacted journal {@code file} starts, or -1. */
+    private long compactedGeneration(File file) {
+        try {
+            DiskLruJournal.Reader reader = new DiskLruJournal.Reader(
+                    DiskLruJournal.readFile(fileSystem, file), valueCount);
+            reader.readHeader(appVersion, valueCount);
+            if (reader.next() && reader.op == DiskLruJournal.OP_META
+                    && META_GENERATION.equals(reader.key)) {
+                return Long.parseLong(reader.value);
+            }
+        } catch (IOException unreadable) {
+        } catch (NumberFormatException unreadable) {
+        }
+        return -1;
+    }
+
+    /**
+     * Compacts the shared journal with the journal lock held, unless another
+     * process still reads the generation before the current one; it is tried
+     * again once the journal has grown a little more. The comment at the top
+     * of the class describes how the other processes follow.
+     */
+    private void compactShared() throws IOException {
+        if (!processLock.othersRead(sharedGeneration)) {
+            sharedCompactionRetryOffset = journalOffset + SHARED_COMPACTION_RETRY_BYTES;
+            return;
+        }
+        long start = System.nanoTime();
+        endDeadEdits();
+        long generation = sharedGeneration + 1;
+        DiskLruJournal.Buffer records = encodeIndex();
+        DiskLruJournal.Buffer generationRecord = new DiskLruJournal.Buffer(32);
+        DiskLruJournal.writeMeta(generationRecord, META_GENERATION, Long.toString(generation));
+        deleteIfExists(journalFileOld); // every process has read it to its end
+        OutputStream out = fileSystem.create(journalFileTmp);
+        long length;
+        try {
+            length = DiskLruJournal.writeHeader(out, appVersion, valueCount)
+                    + generationRecord.size() + records.size();
+            generationRecord.writeTo(out);
+            records.writeTo(out);
+            if (durable()) {
+                fileSystem.sync(out);
+            }
+        } finally {
+            out.close();
+        }
+
+        // the records of this turn go to the journal that the others read to its end
+        journalWriter.flush();
+        if (!fileSystem.rename(journalFile, journalFileOld)) {
+            throw new IOException("failed to rename " + journalFile);
+        }
+        processLock.setGeneration(generation, length);
+        fileSystem.rename(journalFileTmp, journalFile);
+        journalWriter.switchTo(fileSystem.append(journalFile), length);
+        processLock.setSeenGeneration(generation);
+        sharedGeneration = generation;
+        journalOffset = length;
+        writerJournaled = false;
+        journalIncomplete = false;
+        compactedBytesPerEntry = records.size() / Math.max(1, lruEntries.size());
+        journaledPolicy = policy.name();
+        journaledFanOut = fanOutDirectoryCount();
+        compactionCount++;
+        lastCompactionPauseNanos = System.nanoTime() - start;
+        totalCompactionPauseNanos += lastCompactionPauseNanos;
+    }
+
+    /** Ends the edits of the processes that are gone, see endDeadEdit(). */
+    private void endDeadEdits() throws IOException {
+        List<Entry> edited = new ArrayList<Entry>();
+        for (Entry entry : lruEntries.values()) {
+            if (entry.currentEditor != null && entry.currentEditor.owner != null) {
+                edited.add(entry);
+            }
+        }
+        for (Entry entry : edited) {
+            endDeadEdit(entry);
+        }
+    }
+
+    /**
+     * Ends the edit of {@code entry} if another process started it and has
+     * died since, as processJournal() ends the edits left by a crash: its
+     * dirty files are deleted and the entry keeps its committed values, if
+     * it has any. Returns true if it did. Must be called in a turn with the
+     * shared journal.
+     */
+    private boolean endDeadEdit(Entry entry) throws IOException {
+        Editor editor = entry.currentEditor;
+        if (editor == null || editor.owner == null || processLock.isAlive(editor.owner)) {
+            return false;
+        }
+        String key = editor.key;
+        entry.currentEditor = null;
+        for (int i = 0; i < valueCount; i++) {
+            deleteIfExists(entry.getDirtyFile(key, i));
+        }
+        if (entry.readable) {
+            journalClean(entry, key);
+        } else {
+            lruEntries.remove(key);
+            journalAppend(DiskLruJournal.OP_REMOVE, key, null);
+        }
+        completeWaiters(editor, key);
+        return true;
+    }
+
+    /**
+     * Checks on the edit of another process that {@code future} waits for:
+     * reads the journal, which completes the future if the edit has ended,
+     * and ends the edit if that process is gone.
+     */
+    private synchronized void pollSharedEdit(EditFuture future) {
+        Editor editor = future.editor;
+        if (editor == null || editor.owner == null) {
+            return; // completed by this process
+        }
+        if (journalWriter == null) {
+            future.complete(null); // closed
+            return;
+        }
+        try {
+            lockShared();
+            try {
+                if (editor.entry.currentEditor == editor) {
+                    endDeadEdit(editor.entry);
+                }
+            } finally {
+                unlockShared();
+            }
+        } catch (IOException e) {
+            // checked again on the next poll
+        }
+    }
+
+    /**
+     * Tells the pack store which of its bytes the index refers to. Segments
+     * that hold nothing the index knows about are deleted.
+     */
+    private void countPackedValues() {
+        pack.beginCount();
+        for (Entry entry : lruEntries.values()) {
+            if (entry.locations == null) {
+                continue;
+            }
+            for (int i = 0; i < valueCount; i++) {
+                if (entry.locations[i] != 0) {
+                    pack.countLive(entry.locations[i], entry.lengths[i]);
+                }
+            }
+        }
+        pack.finishCount();
+    }
+
+    /**
+     * Creates a new journal that omits redundant information. This replaces the
+     * current journal if it exists.
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        DiskLruJournal.Buffer records = encodeIndex();
+        OutputStream out = fileSystem.create(journalFileTmp);
+        long length;
+        try {
+            length = DiskLruJournal.writeHeader(out, appVersion, valueCount) + records.size();
+            records.writeTo(out);
+            if (durable()) {
+                pack.sync();
+                fileSystem.sync(out);
+            }
+        } finally {
+            out.close();
+        }
+        compactedBytesPerEntry = records.size() / Math.max(1, lruEntries.size());
+        journaledPolicy = policy.name();
+        journaledFanOut = fanOutDirectoryCount();
+
+        synchronized (checkpointLock) {
+            // the checkpoint describes offsets into the journal being replaced
+            journalGeneration++;
+            deleteIfExists(checkpointFile);
+            fileSystem.rename(journalFileTmp, journalFile);
+        }
+        recordsSinceCheckpoint = 0;
+        unjournaledReads = 0;
+        if (journalWriter == null) {
+            openJournalWriter(length);
+        } else {
+            // records queued before this point belonged to the replaced journal
+            journalWriter.switchTo(fileSystem.append(journalFile), length);
+        }
+    }
+
+    /**
+     * Encodes the eviction policy and the fan-out, if the value files are
+     * fanned out, and then every entry in LRU order: a CLEAN
+     * record for readable entries, with their expiry and tags if they have any, and a
+     * DIRTY record for entries being
+     * edited, followed by their progress if it is journaled. Kept partial
+     * values come last. This is the body of both a compacted journal and a
+     * checkpoint. In a shared journal each DIRTY record follows a writer
+     * record naming the process that is editing. Must be called with the
+     * cache lock held; it only touches memory.
+     */
+    private DiskLruJournal.Buffer encodeIndex() {
+        DiskLruJournal.Buffer buffer = new DiskLruJournal.Buffer(48 + lruEntries.size() * 24);
+        DiskLruJournal.writeMeta(buffer, META_EVICTION_POLICY, policy.name());
+        if (fanOutDirectories != null) {
+            DiskLruJournal.writeMeta(buffer, META_FAN_OUT, Integer.toString(fanOutDirectories.length));
+        }
+        for (EntryIndex<Entry>.Cursor c = lruEntries.cursor(); c.hasNext(); ) {
+            Entry entry = c.next();
+            String key = c.key();
+            if (entry.readable) {
+                DiskLruJournal.writeRecord(buffer, cleanOp(entry), key, cleanValues(entry));
+                if (entry.expiresAt != 0) {
+                    DiskLruJournal.writeRecord(buffer, DiskLruJournal.OP_EXPIRE, key,
+                            new long[] { entry.expiresAt });
+                }
+                if (entry.tags != null) {
+                    for (String tag : entry.tags) {
+                        DiskLruJournal.writeTag(buffer, key, tag);
+                    }
+                }
+            }
+            if (entry.currentEditor != null) {
+                if (processLock != null) {
+                    String owner = entry.currentEditor.owner;
+                    DiskLruJournal.writeMeta(buffer, META_WRITER,
+                            owner != null ? owner : processLock.owner());
+                }
+                DiskLruJournal.writeRecord(buffer, DiskLruJournal.OP_DIRTY, key, null);
+                if (entry.partial != null && processLock == null) {
+                    DiskLruJournal.writeRecord(buffer, DiskLruJournal.OP_PARTIAL, key,
+                            entry.partial.values());
+                }
+            }
+        }
+        for (Map.Entry<String, Partial> partial : partials.entrySet()) {
+            DiskLruJournal.writeRecord(buffer, DiskLruJournal.OP_DIRTY, partial.getKey(), null);
+            DiskLruJournal.writeRecord(buffer, DiskLruJournal.OP_PARTIAL, partial.getKey(),
+                    partial.getValue().values());
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes a compacted journal from {@code records}, a snapshot taken by
+     * encodeIndex() while the appender began capturing newer records, and
+     * hands it to the appender to be completed and swapped in. Runs without
+     * the cache lock; callers keep reading and writing meanwhile.
+     */
+    private void compactJournal(JournalAppender appender, DiskLruJournal.Buffer records,
+            int entryCount) throws IOException {
+        final int generation = journalGeneration;
+        long length = 0;
+        OutputStream out = null;
+        try {
+            out = fileSystem.create(journalFileTmp);
+            length = DiskLruJournal.writeHeader(out, appVersion, valueCount) + records.size();
+            records.writeTo(out);
+        } catch (IOException e) {
+            closeQuietly(out);
+            out = null;
+        }
+
+        if (out != null) {
+            long seq;
+            try {
+                seq = appender.completeCompaction(out, length, new JournalAppender.Swap() {
+                    @Override public boolean swap() throws IOException {
+                        synchronized (checkpointLock) {
+                            if (generation != journalGeneration
+                                    || !fileSystem.rename(journalFileTmp, journalFile)) {
+                                deleteIfExists(journalFileTmp);
+                                return false;
+                            }
+                            journalGeneration++;
+                            deleteIfExists(checkpointFile);
+                            return true;
+                        }
+                    }
+                });
+            } catch (IllegalStateException e) {
+                seq = -1; // closed while the compacted journal was written
+                closeQuietly(out);
+                fileSystem.delete(journalFileTmp);
+            }
+            try {
+                appender.awaitFlushed(seq);
+            } catch (IOException e) {
+                // the appender has failed; callers will see it on their next flush
+            }
+        }
+
+        synchronized (this) {
+            compacting = false;
+            compactionCount++;
+            compactedBytesPerEntry = records.size() / Math.max(1, entryCount);
+        }
+    }
+
+    /**
+     * Copies the values that are still referenced out of pack segment
+     * {@code segment} and deletes it. The copying is done without the cache
+     * lock; a value that was replaced or removed in the meantime keeps its
+     * new state and its copy is released again. The segment is only deleted
+     * once the journal records pointing at the copies have been flushed.
+     */
+    private void compactPackSegment(JournalAppender appender, int segment) throws IOException {
+        List<PackedValue> values = new ArrayList<PackedValue>();
+        synchronized (this) {
+            for (EntryIndex<Entry>.Cursor c = lruEntries.cursor(); c.hasNext(); ) {
+                Entry entry = c.next();
+                if (entry.locations == null) {
+                    continue;
+                }
+                String key = null;
+                for (int i = 0; i < valueCount; i++) {
+                    long location = entry.locations[i];
+                    if (location != 0 && PackStore.segmentOf(location) == segment) {
+                        if (key == null) {
+                            key = c.key();
+                        }
+                        values.add(new PackedValue(entry, key, i, location, entry.lengths[i]));
+                    }
+                }
+            }
+        }
+
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        for (PackedValue value : values) {
+            if (value.length > buffer.length) {
+                buffer = new byte[(int) value.length];
+            }
+            InputStream in = null;
+            try {
+                in = pack.open(value.location, value.length);
+                readFully(in, buffer, (int) value.length);
+                value.copy = pack.append(buffer, 0, (int) value.length);
+            } catch (IOException e) {
+                // unreadable, or the append failed: the value is lost with the segment
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        long seq = -1;
+        boolean lost = false;
+        synchronized (this) {
+            if (journalWriter == null) {
+                pack.abortCompaction(); // closed; the next open compacts again
+                return;
+            }
+            List<PackedValue> moved = new ArrayList<PackedValue>();
+            for (PackedValue value : values) {
+                Entry entry = value.entry;
+                boolean current = entry.locations != null
+                        && entry.locations[value.index] == value.location;
+                if (value.copy == 0) {
+                    lost |= current;
+                    continue;
+                }
+                if (!current) {
+                    pack.release(value.copy, value.length);
+                    continue;
+                }
+                entry.locations[value.index] = value.copy;
+                if (moved.isEmpty() || moved.get(moved.size() - 1).entry != entry) {
+                    moved.add(value); // the values of an entry are next to each other
+                }
+            }
+            for (PackedValue value : moved) {
+                seq = journalClean(value.entry, value.key);
+                if (value.entry.currentEditor != null) {
+                    // keep the edit in progress from being taken as clean on replay
+                    journalAppend(DiskLruJournal.OP_DIRTY, value.key, null);
+                }
+            }
+        }
+        if (seq != -1) {
+            appender.awaitFlushed(seq);
+        }
+        if (lost) {
+            pack.abortCompaction(); // keep the values that could not be copied
+        } else {
+            pack.finishCompaction(segment);
+        }
+    }
+
+    /**
+     * How many bytes of each value an unfinished edit wrote to its dirty
+     * files, and the CRC32 of those bytes.
+     */
+    private static final class Partial {
+        final long[] lengths;
+        final long[] checksums;
+
+        Partial(long[] lengths, long[] checksums) {
+            this.lengths = lengths;
+            this.checksums = checksums;
+        }
+
+        long weight() {
+            long weight = 0;
+            for (long length : lengths) {
+                weight += length;
+            }
+            return weight;
+        }
+
+        /** Returns the values of the PARTIAL record describing this. */
+        long[] values() {
+            long[] values = new long[lengths.length * 2];
+            System.arraycopy(lengths, 0, values, 0, lengths.length);
+            System.arraycopy(checksums, 0, values, lengths.length, checksums.length);
+            return values;
+        }
+    }
+
+    /** When the entry named {@code key} expires, as far as the queue knows. */
+    private static final class Expiry implements Comparable<Expiry> {
+        final String key;
+        final long expiresAt;
+
+        Expiry(String key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override public int compareTo(Expiry other) {
+            return expiresAt < other.expiresAt ? -1 : (expiresAt == other.expiresAt ? 0 : 1);
+        }
+    }
+
+    /** A value that is moved out of a pack segment being compacted. */
+    private static final class PackedValue {
+        final Entry entry;
+        final String key;
+        final int index;
+        final long location;
+        final long length;
+        long copy;
+
+        PackedValue(Entry entry, String key, int index, long location, long length) {
+            this.entry = entry;
+            this.key = key;
+            this.index = index;
+            this.location = location;
+            this.length = length;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int count = 0;
+        while (count < length) {
+            int read = in.read(buffer, count, length - count);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            count += read;
+        }
+    }
+
+    private void openJournalWriter(long length) throws IOException {
+        journalWriter = new JournalAppender(fileSystem.append(journalFile), length,
+                options.journalFlushRecords, options.journalFlushIntervalMillis,
+                durable() ? journalSync : null,
+                options.durability == Durability.BATCHED ? options.syncIntervalMillis : 0,
+                processLock != null ? sharedJournalRepair : journalRepair,
+                "DiskLruCache journal " + directory.getName());
+    }
+
+    /** Cuts the journal back to the records the appender wrote completely. */
+    private final JournalAppender.Repair journalRepair = new JournalAppender.Repair() {
+        @Override public boolean repair(OutputStream journal, long length) throws IOException {
+            fileSystem.truncate(journal, length);
+            return true;
+        }
+    };
+
+    /**
+     * Cuts the shared journal back to its last complete record. The appender
+     * only writes the records of a turn while that turn waits for them with
+     * the journal lock held, so nobody else appends meanwhile; but a retry
+     * could come after the lock is released, so the records are dropped and
+     * the journal is compacted from the index instead.
+     */
+    private final JournalAppender.Repair sharedJournalRepair = new JournalAppender.Repair() {
+        @Override public boolean repair(OutputStream journal, long length) throws IOException {
+            DiskLruJournal.Reader reader = new DiskLruJournal.Reader(DiskLruJournal.readFile(
+                    fileSystem, journalFile, journalOffset, fileSystem.size(journalFile)),
+                    valueCount);
+            while (reader.next()) {
+            }
+            fileSystem.truncate(journal, journalOffset + reader.position());
+            journalIncomplete = true;
+            return false;
+        }
+    };
+
+    /** Returns true if the cache syncs commits to the device, see Options.durability. */
+    private boolean durable() {
+        return options.durability != null && options.durability != Durability.NONE;
+    }
+
+    /** Syncs the values before the journal that refers to them. */
+    private final JournalAppender.Sync journalSync = new JournalAppender.Sync() {
+        @Override public void syncValues() throws IOException {
+            List<File> files;
+            synchronized (unsyncedFiles) {
+                files = new ArrayList<File>(unsyncedFiles);
+                unsyncedFiles.clear();
+            }
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    fileSystem.sync(files.get(i));
+                } catch (FileNotFoundException e) {
+                    // removed since, and so is its journal record
+                } catch (IOException e) {
+                    synchronized (unsyncedFiles) {
+                        unsyncedFiles.addAll(files.subList(i, files.size()));
+                    }
+                    throw e; // the appender syncs again later
+                }
+            }
+            pack.sync();
+        }
+
+        @Override public void syncJournal(OutputStream journal) throws IOException {
+            fileSystem.sync(journal);
+        }
+    };
+
+    /**
+     * Queues a record for the journal and returns its sequence number. This
+     * only touches memory; the appender thread encodes and writes it.
+     */
+    private long journalAppend(int op, String key, long[] lengths) {
+        if (processLock != null) {
+            journalWriterRecord();
+        }
+        recordsSinceCheckpoint++;
+        if (liveKeys != null && op != DiskLruJournal.OP_READ) {
+            liveKeys.add(key);
+        }
+        if (journalBatch != null) {
+            journalBatch.add(op, key, lengths);
+            return -1;
+        }
+        return journalWriter.append(op, key, lengths);
+    }
+
+    /**
+     * Starts the records of this turn with the shared journal with a writer
+     * record. Throws if the journal lock isn't held, as the records would get
+     * mixed up with those of the other processes.
+     */
+    private void journalWriterRecord() {
+        if (sharedLockDepth == 0) {
+            throw new IllegalStateException("shared journal appended to without its lock");
+        }
+        if (!writerJournaled) {
+            writerJournaled = true;
+            journalWriter.appendMeta(META_WRITER, processLock.owner());
+        }
+    }
+
+    /**
+     * Makes journalAppend() collect records instead of queueing them, and
+     * defers cleanups, until endBatch(). Must be called with the cache lock
+     * held, and endBatch() before it is released.
+     */
+    private void beginBatch() {
+        journalBatch = new JournalAppender.Batch();
+    }
+
+    /**
+     * Queues the records collected since beginBatch() as a single batch and
+     * submits a deferred cleanup. Returns the sequence number of the batch,
+     * or -1 if it was empty.
+     */
+    private long endBatch() {
+        JournalAppender.Batch batch = journalBatch;
+        journalBatch = null;
+        long seq = batch.isEmpty() ? -1 : journalWriter.append(batch);
+        if (cleanupDeferred) {
+            cleanupDeferred = false;
+            submitCleanup();
+        }
+        return seq;
+    }
+
+    /**
+     * Runs the cleanup on the background thread, once the batch in progress
+     * ends. With an {@link Options#ioScheduler} only a trim, if the cache is
+     * too large, starts right away; the rest waits for the scheduler to be
+     * idle.
+     */
+    private void submitCleanup() {
+        if (journalBatch != null) {
+            cleanupDeferred = true;
+        } else if (options.ioScheduler != null) {
+            if (size + partialSize > maxSize) {
+                submitTrim();
+            }
+            if (!cleanupIdleScheduled) {
+                cleanupIdleScheduled = true;
+                options.ioScheduler.runWhenIdle(idleCleanup);
+            }
+        } else {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /** Runs a trim on the background thread unless one is scheduled already. */
+    private void submitTrim() {
+        if (!trimScheduled) {
+            trimScheduled = true;
+            executorService.submit(trimCallable);
+        }
+    }
+
+    /**
+     * Asks the size policy for a new maximum size on the background thread
+     * if it is time to, see {@link Options#sizePolicy}. Must be called after
+     * a commit; the trim it may cause is queued behind the size check.
+     */
+    private void checkSizePolicy() {
+        if (options.sizePolicy == null || sizeCheckScheduled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < nextSizeCheck && !(sizeCheckWhenFull && size + partialSize > maxSize)) {
+            return;
+        }
+        sizeCheckScheduled = true;
+        nextSizeCheck = now + options.sizeCheckIntervalMillis;
+        executorService.submit(sizeCheckCallable);
+    }
+
+    /**
+     * Runs the sweeper on the background thread unless it is scheduled
+     * already; with an {@link Options#ioScheduler}, once that is idle.
+     */
+    private void submitSweep() {
+        if (!sweepScheduled) {
+            sweepScheduled = true;
+            if (options.ioScheduler != null) {
+                options.ioScheduler.runWhenIdle(idleSweep);
+            } else {
+                executorService.submit(sweepCallable);
+            }
+        }
+    }
+
+    /**
+     * Queues the expiry of {@code entry}, whose key is {@code key}, if it
+     * has one, for the sweeper.
+     */
+    private void scheduleExpiry(Entry entry, String key) {
+        if (entry.expiresAt == 0) {
+            return;
+        }
+        if (expiries.size() > 2 * lruEntries.size() + SWEEP_BATCH_SIZE) {
+            // mostly outdated expiries; start over from the index
+            expiries.clear();
+            for (EntryIndex<Entry>.Cursor c = lruEntries.cursor(); c.hasNext(); ) {
+                Entry e = c.next();
+                if (e.readable && e.expiresAt != 0 && e != entry) {
+                    expiries.add(new Expiry(c.key(), e.expiresAt));
+                }
+            }
+        }
+        expiries.add(new Expiry(key, entry.expiresAt));
+    }
+
+    /** Returns true if an entry may have expired by {@code now}. */
+    private boolean expiredEntriesPending(long now) {
+        Expiry next = expiries.peek();
+        return next != null && next.expiresAt <= now;
+    }
+
+    private static boolean isExpired(Entry entry, long now) {
+        return entry.expiresAt != 0 && entry.expiresAt <= now;
+    }
+
+    /**
+     * Takes up to {@code limit} expiries that are due by {@code now} from the
+     * queue and removes their entries, unless they have been edited since or
+     * are being edited. An entry being edited is queued again when its edit
+     * completes. Returns true if more expiries are due.
+     */
+    private boolean removeExpired(long now, int limit) throws IOException {
+        for (int i = 0; i < limit && expiredEntriesPending(now); i++) {
+            Expiry expiry = expiries.poll();
+            Entry entry = lruEntries.get(expiry.key);
+            if (entry != null && entry.readable && entry.expiresAt == expiry.expiresAt) {
+                remove(expiry.key, RemovalCause.EXPIRED);
+            }
+        }
+        return expiredEntriesPending(now);
+    }
+
+    /**
+     * Journals the clean state of {@code entry}, whose key is {@code key},
+     * and returns the record's sequence number. The expiry and the tags of
+     * an entry that has them are journaled in the same batch, so that a
+     * crash can't separate them.
+     */
+    private long journalClean(Entry entry, String key) {
+        if (entry.expiresAt == 0 && entry.tags == null) {
+            return journalAppend(cleanOp(entry), key, cleanValues(entry));
+        }
+        boolean batch = journalBatch == null;
+        if (batch) {
+            beginBatch();
+        }
+        journalAppend(cleanOp(entry), key, cleanValues(entry));
+        if (entry.expiresAt != 0) {
+            journalAppend(DiskLruJournal.OP_EXPIRE, key, new long[] { entry.expiresAt });
+        }
+        if (entry.tags != null) {
+            for (String tag : entry.tags) {
+                recordsSinceCheckpoint++;
+                journalBatch.addTag(key, tag);
+            }
+        }
+        return batch ? endBatch() : -1;
+    }
+
+    /** Returns the op of the record that describes {@code entry} when it is clean. */
+    private static int cleanOp(Entry entry) {
+        return entry.locations == null ? DiskLruJournal.OP_CLEAN : DiskLruJournal.OP_PACKED;
+    }
+
+    /** Returns the values of the record that describes {@code entry} when it is clean. */
+    private long[] cleanValues(Entry entry) {
+        if (entry.locations == null) {
+            return entry.lengths;
+        }
+        long[] values = new long[valueCount * 2];
+        System.arraycopy(entry.lengths, 0, values, 0, valueCount);
+        System.arraycopy(entry.locations, 0, values, valueCount, valueCount);
+        return values;
+    }
+
+    /**
+     * Opens the committed value {@code index} of {@code entry}, whose key is
+     * {@code key}, wherever it is stored.
+     */
+    private InputStream openValue(Entry entry, String key, int index) throws IOException {
+        if (entry.locations != null && entry.locations[index] != 0) {
+            return pack.open(entry.locations[index], entry.lengths[index]);
+        }
+        return fileSystem.open(entry.getCleanFile(key, index));
+    }
+
+    /**
+     * Drops the committed value {@code index} of {@code entry}, whose key is
+     * {@code key}, from storage. Returns false if its file could not be
+     * deleted.
+     */
+    private boolean deleteValue(Entry entry, String key, int index) {
+        if (entry.locations != null && entry.locations[index] != 0) {
+            pack.release(entry.locations[index], entry.lengths[index]);
+            entry.locations[index] = 0;
+            return true;
+        }
+        return fileSystem.delete(entry.getCleanFile(key, index));
+    }
+
+    /**
+     * We write a checkpoint every CHECKPOINT_INTERVAL journal records, but
+     * never while the journal tail is still being replayed: the index would
+     * be missing the records that have not been applied yet. Nor for a shared
+     * journal, which the other processes keep appending to.
+     */
+    private boolean checkpointRequired() {
+        return (recordsSinceCheckpoint >= CHECKPOINT_INTERVAL || recencySnapshotRequired())
+                && liveKeys == null && processLock == null;
+    }
+
+    /**
+     * Returns true once reads that were not journaled have moved the LRU
+     * order far enough from what is on disk to be worth a snapshot.
+     */
+    private boolean recencySnapshotRequired() {
+        return unjournaledReads >= RECENCY_SNAPSHOT_READS_PER_ENTRY
+                * Math.max(lruEntries.size(), CHECKPOINT_INTERVAL / RECENCY_SNAPSHOT_READS_PER_ENTRY);
+    }
+
+    /**
+     * Decides whether the READ record of a hit is written, following
+     * Options.readSampleRate.
+     */
+    private boolean journalRead() {
+        int rate = options.readSampleRate;
+        if (rate == 1) {
+            return true;
+        } else if (rate <= 0) {
+            return false;
+        }
+        int x = readSampleSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        readSampleSeed = x;
+        return (x & 0x7fffffff) % rate == 0;
+    }
+
+    /**
+     * A snapshot of the index and the journal mark it corresponds to.
+     */
+    private static final class Checkpoint {
+        final DiskLruJournal.Buffer records;
+        final JournalAppender.Mark mark;
+        final int generation;
+
+        Checkpoint(DiskLruJournal.Buffer records, JournalAppender.Mark mark, int generation) {
+            this.records = records;
+            this.mark = mark;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Encodes the index as checkpoint records and queues a journal mark right
+     * behind the records that produced it. Must be called with the cache lock
+     * held.
+     */
+    private Checkpoint snapshotCheckpoint() {
+        DiskLruJournal.Buffer buffer = encodeIndex();
+        recordsSinceCheckpoint = 0;
+        unjournaledReads = 0;
+        return new Checkpoint(buffer, journalWriter.mark(), journalGeneration);
+    }
+
+    /**
+     * Replaces the checkpoint file with {@code checkpoint}, unless the journal
+     * it was taken from has been rebuilt in the meantime. Waits for the journal
+     * to reach the checkpoint's mark, so it must not be called with the cache
+     * lock held.
+     */
+    private void writeCheckpoint(JournalAppender appender, Checkpoint checkpoint)
+            throws IOException {
+        long offset = appender.awaitMark(checkpoint.mark);
+        DiskLruJournal.Buffer header = new DiskLruJournal.Buffer(32);
+        DiskLruJournal.writeHeader(header, appVersion, valueCount);
+        header.writeVarint(offset);
+        synchronized (checkpointLock) {
+            if (checkpoint.generation != journalGeneration) {
+                return;
+            }
+            OutputStream file = fileSystem.create(checkpointFileTmp);
+            OutputStream out = new BufferedOutputStream(file, IO_BUFFER_SIZE);
+            try {
+                header.writeTo(out);
+                checkpoint.records.writeTo(out);
+                if (durable()) {
+                    out.flush();
+                    fileSystem.sync(file);
+                }
+            } finally {
+                out.close();
+            }
+            if (!fileSystem.rename(checkpointFileTmp, checkpointFile)) {
+                deleteIfExists(checkpointFileTmp);
+            }
+        }
+    }
+
+    private void deleteIfExists(File file) throws IOException {
+//        try {
+//            Libcore.os.remove(file.getPath());
+//        } catch (ErrnoException errnoException) {
+//            if (errnoException.errno != OsConstants.ENOENT) {
+//                throw errnoException.rethrowAsIOException();
+//            }
+//        }
+        if (fileSystem.exists(file) && !fileSystem.delete(file)) {
+            throw new IOException();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist, is not currently readable or has expired. If a value is returned,
+     * it is moved to the head of the LRU queue.
+     */
+    public synchronized Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        lockShared();
+        try {
+            return snapshot(key);
+        } finally {
+            unlockShared();
+        }
+    }
+
+    /**
+     * Returns snapshots of the readable entries among {@code keys}, in the
+     * order of {@code keys}; the others are left out. This takes the cache
+     * lock once and journals all reads in a single append, which makes it
+     * cheaper than calling {@link #get} for every key.
+     */
+    public synchronized Map<String, Snapshot> getAll(Collection<String> keys)
+            throws IOException {
+        checkNotClosed();
+        for (String key : keys) {
+            validateKey(key);
+        }
+        Map<String, Snapshot> result = new LinkedHashMap<String, Snapshot>();
+        lockShared();
+        try {
+            beginBatch();
+            try {
+                for (String key : keys) {
+                    if (!result.containsKey(key)) {
+                        Snapshot snapshot = snapshot(key);
+                        if (snapshot != null) {
+                            result.put(key, snapshot);
+                        }
+                    }
+                }
+            } finally {
+                endBatch();
+            }
+        } catch (IOException e) {
+            for (Snapshot snapshot : result.values()) {
+                snapshot.close();
+            }
+            throw e;
+        } finally {
+            unlockShared();
+        }
+        return result;
+    }
+
+    private Snapshot snapshot(String key) throws IOException {
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (!entry.readable) {
+            return null;
+        }
+
+        if (isExpired(entry, System.currentTimeMillis())) {
+            if (liveKeys == null) {
+                submitSweep();
+            }
+            return null;
+        }
+
+        /*
+         * Open all streams eagerly to guarantee that we see a single published
+         * snapshot. If we opened streams lazily then the streams could come
+         * from different edits.
+         */
+        InputStream[] ins = new InputStream[valueCount];
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                ins[i] = openValue(entry, key, i);
+            }
+        } catch (FileNotFoundException e) {
+            // a file must have been deleted manually!
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
+            return null;
+        }
+
+        lruEntries.touch(key);
+        policy.recordAccess(key);
+        if (journalRead()) {
+            journalAppend(DiskLruJournal.OP_READ, key, null);
+        } else {
+            unjournaledReads++;
+        }
+        if (journalRebuildRequired() || checkpointRequired()) {
+            submitCleanup();
+        }
+
+        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths.clone());
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress.
+     */
+    public Editor edit(String key) throws IOException {
+        return edit(key, ANY_SEQUENCE_NUMBER);
+    }
+
+    /**
+     * Returns a future for the entry named {@code key} as the edit in
+     * progress leaves it: a snapshot of the values it committed, or of the
+     * entry as it was if it was aborted or suspended. The snapshot is null if
+     * the entry isn't readable then. Without an edit in progress the future
+     * is done right away and holds what {@link #get} returns.
+     *
+     * <p>This lets a caller that lost the race for {@link #edit} use the
+     * winner's values instead of writing them again. The caller must close
+     * the snapshot; cancelling the future releases it.
+     */
+    public synchronized Future<Snapshot> awaitEdit(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        lockShared();
+        try {
+            Entry entry = lruEntries.get(key);
+            if (entry != null && processLock != null && endDeadEdit(entry)) {
+                entry = lruEntries.get(key);
+            }
+            EditFuture future = new EditFuture();
+            if (entry == null || entry.currentEditor == null) {
+                future.complete(snapshot(key));
+            } else {
+                Editor editor = entry.currentEditor;
+                if (editor.waiters == null) {
+                    editor.waiters = new ArrayList<EditFuture>();
+                }
+                editor.waiters.add(future);
+                future.editor = editor;
+            }
+            return future;
+        } finally {
+            unlockShared();
+        }
+    }
+
+    /**
+     * Completes the futures waiting for the edit of {@code key} by
+     * {@code editor}, which has just ended. Must be called with the cache
+     * lock held.
+     */
+    private void completeWaiters(Editor editor, String key) {
+        List<EditFuture> waiters = editor.waiters;
+        if (waiters == null) {
+            return;
+        }
+        editor.waiters = null;
+        for (EditFuture waiter : waiters) {
+            Snapshot snapshot = null;
+            if (!editor.failedCommit) {
+                try {
+                    snapshot = snapshot(key);
+                } catch (IOException e) {
+                    // a miss, as for get()
+                }
+            }
+            waiter.complete(snapshot);
+        }
+    }
+
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
+        Editor editor;
+        JournalAppender appender;
+        long dirtySeq;
+        synchronized (this) {
+            checkNotClosed();
+            validateKey(key);
+            lockShared();
+            try {
+                Entry entry = lruEntries.get(key);
+                if (entry != null && processLock != null && endDeadEdit(entry)) {
+                    entry = lruEntries.get(key);
+                }
+                if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                        && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                    return null; // snapshot is stale
+                }
+                if (entry != null && entry.currentEditor != null) {
+                    return null; // another edit is in progress
+                }
+                editor = startEdit(key, entry);
+                dirtySeq = journalAppend(DiskLruJournal.OP_DIRTY, key, null);
+                appender = journalWriter;
+            } finally {
+                unlockShared();
+            }
+        }
 
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        try {
+            appender.awaitFlushed(dirtySeq);
+        } catch (IOException e) {
+            abortUnreturned(Collections.singletonList(editor));
+            throw e;
+        }
+        return editor;
+    }
+
+    /**
+     * Returns a batch editor for the entries named {@code keys}, or null if
+     * any of them is being edited already. This takes the cache lock once and
+     * journals the start of all edits in a single append.
+     */
+    public BatchEditor editAll(Collection<String> keys) throws IOException {
+        List<Editor> editors = new ArrayList<Editor>();
+        JournalAppender appender;
+        long dirtySeq;
+        synchronized (this) {
+            checkNotClosed();
+            for (String key : keys) {
+                validateKey(key);
+            }
+            lockShared();
+            try {
+                for (String key : keys) {
+                    Entry entry = lruEntries.get(key);
+                    if (entry != null && processLock != null) {
+                        endDeadEdit(entry);
+                    }
+                    if (entry != null && entry.currentEditor != null) {
+                        return null; // another edit is in progress
+                    }
+                }
+                beginBatch();
+                try {
+                    for (String key : new LinkedHashSet<String>(keys)) {
+                        editors.add(startEdit(key, lruEntries.get(key)));
+                        journalAppend(DiskLruJournal.OP_DIRTY, key, null);
+                    }
+                } finally {
+                    dirtySeq = endBatch();
+                }
+                appender = journalWriter;
+            } finally {
+                unlockShared();
+            }
+        }
+
+        // flush the journal before creating files to prevent file leaks
+        if (dirtySeq != -1) {
+            try {
+                appender.awaitFlushed(dirtySeq);
+            } catch (IOException e) {
+                abortUnreturned(editors);
+                throw e;
+            }
+        }
+        return new BatchEditor(editors);
+    }
+
+    /**
+     * Aborts {@code editors}, whose DIRTY records could not be written, so
+     * that their keys aren't kept locked by editors that no caller has.
+     */
+    private void abortUnreturned(List<Editor> editors) throws IOException {
+        try {
+            completeAll(editors, false);
+        } catch (IllegalStateException e) {
+            // the cache was closed meanwhile, which ended the edits
+        }
+    }
+
+    /**
+     * Creates the editor of {@code key}, whose entry is {@code entry} or null
+     * if there is none yet. Must be called with the cache lock held.
+     */
+    private Editor startEdit(String key, Entry entry) {
+        if (entry == null) {
+            entry = new Entry();
+            entry.partial = takePartial(key);
+            lruEntries.put(key, entry);
+        }
+        Editor editor = new Editor(entry, key);
+        entry.currentEditor = editor;
         return editor;
     }
 
     /**
-     * Returns the directory where this cache stores its data.
+     * Returns the directory where this cache stores its data.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data.
+     */
+    public synchronized long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of bytes this cache should use to store its
+     * data. If the cache is now too large, entries are evicted in batches on
+     * the background thread, so this returns right away. A cache with a
+     * {@link Options#sizePolicy} sets this itself.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        checkNotClosed();
+        this.maxSize = maxSize;
+        policy.setMaxSize(maxSize);
+        if (size + partialSize > maxSize) {
+            submitTrim();
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently being used to store the values in
+     * this cache. This may be greater than the max size if a background
+     * deletion is pending.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+        lockShared();
+        try {
+            Entry entry = editor.entry;
+            String key = editor.key;
+            if (entry.currentEditor != editor) {
+                editor.releasePacked();
+                throw new IllegalStateException();
+            }
+
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !entry.readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (editor.packedLocation(i) == 0
+                            && !fileSystem.exists(entry.getDirtyFile(key, i))) {
+                        editor.abort();
+                        throw new IllegalStateException("edit didn't create file " + i);
+                    }
+                }
+            }
+
+            for (int i = 0; i < valueCount; i++) {
+                long location = editor.packedLocation(i);
+                if (success && location != 0) {
+                    if (entry.readable) {
+                        deleteValue(entry, key, i);
+                    }
+                    if (entry.locations == null) {
+                        entry.locations = new long[valueCount];
+                    }
+                    long newLength = editor.packedLength(i);
+                    entry.locations[i] = location;
+                    size = size - entry.lengths[i] + newLength;
+                    entry.lengths[i] = newLength;
+                    continue;
+                }
+                File dirty = entry.getDirtyFile(key, i);
+                if (success) {
+                    if (fileSystem.exists(dirty)) {
+                        if (entry.locations != null && entry.locations[i] != 0) {
+                            deleteValue(entry, key, i);
+                        }
+                        File clean = entry.getCleanFile(key, i);
+                        fileSystem.rename(dirty, clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = fileSystem.size(clean);
+                        entry.lengths[i] = newLength;
+                        size = size - oldLength + newLength;
+                        if (options.durability == Durability.BATCHED) {
+                            synchronized (unsyncedFiles) {
+                                unsyncedFiles.add(clean);
+                            }
+                        }
+                    }
+                } else {
+                    deleteIfExists(dirty);
+                }
+            }
+            if (!success) {
+                editor.releasePacked();
+            }
+
+            entry.currentEditor = null;
+            entry.partial = null;
+            if (entry.readable | success) {
+                entry.readable = true;
+                if (success) {
+                    entry.expiresAt = editor.expiresAt();
+                    if (editor.tags != null) {
+                        setTags(entry, key, editor.tags.length > 0 ? editor.tags : null);
+                    }
+                }
+                journalClean(entry, key);
+                // queued again after an abort too, as the sweeper skips entries being edited
+                scheduleExpiry(entry, key);
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber++;
+                    lruEntries.touch(key);
+                    policy.recordWrite(key, entry.weight());
+                    checkSizePolicy();
+                }
+            } else {
+                lruEntries.remove(key);
+                journalAppend(DiskLruJournal.OP_REMOVE, key, null);
+            }
+
+            completeWaiters(editor, key);
+
+            if (size + partialSize > maxSize || journalRebuildRequired() || checkpointRequired()
+                    || packCompactionRequired()) {
+                submitCleanup();
+            }
+        } finally {
+            unlockShared();
+        }
+    }
+
+    /**
+     * Ends the edit of {@code editor} without publishing it, keeping what it
+     * wrote as partial values if it was creating the entry. Otherwise this is
+     * the same as aborting it.
+     */
+    private synchronized void suspendEdit(Editor editor) throws IOException {
+        lockShared();
+        try {
+            Entry entry = editor.entry;
+            if (entry.currentEditor != editor) {
+                throw new IllegalStateException();
+            }
+            Partial partial = null;
+            if (!entry.readable && keepPartials()) {
+                // an editor that hasn't written anything leaves the previous partial
+                // values as they are
+                partial = editor.written != null ? editor.progress() : entry.partial;
+            }
+            if (partial == null || partial.weight() == 0) {
+                completeEdit(editor, false);
+                return;
+            }
+            String key = editor.key;
+            for (int i = 0; i < valueCount; i++) {
+                if (partial.lengths[i] == 0) {
+                    deleteIfExists(entry.getDirtyFile(key, i));
+                }
+            }
+            entry.currentEditor = null;
+            entry.partial = null;
+            lruEntries.remove(key);
+            journalAppend(DiskLruJournal.OP_PARTIAL, key, partial.values());
+            addPartial(key, partial);
+            completeWaiters(editor, key);
+
+            if (size + partialSize > maxSize || journalRebuildRequired() || checkpointRequired()) {
+                submitCleanup();
+            }
+        } finally {
+            unlockShared();
+        }
+    }
+
+    /**
+     * Commits or aborts all of {@code editors} with a single lock
+     * acquisition. Editors that failed are handled as Editor.commit() does.
+     * Those that were completed on their own are skipped.
      */
-    public File getDirectory() {
-        return directory;
+    private void completeAll(List<Editor> editors, boolean success) throws IOException {
+        if (success) {
+            for (Editor editor : editors) {
+                if (!editor.hasErrors) {
+                    editor.packValues();
+                    editor.syncValues();
+                }
+            }
+        }
+        synchronized (this) {
+            lockShared();
+            try {
+                if (success) {
+                    // check every new entry first, so that nothing is published if one
+                    // is incomplete
+                    for (Editor editor : editors) {
+                        Entry entry = editor.entry;
+                        if (entry.currentEditor != editor || editor.hasErrors || entry.readable) {
+                            continue;
+                        }
+                        for (int i = 0; i < valueCount; i++) {
+                            if (editor.packedLocation(i) == 0
+                                    && !fileSystem.exists(entry.getDirtyFile(editor.key, i))) {
+                                completeAll(editors, false);
+                                throw new IllegalStateException("edit of " + editor.key
+                                        + " didn't create file " + i);
+                            }
+                        }
+                    }
+                }
+                beginBatch();
+                try {
+                    for (Editor editor : editors) {
+                        if (editor.entry.currentEditor != editor) {
+                            continue;
+                        }
+                        if (success && editor.hasErrors) {
+                            editor.failedCommit = true;
+                            completeEdit(editor, false);
+                            remove(editor.key); // the previous entry is stale
+                        } else {
+                            completeEdit(editor, success);
+                        }
+                    }
+                } finally {
+                    endBatch();
+                }
+            } finally {
+                unlockShared();
+            }
+        }
+        if (success && !editors.isEmpty()) {
+            editors.get(0).syncJournal();
+        }
     }
 
     /**
-     * Returns the maximum number of bytes that this cache should use to store
-     * its data.
+     * We compact a pack segment once its live ratio has dropped below
+     * Options.packMinLiveRatio, but only once the index is complete.
      */
-    public long maxSize() {
-        return maxSize;
+    private boolean packCompactionRequired() {
+        return liveKeys == null && pack.compactionRequired();
     }
 
     /**
-     * Returns the number of bytes currently being used to store the values in
-     * this cache. This may be greater than the max size if a background
-     * deletion is pending.
+     * We only compact the journal when that will at least halve its size and
+     * it has grown past COMPACT_MIN_BYTES. The size of the compacted journal
+     * is estimated from the live entry count and the last compaction. A
+     * shared journal that couldn't be compacted yet waits until it has grown
+     * by SHARED_COMPACTION_RETRY_BYTES. A shared journal that lost records
+     * after a failed write is compacted regardless of its size.
      */
-    public synchronized long size() {
-        return size;
-    }
-
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
-        Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
+    private boolean journalRebuildRequired() {
+        if (compacting || liveKeys != null) {
+            return false;
         }
-
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
-            for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file " + i);
-                }
-            }
+        if (processLock != null && journalOffset < sharedCompactionRetryOffset) {
+            return false;
         }
-
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
-                }
-            } else {
-                deleteIfExists(dirty);
-            }
+        if (journalIncomplete) {
+            return true;
         }
+        long journalBytes = processLock != null ? journalOffset : journalWriter.length();
+        long bytesPerEntry = compactedBytesPerEntry > 0
+                ? compactedBytesPerEntry : 17 + 2 * valueCount;
+        return journalBytes >= COMPACT_MIN_BYTES
+                && journalBytes >= COMPACT_GROWTH_FACTOR * bytesPerEntry * lruEntries.size();
+    }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
-            }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
-        }
+    /**
+     * Returns the name of the eviction policy this cache uses, see
+     * {@link EvictionPolicy}.
+     */
+    public synchronized String evictionPolicy() {
+        return policy.name();
+    }
 
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
-        }
+    /**
+     * Returns the number of journal compactions since the cache was opened.
+     */
+    public synchronized int compactionCount() {
+        return compactionCount;
     }
 
     /**
-     * We only rebuild the journal when it will halve the size of the journal
-     * and eliminate at least 2000 ops.
+     * Returns how long the most recent journal compaction held the cache
+     * lock, and so paused other callers, in nanoseconds.
      */
-    private boolean journalRebuildRequired() {
-        final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+    public synchronized long lastCompactionPauseNanos() {
+        return lastCompactionPauseNanos;
+    }
+
+    /**
+     * Returns how long all journal compactions since the cache was opened
+     * held the cache lock, in nanoseconds.
+     */
+    public synchronized long totalCompactionPauseNanos() {
+        return totalCompactionPauseNanos;
     }
 
     /**
@@ -629,6 +3450,16 @@ public final class DiskLruCache implements Closeable {
      * @return true if an entry was removed.
      */
     public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        lockShared();
+        try {
+            return remove(key, RemovalCause.EXPLICIT);
+        } finally {
+            unlockShared();
+        }
+    }
+
+    private boolean remove(String key, RemovalCause cause) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -636,26 +3467,99 @@ public final class DiskLruCache implements Closeable {
             return false;
         }
 
+        if (entry.readable) {
+            reportRemoval(key, entry.weight(), cause, removalValue(entry, key));
+        }
         for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+            if (!deleteValue(entry, key, i)) {
+                throw new IOException("failed to delete " + entry.getCleanFile(key, i));
             }
             size -= entry.lengths[i];
             entry.lengths[i] = 0;
         }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journalAppend(DiskLruJournal.OP_REMOVE, key, null);
+        setTags(entry, key, null);
         lruEntries.remove(key);
+        policy.recordRemoval(key);
 
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        if (journalRebuildRequired() || checkpointRequired() || packCompactionRequired()) {
+            submitCleanup();
         }
 
         return true;
     }
 
+    /**
+     * Drops the entries tagged with {@code tag}, see {@link Editor#setTags},
+     * in a single pass that journals all removals in one append. Entries that
+     * are being edited are skipped, like {@link #remove} does; they leave the
+     * group if their edit sets other tags.
+     *
+     * @return the number of entries removed.
+     */
+    public synchronized int removeGroup(String tag) throws IOException {
+        lockShared();
+        try {
+            checkNotClosed();
+            Set<String> keys = groups.get(tag);
+            if (keys == null) {
+                return 0;
+            }
+            int removed = 0;
+            beginBatch();
+            try {
+                for (String key : new ArrayList<String>(keys)) {
+                    if (remove(key, RemovalCause.EXPLICIT)) {
+                        removed++;
+                    }
+                }
+            } finally {
+                endBatch();
+            }
+            return removed;
+        } finally {
+            unlockShared();
+        }
+    }
+
+    /** Returns the keys of the readable entries tagged with {@code tag}. */
+    public synchronized Set<String> groupKeys(String tag) {
+        checkNotClosed();
+        Set<String> keys = groups.get(tag);
+        return keys != null ? new HashSet<String>(keys) : new HashSet<String>();
+    }
+
+    /** Queues a removal for the eviction listener, if there is one. */
+    private void reportRemoval(String key, long size, RemovalCause cause, String value) {
+        if (options.evictionListener == null) {
+            return;
+        }
+        if (pendingRemovals == null) {
+            pendingRemovals = new ArrayList<Removal>();
+            listenerExecutor.submit(deliverRemovalsCallable);
+        }
+        pendingRemovals.add(new Removal(key, size, cause, value));
+    }
+
+    /**
+     * Returns the value of {@code entry}, whose key is {@code key} and which
+     * is about to be removed, at {@link Options#removalValueIndex}, or null
+     * if there is none.
+     */
+    private String removalValue(Entry entry, String key) {
+        int index = options.removalValueIndex;
+        if (index == -1 || options.evictionListener == null
+                || entry.lengths[index] > MAX_REMOVAL_VALUE_LENGTH) {
+            return null;
+        }
+        try {
+            return inputStreamToString(openValue(entry, key, index));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     /**
      * Returns true if this cache has been closed.
      */
@@ -670,12 +3574,22 @@ public final class DiskLruCache implements Closeable {
     }
 
     /**
-     * Force buffered operations to the filesystem.
+     * Force buffered operations to the filesystem, and to the device unless
+     * the cache's durability is {@link Durability#NONE}.
      */
-    public synchronized void flush() throws IOException {
-        checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+    public void flush() throws IOException {
+        JournalAppender appender;
+        synchronized (this) {
+            checkNotClosed();
+            lockShared();
+            try {
+                trimToSize();
+            } finally {
+                unlockShared();
+            }
+            appender = journalWriter;
+        }
+        appender.sync();
     }
 
     /**
@@ -685,32 +3599,173 @@ public final class DiskLruCache implements Closeable {
         if (journalWriter == null) {
             return; // already closed
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+        lockShared();
+        try {
+            List<Editor> editors = new ArrayList<Editor>();
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null && entry.currentEditor.owner == null) {
+                    editors.add(entry.currentEditor);
+                }
             }
+            for (Editor editor : editors) {
+                editor.suspend();
+            }
+            trimToSize();
+        } finally {
+            unlockShared();
+        }
+        JournalAppender appender = journalWriter;
+        Checkpoint checkpoint = null;
+        if ((recordsSinceCheckpoint > 0 || unjournaledReads > 0) && liveKeys == null
+                && processLock == null) {
+            // the next open() will only have to load this checkpoint
+            checkpoint = snapshotCheckpoint();
         }
-        trimToSize();
-        journalWriter.close();
         journalWriter = null;
+        pack.close();
+        appender.close();
+        if (processLock != null) {
+            processLock.close();
+        }
+        if (checkpoint != null) {
+            writeCheckpoint(appender, checkpoint);
+        }
     }
 
+    /**
+     * Evicts the entries picked by the eviction policy until the cache fits
+     * in maxSize. Kept partial values go first, oldest first, then expired
+     * entries. Entries that
+     * are being edited can't be removed; they are handed back to the policy,
+     * and we give up once every entry has been tried.
+     */
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        trimToSize(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #trimToSize()}, but stops after {@code limit} removals.
+     * Returns true if it stopped early because of that.
+     */
+    private boolean trimToSize(int limit) throws IOException {
+        int removals = 0;
+        while (size + partialSize > maxSize && !partials.isEmpty()) {
+            if (removals++ == limit) {
+                return true;
+            }
+            discardPartial(partials.keySet().iterator().next());
+        }
+        if (liveKeys == null) {
+            long now = System.currentTimeMillis();
+            while (size > maxSize && expiredEntriesPending(now)) {
+                if (removals++ == limit) {
+                    return true;
+                }
+                removeExpired(now, 1);
+            }
+        }
+        int skipped = 0;
+        while (size > maxSize && skipped <= lruEntries.size()) {
+            if (removals == limit) {
+                return true;
+            }
+            String key = policy.victim();
+            if (key == null) {
+                break;
+            }
+            if (remove(key, RemovalCause.CAPACITY)) {
+                removals++;
+            } else {
+                Entry entry = lruEntries.get(key);
+                if (entry != null && entry.readable) {
+                    policy.recordWrite(key, entry.weight());
+                } else {
+                    lruEntries.touch(key); // being created; LRU finds it in the index again
+                }
+                skipped++;
+            }
         }
+        return false;
     }
 
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
-     * the cache.
+     * the cache. With {@link Options#multiProcess} the entries are removed
+     * instead, for every process, and the files of edits in progress and
+     * the directory are left to the processes still using them.
      */
     public void delete() throws IOException {
+        if (processLock != null) {
+            deleteShared();
+            return;
+        }
+        synchronized (this) {
+            if (journalWriter != null) {
+                for (EntryIndex<Entry>.Cursor c = lruEntries.cursor(); c.hasNext(); ) {
+                    Entry entry = c.next();
+                    if (entry.readable) {
+                        String key = c.key();
+                        reportRemoval(key, entry.weight(), RemovalCause.CLEARED,
+                                removalValue(entry, key));
+                    }
+                }
+            }
+            close();
+        }
+        deleteContents(fileSystem, directory);
+    }
+
+    private synchronized void deleteShared() throws IOException {
+        if (journalWriter == null) {
+            return;
+        }
+        lockShared();
+        try {
+            beginBatch();
+            try {
+                removeAll();
+            } finally {
+                endBatch();
+            }
+        } finally {
+            unlockShared();
+        }
         close();
-        deleteContents(directory);
+    }
+
+    /**
+     * Removes every entry that isn't being edited and the values kept by
+     * suspended edits, and leaves the cache open. The removals are reported
+     * with {@link RemovalCause#CLEARED}.
+     */
+    public synchronized void evictAll() throws IOException {
+        checkNotClosed();
+        lockShared();
+        try {
+            beginBatch();
+            try {
+                removeAll();
+            } finally {
+                endBatch();
+            }
+        } finally {
+            unlockShared();
+        }
+    }
+
+    private void removeAll() throws IOException {
+        List<String> keys = new ArrayList<String>(lruEntries.size());
+        for (EntryIndex<Entry>.Cursor c = lruEntries.cursor(); c.hasNext(); ) {
+            c.next();
+            keys.add(c.key());
+        }
+        for (String key : keys) {
+            remove(key, RemovalCause.CLEARED);
+        }
+        for (String key : new ArrayList<String>(partials.keySet())) {
+            discardPartial(key);
+        }
     }
 
     private void validateKey(String key) {
@@ -724,6 +3779,97 @@ public final class DiskLruCache implements Closeable {
         return readFully(new InputStreamReader(in, UTF_8));
     }
 
+    /**
+     * The outcome of an edit in progress, see {@link #awaitEdit}.
+     */
+    private final class EditFuture implements Future<Snapshot> {
+        /** The edit waited for, or null if there was none. Guarded by the cache. */
+        private Editor editor;
+        /** Guarded by this. */
+        private boolean done;
+        private boolean cancelled;
+        private Snapshot snapshot;
+
+        private synchronized void complete(Snapshot snapshot) {
+            if (cancelled) {
+                closeQuietly(snapshot);
+                return;
+            }
+            this.snapshot = snapshot;
+            done = true;
+            notifyAll();
+        }
+
+        @Override public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (DiskLruCache.this) {
+                synchronized (this) {
+                    if (done) {
+                        return false;
+                    }
+                    cancelled = true;
+                    done = true;
+                    if (editor != null && editor.waiters != null) {
+                        editor.waiters.remove(this);
+                    }
+                    notifyAll();
+                    return true;
+                }
+            }
+        }
+
+        @Override public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override public synchronized boolean isDone() {
+            return done;
+        }
+
+        /*
+         * An edit of another process ends without this process being told,
+         * so a shared cache is polled every SHARED_POLL_NANOS. That happens
+         * outside of this future's lock, which comes after the cache lock.
+         */
+
+        @Override public Snapshot get() throws InterruptedException {
+            while (!await(processLock != null ? SHARED_POLL_NANOS : Long.MAX_VALUE)) {
+                pollSharedEdit(this);
+            }
+            return result();
+        }
+
+        @Override public Snapshot get(long timeout, TimeUnit unit)
+                throws InterruptedException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                long remaining = deadline - System.nanoTime();
+                if (await(processLock != null
+                        ? Math.min(remaining, SHARED_POLL_NANOS) : remaining)) {
+                    return result();
+                }
+                if (deadline - System.nanoTime() <= 0) {
+                    throw new TimeoutException();
+                }
+                pollSharedEdit(this);
+            }
+        }
+
+        /** Waits up to {@code nanos} for the edit to end. Returns true if it has. */
+        private synchronized boolean await(long nanos) throws InterruptedException {
+            if (!done && nanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+            }
+            return done;
+        }
+
+        private synchronized Snapshot result() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            return snapshot;
+        }
+    }
+
     /**
      * A snapshot of the values for an entry.
      */
@@ -731,40 +3877,170 @@ public final class DiskLruCache implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final long[] lengths;
+        /** Guarded by this. Mappings handed out by map(), by index. */
+        private ByteBuffer[] mappings;
+        private boolean closed;
+
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
+            this.key = key;
+            this.sequenceNumber = sequenceNumber;
+            this.ins = ins;
+            this.lengths = lengths;
+        }
+
+        /**
+         * Returns an editor for this snapshot's entry, or null if either the
+         * entry has changed since this snapshot was created or if another edit
+         * is in progress.
+         */
+        public Editor edit() throws IOException {
+            return DiskLruCache.this.edit(key, sequenceNumber);
+        }
+
+        /**
+         * Returns the unbuffered stream with the value for {@code index}.
+         */
+        public InputStream getInputStream(int index) {
+            return ins[index];
+        }
+
+        /**
+         * Returns the string value for {@code index}.
+         */
+        public String getString(int index) throws IOException {
+            return inputStreamToString(getInputStream(index));
+        }
+
+        /**
+         * Returns the length in bytes of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * Returns the channel of the file that holds the value for
+         * {@code index}, or null if the value is empty and stored without a
+         * file or if the cache's file system doesn't keep it on disk. Small values may share a file with others: the value is the
+         * {@link #getLength} bytes starting at {@link #getOffset}, and nothing
+         * outside that range may be relied on. The channel shares its position
+         * with {@link #getInputStream}, so use positional reads or only one of
+         * the two. It is closed with this snapshot.
+         */
+        public FileChannel getChannel(int index) {
+            InputStream in = ins[index];
+            if (in instanceof FileInputStream) {
+                return ((FileInputStream) in).getChannel();
+            } else if (in instanceof PackStore.ValueInputStream) {
+                return ((PackStore.ValueInputStream) in).channel();
+            }
+            return null;
+        }
+
+        /**
+         * Returns the offset of the value for {@code index} in the file of
+         * {@link #getChannel}.
+         */
+        public long getOffset(int index) {
+            InputStream in = ins[index];
+            return in instanceof PackStore.ValueInputStream
+                    ? ((PackStore.ValueInputStream) in).offset()
+                    : 0;
+        }
+
+        /**
+         * Returns a read-only buffer of the value for {@code index}, memory
+         * mapped from its file so it can be read without copying. Repeated
+         * calls return the same mapping. The mapping is released when this
+         * snapshot is closed; the buffer must not be used after that. Values
+         * that are not on disk, see {@link #getChannel}, are read into the
+         * heap from {@link #getInputStream} instead, which leaves that stream
+         * at its end.
+         */
+        public synchronized ByteBuffer map(int index) throws IOException {
+            if (closed) {
+                throw new IllegalStateException("snapshot is closed");
+            }
+            if (mappings == null) {
+                mappings = new ByteBuffer[ins.length];
+            }
+            if (mappings[index] == null) {
+                FileChannel channel = getChannel(index);
+                if (lengths[index] == 0) {
+                    mappings[index] = ByteBuffer.allocate(0).asReadOnlyBuffer();
+                } else if (channel == null) {
+                    byte[] value = new byte[(int) lengths[index]];
+                    readFully(ins[index], value, value.length);
+                    mappings[index] = ByteBuffer.wrap(value).asReadOnlyBuffer();
+                } else {
+                    mappings[index] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            getOffset(index), lengths[index]);
+                }
+            }
+            return mappings[index].duplicate();
+        }
+
+        @Override public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (mappings != null) {
+                    for (ByteBuffer mapping : mappings) {
+                        if (mapping instanceof MappedByteBuffer) {
+                            unmap((MappedByteBuffer) mapping);
+                        }
+                    }
+                    mappings = null;
+                }
+            }
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * Edits the values of several entries and publishes them together.
+     */
+    public final class BatchEditor {
+        private final List<Editor> editors;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
-            this.key = key;
-            this.sequenceNumber = sequenceNumber;
-            this.ins = ins;
+        private BatchEditor(List<Editor> editors) {
+            this.editors = editors;
         }
 
         /**
-         * Returns an editor for this snapshot's entry, or null if either the
-         * entry has changed since this snapshot was created or if another edit
-         * is in progress.
+         * Returns the editor of the entry named {@code key}. Write its values
+         * as usual, but commit or abort the batch instead of the editor.
+         *
+         * @throws IllegalArgumentException if {@code key} is not in the batch
          */
-        public Editor edit() throws IOException {
-            return DiskLruCache.this.edit(key, sequenceNumber);
+        public Editor getEditor(String key) {
+            for (Editor editor : editors) {
+                if (editor.key.equals(key)) {
+                    return editor;
+                }
+            }
+            throw new IllegalArgumentException("not in this batch: " + key);
         }
 
         /**
-         * Returns the unbuffered stream with the value for {@code index}.
+         * Commits every edit of the batch so they become visible to readers
+         * at once. The journal records them as a unit, so after a crash
+         * either all or none of them are published.
          */
-        public InputStream getInputStream(int index) {
-            return ins[index];
+        public void commit() throws IOException {
+            completeAll(editors, true);
         }
 
         /**
-         * Returns the string value for {@code index}.
+         * Aborts every edit of the batch.
          */
-        public String getString(int index) throws IOException {
-            return inputStreamToString(getInputStream(index));
-        }
-
-        @Override public void close() {
-            for (InputStream in : ins) {
-                closeQuietly(in);
-            }
+        public void abort() throws IOException {
+            completeAll(editors, false);
         }
     }
 
@@ -773,10 +4049,37 @@ public final class DiskLruCache implements Closeable {
      */
     public final class Editor {
         private final Entry entry;
+        private final String key;
         private boolean hasErrors;
+        /** Streams of the values that may go to the pack store, by index. */
+        private PackingOutputStream[] packing;
+        /** Where commit() appended the buffered values, 0 for the others. */
+        private long[] packed;
+        /** Bytes written to each dirty file, if partial values are kept; or null. */
+        private long[] written;
+        /** CRC32 of the bytes written to each dirty file, null for values not tracked. */
+        private CRC32[] checksums;
+        /** Bytes written since the progress was last journaled. */
+        private long unjournaled;
+        /** Values whose next stream continues what resume() kept. */
+        private boolean[] resumed;
+        /** The expiry time set by setExpiresAt(), or -1 to use the default. */
+        private long expiresAt = -1;
+        /** The tags set by setTags(), or null to keep the entry's. */
+        private String[] tags;
+        /** Futures waiting for this edit to end, or null. Guarded by the cache. */
+        private List<EditFuture> waiters;
+        /** True if commit() failed, which leaves the waiters without an entry. */
+        private boolean failedCommit;
+        /**
+         * The process that is editing, if it is another one; only the journal
+         * tells about those edits. "" if the journal doesn't name it.
+         */
+        private String owner;
 
-        private Editor(Entry entry) {
+        private Editor(Entry entry, String key) {
             this.entry = entry;
+            this.key = key;
         }
 
         /**
@@ -791,7 +4094,7 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
+                return openValue(entry, key, index);
             }
         }
 
@@ -812,11 +4115,69 @@ public final class DiskLruCache implements Closeable {
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
+            return new FaultHidingOutputStream(newSink(index), index);
+        }
+
+        /**
+         * Returns a new unbuffered channel to write the value at
+         * {@code index}. Like the streams of {@link #newOutputStream}, the
+         * channel doesn't throw when writing fails; {@link #commit} discards
+         * the edit instead. The value is complete once the channel is closed.
+         */
+        public WritableByteChannel newChannel(int index) throws IOException {
+            return new FaultHidingChannel(newSink(index), index);
+        }
+
+        /**
+         * Writes everything that is left in {@code src} as the value at
+         * {@code index} and returns the number of bytes written. A file
+         * channel is copied by the operating system; any other channel is
+         * read into a pooled direct buffer, and must be in blocking mode.
+         * Failures to write the value are hidden as with
+         * {@link #newOutputStream}, but failures to read {@code src} are
+         * thrown. Either way the value is incomplete, so {@link #commit}
+         * discards the edit.
+         */
+        public long transferFrom(int index, ReadableByteChannel src) throws IOException {
+            FaultHidingChannel sink = new FaultHidingChannel(newSink(index), index);
+            try {
+                return sink.transferFrom(src);
+            } catch (IOException e) {
+                hasErrors = true;
+                throw e;
+            } finally {
+                sink.close();
+            }
+        }
+
+        /**
+         * Opens where the value at {@code index} is written to: the dirty
+         * file, or a PackingOutputStream if values may be packed.
+         */
+        private OutputStream newSink(int index) throws IOException {
             synchronized (DiskLruCache.this) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+                if (options.packedValueMaxSize <= 0) {
+                    boolean append = resumed != null && resumed[index];
+                    OutputStream out = openDirtyFile(entry.getDirtyFile(key, index), append);
+                    if (append) {
+                        resumed[index] = false;
+                    } else if (keepPartials() && !entry.readable) {
+                        startTracking();
+                        written[index] = 0;
+                        checksums[index] = new CRC32();
+                    }
+                    return out;
+                }
+                if (packing == null) {
+                    packing = new PackingOutputStream[valueCount];
+                } else if (packing[index] != null && packing[index].file != null) {
+                    deleteIfExists(entry.getDirtyFile(key, index)); // written by an earlier stream
+                }
+                packing[index] = new PackingOutputStream(index, options.packedValueMaxSize);
+                return packing[index];
             }
         }
 
@@ -833,16 +4194,290 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Sets the value at {@code index} to the remaining bytes of
+         * {@code value}.
+         */
+        public void set(int index, ByteBuffer value) throws IOException {
+            WritableByteChannel channel = newChannel(index);
+            try {
+                channel.write(value);
+            } finally {
+                closeQuietly(channel);
+            }
+        }
+
+        /**
+         * Continues the value at {@code index} that an interrupted edit of
+         * this entry left behind, see {@link Options#keepPartialValues}. The
+         * kept bytes are verified against their journaled checksum; if they
+         * pass, the next stream or channel for {@code index} appends to them.
+         * Returns the number of bytes kept, or 0 if there is nothing to
+         * continue and the value starts out empty as usual.
+         */
+        public long resume(int index) throws IOException {
+            Partial partial;
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                partial = entry.partial;
+            }
+            if (partial == null || partial.lengths[index] == 0) {
+                return 0;
+            }
+            long length = partial.lengths[index];
+            CRC32 checksum = new CRC32();
+            File dirty = entry.getDirtyFile(key, index);
+            InputStream in = null;
+            try {
+                if (fileSystem.size(dirty) < length) {
+                    return 0;
+                }
+                in = fileSystem.open(dirty);
+                byte[] buffer = new byte[IO_BUFFER_SIZE];
+                for (long remaining = length; remaining > 0; ) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        return 0;
+                    }
+                    checksum.update(buffer, 0, read);
+                    remaining -= read;
+                }
+                if (checksum.getValue() != partial.checksums[index]) {
+                    return 0;
+                }
+                // drop what was written after the last journaled progress
+                fileSystem.truncate(dirty, length);
+            } catch (IOException e) {
+                return 0;
+            } finally {
+                closeQuietly(in);
+            }
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                startTracking();
+                written[index] = length;
+                checksums[index] = checksum;
+                if (resumed == null) {
+                    resumed = new boolean[valueCount];
+                }
+                resumed[index] = true;
+            }
+            return length;
+        }
+
+        /**
+         * Makes the next stream or channel for {@code index} start the value
+         * from the beginning after all, after {@link #resume} kept some of it.
+         */
+        public void restart(int index) {
+            synchronized (DiskLruCache.this) {
+                if (resumed != null) {
+                    resumed[index] = false;
+                }
+            }
+        }
+
+        /**
+         * Makes the entry expire at {@code timeMillis}, in the time base of
+         * {@link System#currentTimeMillis}, once this edit is committed. From
+         * then on reads miss it and it is removed in the background. Zero
+         * means it never expires. Without a call, the entry expires after
+         * {@link Options#defaultTimeToLiveMillis}, if that is set.
+         */
+        public void setExpiresAt(long timeMillis) {
+            if (timeMillis < 0) {
+                throw new IllegalArgumentException("timeMillis < 0");
+            }
+            synchronized (DiskLruCache.this) {
+                expiresAt = timeMillis;
+            }
+        }
+
+        /**
+         * Puts the entry in the groups named by {@code tags} once this edit
+         * is committed, replacing the groups it was in; no tags take it out
+         * of all of them. Without a call the entry stays in its groups. See
+         * {@link DiskLruCache#removeGroup}.
+         */
+        public void setTags(String... tags) {
+            Set<String> unique = new LinkedHashSet<String>();
+            for (String tag : tags) {
+                if (tag == null) {
+                    throw new NullPointerException("tag == null");
+                }
+                unique.add(tag);
+            }
+            synchronized (DiskLruCache.this) {
+                this.tags = unique.toArray(new String[unique.size()]);
+            }
+        }
+
+        /** Returns the expiry time the entry gets when this edit is committed. */
+        private long expiresAt() {
+            if (expiresAt != -1) {
+                return expiresAt;
+            }
+            long ttl = options.defaultTimeToLiveMillis;
+            return ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+        }
+
+        /**
+         * Ends this edit without publishing it, like {@link #abort}, but keeps
+         * what has been written so far so that a later edit can continue it
+         * with {@link #resume}. This only applies to new entries in caches
+         * with {@link Options#keepPartialValues}; other edits are aborted.
+         */
+        public void suspend() throws IOException {
+            suspendEdit(this);
+        }
+
+        private void startTracking() {
+            if (written == null) {
+                written = new long[valueCount];
+                checksums = new CRC32[valueCount];
+            }
+        }
+
+        private boolean tracked(int index) {
+            return checksums != null && checksums[index] != null;
+        }
+
+        /** Records that {@code oneByte} was appended to the dirty file of {@code index}. */
+        private void wrote(int index, int oneByte) {
+            if (tracked(index)) {
+                checksums[index].update(oneByte);
+                advance(index, 1);
+            }
+        }
+
+        /** Records that bytes were appended to the dirty file of {@code index}. */
+        private void wrote(int index, byte[] buffer, int offset, int length) {
+            if (tracked(index)) {
+                checksums[index].update(buffer, offset, length);
+                advance(index, length);
+            }
+        }
+
+        /** Records that the remaining bytes of {@code buffer} were appended. */
+        private void wrote(int index, ByteBuffer buffer) {
+            if (!tracked(index)) {
+                return;
+            }
+            if (buffer.hasArray()) {
+                wrote(index, buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                return;
+            }
+            byte[] chunk = new byte[Math.min(IO_BUFFER_SIZE, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int count = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, count);
+                wrote(index, chunk, 0, count);
+            }
+        }
+
+        private void advance(int index, long length) {
+            written[index] += length;
+            unjournaled += length;
+            if (unjournaled >= options.partialCheckpointBytes) {
+                unjournaled = 0;
+                journalProgress();
+            }
+        }
+
+        /**
+         * Journals how much has been written, so that it survives a crash;
+         * not in a shared journal, where a PARTIAL record ends the edit.
+         */
+        private void journalProgress() {
+            synchronized (DiskLruCache.this) {
+                Partial partial = progress();
+                if (entry.currentEditor != this || journalWriter == null || partial == null
+                        || processLock != null) {
+                    return;
+                }
+                entry.partial = partial;
+                journalAppend(DiskLruJournal.OP_PARTIAL, key, partial.values());
+            }
+        }
+
+        /**
+         * Returns how much of each value has been written, or null if that
+         * isn't tracked or a write has failed.
+         */
+        private Partial progress() {
+            if (written == null || hasErrors) {
+                return null;
+            }
+            long[] values = new long[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                values[i] = checksums[i] != null ? checksums[i].getValue() : 0;
+            }
+            return new Partial(written.clone(), values);
+        }
+
         /**
          * Commits this edit so it is visible to readers.  This releases the
          * edit lock so another edit may be started on the same key.
          */
         public void commit() throws IOException {
+            if (!hasErrors) {
+                packValues();
+                syncValues();
+            }
             if (hasErrors) {
-                completeEdit(this, false);
-                remove(entry.key); // the previous entry is stale
+                synchronized (DiskLruCache.this) {
+                    failedCommit = true;
+                    completeEdit(this, false);
+                    remove(key); // the previous entry is stale
+                }
             } else {
                 completeEdit(this, true);
+                syncJournal();
+            }
+        }
+
+        /**
+         * Syncs the values written to dirty files before they are published,
+         * if every commit is synced. Packed values are synced together with
+         * the journal.
+         */
+        private void syncValues() {
+            if (options.durability != Durability.PER_COMMIT) {
+                return;
+            }
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(key, i);
+                if (packedLocation(i) != 0 || !fileSystem.exists(dirty)) {
+                    continue;
+                }
+                try {
+                    fileSystem.sync(dirty);
+                } catch (IOException e) {
+                    hasErrors = true;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Waits until the journal and the values it refers to are synced, if
+         * every commit is synced.
+         */
+        private void syncJournal() throws IOException {
+            if (options.durability != Durability.PER_COMMIT) {
+                return;
+            }
+            JournalAppender appender;
+            synchronized (DiskLruCache.this) {
+                appender = journalWriter;
+            }
+            if (appender != null) {
+                appender.sync(); // else closing the cache synced it
             }
         }
 
@@ -854,14 +4489,238 @@ public final class DiskLruCache implements Closeable {
             completeEdit(this, false);
         }
 
+        /**
+         * Appends the values that are still buffered in memory to the pack
+         * store. This happens before the cache lock is taken to publish them.
+         */
+        private void packValues() {
+            if (packing == null) {
+                return;
+            }
+            packed = new long[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                PackingOutputStream stream = packing[i];
+                if (stream == null || stream.file != null) {
+                    continue;
+                }
+                try {
+                    packed[i] = pack.append(stream.bytes, 0, stream.count);
+                } catch (IOException e) {
+                    hasErrors = true;
+                    return;
+                }
+            }
+        }
+
+        private long packedLocation(int index) {
+            return packed != null ? packed[index] : 0;
+        }
+
+        private long packedLength(int index) {
+            return packing[index].count;
+        }
+
+        /** Releases the values packValues() appended, which won't be published. */
+        private void releasePacked() {
+            if (packed == null) {
+                return;
+            }
+            for (int i = 0; i < valueCount; i++) {
+                if (packed[i] != 0) {
+                    pack.release(packed[i], packing[i].count);
+                }
+            }
+            packed = null;
+        }
+
+        /**
+         * Holds a value in memory for the pack store, and moves it to the
+         * dirty file as soon as it grows past Options.packedValueMaxSize.
+         */
+        private final class PackingOutputStream extends OutputStream {
+            private final int index;
+            private final int maxSize;
+            private byte[] bytes;
+            private int count;
+            /** The dirty file, once the value has outgrown the buffer. */
+            private OutputStream file;
+
+            private PackingOutputStream(int index, int maxSize) {
+                this.index = index;
+                this.maxSize = maxSize;
+                this.bytes = new byte[Math.min(maxSize, IO_BUFFER_SIZE)];
+            }
+
+            @Override public void write(int oneByte) throws IOException {
+                if (file == null && count == maxSize) {
+                    spill();
+                }
+                if (file != null) {
+                    file.write(oneByte);
+                    return;
+                }
+                ensureCapacity(1);
+                bytes[count++] = (byte) oneByte;
+            }
+
+            @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+                if (file == null && count + length > maxSize) {
+                    spill();
+                }
+                if (file != null) {
+                    file.write(buffer, offset, length);
+                    return;
+                }
+                ensureCapacity(length);
+                System.arraycopy(buffer, offset, bytes, count, length);
+                count += length;
+            }
+
+            private void write(ByteBuffer src) throws IOException {
+                int length = src.remaining();
+                if (file == null && count + length > maxSize) {
+                    spill();
+                }
+                if (file != null) {
+                    writeFully(file, src);
+                    return;
+                }
+                ensureCapacity(length);
+                src.get(bytes, count, length);
+                count += length;
+            }
+
+            private void ensureCapacity(int extra) {
+                if (count + extra > bytes.length) {
+                    byte[] grown = new byte[Math.min(maxSize, Math.max(bytes.length * 2, count + extra))];
+                    System.arraycopy(bytes, 0, grown, 0, count);
+                    bytes = grown;
+                }
+            }
+
+            private void spill() throws IOException {
+                file = openDirtyFile(entry.getDirtyFile(key, index), false);
+                file.write(bytes, 0, count);
+                bytes = null;
+                count = 0;
+            }
+
+            @Override public void flush() throws IOException {
+                if (file != null) {
+                    file.flush();
+                }
+            }
+
+            @Override public void close() throws IOException {
+                if (file != null) {
+                    file.close();
+                }
+            }
+        }
+
+        /**
+         * Writes a value through the channel of its file, or into its
+         * PackingOutputStream, and hides write errors the way
+         * FaultHidingOutputStream does.
+         */
+        private class FaultHidingChannel implements WritableByteChannel {
+            private final OutputStream out;
+            private final int index;
+            private boolean open = true;
+
+            private FaultHidingChannel(OutputStream out, int index) {
+                this.out = out;
+                this.index = index;
+            }
+
+            @Override public int write(ByteBuffer src) throws ClosedChannelException {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                int length = src.remaining();
+                ByteBuffer copy = tracked(index) ? src.duplicate() : null;
+                try {
+                    if (out instanceof PackingOutputStream) {
+                        ((PackingOutputStream) out).write(src);
+                    } else {
+                        writeFully(out, src);
+                    }
+                    if (copy != null) {
+                        wrote(index, copy);
+                    }
+                } catch (IOException e) {
+                    hasErrors = true;
+                    src.position(src.limit());
+                }
+                return length;
+            }
+
+            /**
+             * Copies {@code src} to the end of the value. Unlike write(), this
+             * throws, because the error may have been reading {@code src}.
+             */
+            private long transferFrom(ReadableByteChannel src) throws IOException {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                long total = 0;
+                if (src instanceof FileChannel && out instanceof FileOutputStream
+                        && !tracked(index)) { // the bytes must pass through to be checksummed
+                    FileChannel in = (FileChannel) src;
+                    FileChannel target = ((FileOutputStream) out).getChannel();
+                    long position = target.position();
+                    while (in.position() < in.size()) {
+                        long transferred = target.transferFrom(in, position + total,
+                                in.size() - in.position());
+                        if (transferred <= 0) {
+                            break;
+                        }
+                        total += transferred;
+                    }
+                    target.position(position + total);
+                    return total;
+                }
+                ByteBuffer buffer = DIRECT_BUFFERS.acquire();
+                try {
+                    while (src.read(buffer) != -1) {
+                        buffer.flip();
+                        total += write(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    DIRECT_BUFFERS.release(buffer);
+                }
+                return total;
+            }
+
+            @Override public boolean isOpen() {
+                return open;
+            }
+
+            @Override public void close() {
+                if (open) {
+                    open = false;
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        hasErrors = true;
+                    }
+                }
+            }
+        }
+
         private class FaultHidingOutputStream extends FilterOutputStream {
-            private FaultHidingOutputStream(OutputStream out) {
+            private final int index;
+
+            private FaultHidingOutputStream(OutputStream out, int index) {
                 super(out);
+                this.index = index;
             }
 
             @Override public void write(int oneByte) {
                 try {
                     out.write(oneByte);
+                    wrote(index, oneByte);
                 } catch (IOException e) {
                     hasErrors = true;
                 }
@@ -870,6 +4729,7 @@ public final class DiskLruCache implements Closeable {
             @Override public void write(byte[] buffer, int offset, int length) {
                 try {
                     out.write(buffer, offset, length);
+                    wrote(index, buffer, offset, length);
                 } catch (IOException e) {
                     hasErrors = true;
                 }
@@ -893,9 +4753,12 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * An entry of the cache. It doesn't know its key, which lruEntries keeps
+     * in a compact form: the methods that need it are given the one the
+     * caller looked the entry up by, so that no key string is built for it.
+     */
     private final class Entry {
-        private final String key;
-
         /** Lengths of this entry's files. */
         private final long[] lengths;
 
@@ -908,46 +4771,62 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
-        private Entry(String key) {
-            this.key = key;
+        /** Pack store locations of this entry's values, 0 for values in files; or null. */
+        private long[] locations;
+
+        /** The last journaled progress of the edit in progress, or null. */
+        private Partial partial;
+
+        /** When this entry expires, in milliseconds since the epoch; 0 if never. */
+        private long expiresAt;
+
+        /** The group tags of this entry, or null if it has none. */
+        private String[] tags;
+
+        private Entry() {
             this.lengths = new long[valueCount];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
+        /** Returns the number of bytes taken by this entry's values. */
+        private long weight() {
+            long weight = 0;
+            for (long length : lengths) {
+                weight += length;
             }
-            return result.toString();
+            return weight;
         }
 
-        /**
-         * Set lengths using decimal numbers like "10123".
-         */
-        private void setLengths(String[] strings) throws IOException {
-            if (strings.length != valueCount) {
-                throw invalidLengths(strings);
-            }
+        public File getCleanFile(String key, int i) {
+            return getCleanFile(fanOutDirectories, key, i);
+        }
 
-            try {
-                for (int i = 0; i < strings.length; i++) {
-                    lengths[i] = Long.parseLong(strings[i]);
-                }
-            } catch (NumberFormatException e) {
-                throw invalidLengths(strings);
-            }
+        public File getDirtyFile(String key, int i) {
+            return getDirtyFile(fanOutDirectories, key, i);
         }
 
-        private IOException invalidLengths(String[] strings) throws IOException {
-            throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+        private File getCleanFile(File[] fanOut, String key, int i) {
+            return new File(valueDirectory(fanOut, key), key + "." + i);
         }
 
-        public File getCleanFile(int i) {
-            return new File(directory, key + "." + i);
+        private File getDirtyFile(File[] fanOut, String key, int i) {
+            return new File(valueDirectory(fanOut, key), key + "." + i + ".tmp");
         }
 
-        public File getDirtyFile(int i) {
-            return new File(directory, key + "." + i + ".tmp");
+        /**
+         * Returns the directory of this entry's files: the subdirectory named
+         * by the leading digits of a hex key, or picked by the hash of any
+         * other key.
+         */
+        private File valueDirectory(File[] fanOut, String key) {
+            if (fanOut == null) {
+                return directory;
+            }
+            if (!EntryIndex.isHexKey(key)) {
+                int h = key.hashCode();
+                return fanOut[(h ^ (h >>> 16)) & (fanOut.length - 1)];
+            }
+            int bits = Integer.numberOfTrailingZeros(fanOut.length);
+            return fanOut[(int) (EntryIndex.hexHigh(key) >>> (64 - bits))];
         }
     }
 }
@@ -0,0 +1,514 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The binary journal format used by {@link DiskLruCache}.
+ *
+ * <p>A journal starts with a header: the four magic bytes {@code "DLRU"}
+ * followed by the format version, the application's version and the value
+ * count, each as an unsigned varint. Every record after the header is an op
+ * byte, a key and op-specific values:
+ * <pre>
+ *     CLEAN  key length[0] ... length[valueCount - 1]
+ *     DIRTY  key
+ *     REMOVE key
+ *     READ   key
+ *     META   name value
+ *     PACKED key length[0] ... length[valueCount - 1] location[0] ... location[valueCount - 1]
+ *     PARTIAL key length[0] ... length[valueCount - 1] crc[0] ... crc[valueCount - 1]
+ *     BATCH  count
+ *     EXPIRE key expiresAt
+ *     TAG    key tag
+ * </pre>
+ * Keys that are 32 lower case hex digits, which is what
+ * {@link ImageCache#hashKeyForDisk(String)} produces, are stored as 16 raw
+ * bytes. Any other key sets {@link #FLAG_STRING_KEY} on the op byte and is
+ * stored as a varint byte count followed by its UTF-8 bytes. Lengths are
+ * unsigned varints, so a typical CLEAN record of a one-value cache is 19 or 20
+ * bytes where the text journal needed about 45. META records store a setting
+ * of the cache, such as its eviction policy; their name and value are always
+ * length-prefixed strings and the last record for a name wins. PACKED replaces
+ * CLEAN for entries with values in the {@link PackStore}; a location of 0
+ * means that value is stored in a file of its own. PARTIAL follows the DIRTY
+ * record of an edit that may be resumed: it records how many bytes of each
+ * dirty file were written and their CRC32, see
+ * {@link DiskLruCache.Options#keepPartialValues}. EXPIRE follows the CLEAN or
+ * PACKED record of an entry that expires, in the same batch; expiresAt is in
+ * milliseconds since the epoch. TAG records follow them in the same way, one
+ * for each group tag of the entry; the tag is a length-prefixed string. A
+ * CLEAN or PACKED record on its own clears the expiry and the tags of its
+ * entry.
+ *
+ * <p>The journal is replayed from a single bulk read of the file. A record cut
+ * short by a crash ends the replay; everything before it is kept. BATCH has
+ * no key; it says that the next {@code count} records were written together
+ * and are only replayed if all of them are complete.
+ *
+ * <p>A checkpoint file uses the same encoding: the journal header, then the
+ * number of journal bytes the checkpoint covers as an unsigned varint, then a
+ * CLEAN or DIRTY record for every entry in LRU order. Opening a cache loads
+ * the checkpoint and only has to replay the journal past that offset.
+ */
+final class DiskLruJournal {
+    static final byte[] MAGIC = { 'D', 'L', 'R', 'U' };
+    static final int VERSION_2 = 2;
+
+    static final int OP_CLEAN = 1;
+    static final int OP_DIRTY = 2;
+    static final int OP_REMOVE = 3;
+    static final int OP_READ = 4;
+    static final int OP_META = 5;
+    static final int OP_PACKED = 6;
+    static final int OP_PARTIAL = 7;
+    static final int OP_BATCH = 8;
+    static final int OP_EXPIRE = 9;
+    static final int OP_TAG = 10;
+
+    /** Set on the op byte when the key is stored as a length-prefixed UTF-8 string. */
+    static final int FLAG_STRING_KEY = 0x80;
+    private static final int OP_MASK = 0x7f;
+
+    private static final int HEX_KEY_LENGTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private DiskLruJournal() {
+    }
+
+    /**
+     * Returns true if {@code journal} begins with the binary magic bytes.
+     */
+    static boolean isBinary(byte[] journal) {
+        if (journal.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (journal[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the complete contents of {@code file}, read with a single bulk read.
+     */
+    static byte[] readFile(CacheFileSystem fileSystem, File file) throws IOException {
+        InputStream in = fileSystem.open(file);
+        try {
+            long length = fileSystem.size(file);
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("journal too large: " + length);
+            }
+            byte[] result = new byte[(int) length];
+            int count = 0;
+            while (count < result.length) {
+                int read = in.read(result, count, result.length - count);
+                if (read == -1) {
+                    break; // the file shrank while we were reading it
+                }
+                count += read;
+            }
+            if (count < result.length) {
+                byte[] shorter = new byte[count];
+                System.arraycopy(result, 0, shorter, 0, count);
+                result = shorter;
+            }
+            return result;
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Returns the bytes of {@code file} from {@code start} up to but not
+     * including {@code end}, read with a single bulk read.
+     */
+    static byte[] readFile(CacheFileSystem fileSystem, File file, long start, long end)
+            throws IOException {
+        InputStream in = fileSystem.open(file);
+        try {
+            for (long skipped = 0; skipped < start; ) {
+                long count = in.skip(start - skipped);
+                if (count <= 0) {
+                    throw new EOFException();
+                }
+                skipped += count;
+            }
+            byte[] result = new byte[(int) (end - start)];
+            for (int count = 0; count < result.length; ) {
+                int read = in.read(result, count, result.length - count);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                count += read;
+            }
+            return result;
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes a journal header to {@code out}. Returns the number of bytes written.
+     */
+    static int writeHeader(OutputStream out, int appVersion, int valueCount) throws IOException {
+        Buffer buffer = new Buffer(16);
+        writeHeader(buffer, appVersion, valueCount);
+        buffer.writeTo(out);
+        return buffer.size();
+    }
+
+    /**
+     * Appends a journal header to {@code buffer}.
+     */
+    static void writeHeader(Buffer buffer, int appVersion, int valueCount) {
+        buffer.write(MAGIC, 0, MAGIC.length);
+        buffer.writeVarint(VERSION_2);
+        buffer.writeVarint(appVersion & 0xffffffffL);
+        buffer.writeVarint(valueCount);
+    }
+
+    /**
+     * Encodes a single record. {@code lengths} is only used by {@link #OP_CLEAN},
+     * by {@link #OP_PACKED}, which expects the lengths followed by the
+     * locations, by {@link #OP_PARTIAL}, which expects the lengths followed
+     * by the checksums, and by {@link #OP_EXPIRE}, which expects the expiry
+     * time alone.
+     */
+    static byte[] encode(int op, String key, long[] lengths) {
+        Buffer buffer = new Buffer(lengths != null ? 17 + 5 * lengths.length : 17);
+        writeRecord(buffer, op, key, lengths);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Appends a single record to {@code buffer}. See {@link #encode} for
+     * {@code lengths}.
+     */
+    static void writeRecord(Buffer buffer, int op, String key, long[] lengths) {
+        writeOpAndKey(buffer, op, key);
+        if (op == OP_CLEAN || op == OP_PACKED || op == OP_PARTIAL || op == OP_EXPIRE) {
+            for (long length : lengths) {
+                buffer.writeVarint(length);
+            }
+        }
+    }
+
+    /**
+     * Appends a TAG record adding {@code tag} to the entry named {@code key}.
+     */
+    static void writeTag(Buffer buffer, String key, String tag) {
+        writeOpAndKey(buffer, OP_TAG, key);
+        writeString(buffer, tag);
+    }
+
+    private static void writeOpAndKey(Buffer buffer, int op, String key) {
+        if (isHexKey(key)) {
+            buffer.writeByte(op);
+            for (int i = 0; i < HEX_KEY_LENGTH; i += 2) {
+                buffer.writeByte((hexValue(key.charAt(i)) << 4) | hexValue(key.charAt(i + 1)));
+            }
+        } else {
+            buffer.writeByte(op | FLAG_STRING_KEY);
+            writeString(buffer, key);
+        }
+    }
+
+    /**
+     * Appends the header of a batch of {@code count} records.
+     */
+    static void writeBatch(Buffer buffer, int count) {
+        buffer.writeByte(OP_BATCH);
+        buffer.writeVarint(count);
+    }
+
+    /**
+     * Appends a META record setting {@code name} to {@code value}.
+     */
+    static void writeMeta(Buffer buffer, String name, String value) {
+        buffer.writeByte(OP_META | FLAG_STRING_KEY);
+        writeString(buffer, name);
+        writeString(buffer, value);
+    }
+
+    private static void writeString(Buffer buffer, String s) {
+        byte[] bytes = utf8(s);
+        buffer.writeVarint(bytes.length);
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+    private static boolean isHexKey(String key) {
+        if (key.length() != HEX_KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_KEY_LENGTH; i++) {
+            if (hexValue(key.charAt(i)) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1; // upper case digits would not survive the round trip
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * A growable byte array that records are encoded into.
+     */
+    static final class Buffer {
+        private byte[] bytes;
+        private int count;
+
+        Buffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            bytes[count++] = (byte) b;
+        }
+
+        void write(byte[] source, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(source, offset, bytes, count, length);
+            count += length;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[count++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[count++] = (byte) value;
+        }
+
+        int size() {
+            return count;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, count);
+        }
+
+        /**
+         * Appends the bytes of this buffer from {@code from} on to {@code other}.
+         */
+        void copyTo(Buffer other, int from) {
+            other.write(bytes, from, count - from);
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[count];
+            System.arraycopy(bytes, 0, result, 0, count);
+            return result;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, count + extra)];
+                System.arraycopy(bytes, 0, grown, 0, count);
+                bytes = grown;
+            }
+        }
+    }
+
+    /**
+     * Decodes the header and records of a journal held in memory. After each
+     * successful call to {@link #next} the fields {@link #op}, {@link #key}
+     * and, for CLEAN, PACKED and PARTIAL records, {@link #lengths}, for
+     * PACKED records, {@link #locations}, for PARTIAL records,
+     * {@link #checksums}, for EXPIRE records, {@link #expiresAt} or, for META
+     * and TAG records, {@link #value} describe the record.
+     */
+    static final class Reader {
+        private final byte[] journal;
+        private final int limit;
+        private int pos;
+
+        int op;
+        String key;
+        final long[] lengths;
+        final long[] locations;
+        final long[] checksums;
+        long expiresAt;
+        String value;
+
+        /** True if the journal ended in the middle of a record. */
+        boolean truncated;
+
+        Reader(byte[] journal, int valueCount) {
+            this.journal = journal;
+            this.limit = journal.length;
+            this.lengths = new long[valueCount];
+            this.locations = new long[valueCount];
+            this.checksums = new long[valueCount];
+        }
+
+        /**
+         * Returns the offset of the next unread byte.
+         */
+        int position() {
+            return pos;
+        }
+
+        /**
+         * Reads and validates the header.
+         */
+        void readHeader(int appVersion, int valueCount) throws IOException {
+            if (!isBinary(journal)) {
+                throw new IOException("unexpected journal magic");
+            }
+            pos = MAGIC.length;
+            long version;
+            long appVersionRead;
+            long valueCountRead;
+            try {
+                version = readVarint();
+                appVersionRead = readVarint();
+                valueCountRead = readVarint();
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException("truncated journal header");
+            }
+            if (version != VERSION_2
+                    || appVersionRead != (appVersion & 0xffffffffL)
+                    || valueCountRead != valueCount) {
+                throw new IOException("unexpected journal header: ["
+                        + version + ", " + appVersionRead + ", " + valueCountRead + "]");
+            }
+        }
+
+        /**
+         * Reads a single unsigned varint, such as the journal offset that
+         * follows the header of a checkpoint.
+         */
+        long readOffset() throws IOException {
+            try {
+                return readVarint();
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException("truncated checkpoint header");
+            }
+        }
+
+        /**
+         * Decodes the next record. Returns false at the end of the journal or
+         * at a record that was only partially written.
+         */
+        boolean next() throws IOException {
+            if (pos >= limit) {
+                return false;
+            }
+            int start = pos;
+            try {
+                if ((journal[pos] & 0xff) == OP_BATCH) {
+                    pos++;
+                    long count = readVarint();
+                    int first = pos;
+                    for (long i = 0; i < count; i++) {
+                        readRecord(); // a batch that was cut short is dropped as a whole
+                    }
+                    pos = first;
+                }
+                readRecord();
+                return true;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                pos = start;
+                truncated = true;
+                return false;
+            }
+        }
+
+        /**
+         * Decodes the record at the current position. Throws
+         * ArrayIndexOutOfBoundsException if it was only partially written.
+         */
+        private void readRecord() throws IOException {
+            int start = pos;
+            int opByte = journal[pos++] & 0xff;
+            op = opByte & OP_MASK;
+            key = (opByte & FLAG_STRING_KEY) != 0 ? readStringKey() : readHexKey();
+            if (op == OP_CLEAN || op == OP_PACKED || op == OP_PARTIAL) {
+                for (int i = 0; i < lengths.length; i++) {
+                    lengths[i] = readVarint();
+                }
+                if (op == OP_PACKED) {
+                    for (int i = 0; i < locations.length; i++) {
+                        locations[i] = readVarint();
+                    }
+                } else if (op == OP_PARTIAL) {
+                    for (int i = 0; i < checksums.length; i++) {
+                        checksums[i] = readVarint();
+                    }
+                }
+            } else if (op == OP_EXPIRE) {
+                expiresAt = readVarint();
+            } else if (op == OP_META || op == OP_TAG) {
+                value = readStringKey();
+            } else if (op != OP_DIRTY && op != OP_REMOVE && op != OP_READ) {
+                throw new IOException("unexpected journal op " + op + " at " + start);
+            }
+        }
+
+        private String readHexKey() {
+            if (pos + HEX_KEY_LENGTH / 2 > limit) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            char[] chars = new char[HEX_KEY_LENGTH];
+            for (int i = 0; i < HEX_KEY_LENGTH; i += 2) {
+                int b = journal[pos++] & 0xff;
+                chars[i] = HEX_DIGITS[b >>> 4];
+                chars[i + 1] = HEX_DIGITS[b & 0xf];
+            }
+            return new String(chars);
+        }
+
+        private String readStringKey() throws IOException {
+            int length = (int) readVarint();
+            if (length < 0 || pos + length > limit) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            String result = new String(journal, pos, length, "UTF-8");
+            pos += length;
+            return result;
+        }
+
+        private long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new ArrayIndexOutOfBoundsException();
+                }
+                int b = journal[pos++];
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("malformed varint in journal");
+        }
+    }
+}
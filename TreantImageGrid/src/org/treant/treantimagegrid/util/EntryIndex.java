@@ -0,0 +1,367 @@
+package org.treant.treantimagegrid.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The entries of a {@link DiskLruCache} by key, in recency order, laid out
+ * in primitive arrays rather than as a map of nodes.
+ *
+ * <p>Keys that are 32 lower case hex digits, the MD5 keys that
+ * {@link ImageCache#hashKeyForDisk(String)} produces, are stored as two longs;
+ * any other key is kept as a string in a side array. Slots are found by open
+ * addressing with linear probing, and removed slots are left as tombstones
+ * until the table is rebuilt, so a slot never moves while it is in use. The
+ * recency order is a doubly linked list threaded through two int arrays of
+ * slot numbers, eldest first. Looking up, adding, removing and reordering
+ * keys never allocates, except when the table grows.
+ */
+final class EntryIndex<V> {
+    private static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+    private static final Object REMOVED = new Object();
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private long[] keyHigh;
+    private long[] keyLow;
+    /** Keys that are not hex, by slot; null for hex keys. */
+    private String[] stringKeys;
+    /** Values by slot: null for a free slot, REMOVED for a tombstone. */
+    private Object[] values;
+    private int[] older;
+    private int[] newer;
+    private int eldest = NONE;
+    private int youngest = NONE;
+    private int size;
+    /** Slots that are in use or tombstones. */
+    private int used;
+
+    EntryIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keyHigh = new long[capacity];
+        keyLow = new long[capacity];
+        stringKeys = new String[capacity];
+        values = new Object[capacity];
+        older = new int[capacity];
+        newer = new int[capacity];
+        eldest = NONE;
+        youngest = NONE;
+        size = 0;
+        used = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Returns the value of {@code key}, or null. Doesn't change the order. */
+    @SuppressWarnings("unchecked")
+    V get(String key) {
+        int slot = find(key);
+        return slot != NONE ? (V) values[slot] : null;
+    }
+
+    /**
+     * Sets the value of {@code key}, which becomes the most recent key.
+     * Returns the previous value, or null.
+     */
+    @SuppressWarnings("unchecked")
+    V put(String key, V value) {
+        int slot = find(key);
+        if (slot != NONE) {
+            V previous = (V) values[slot];
+            values[slot] = value;
+            moveToBack(slot);
+            return previous;
+        }
+        if ((used + 1) * 4 > values.length * 3) {
+            // grow if the table is mostly live, otherwise just drop the tombstones
+            rehash(size * 2 >= values.length ? values.length * 2 : values.length);
+        }
+        slot = insert(key);
+        values[slot] = value;
+        link(slot);
+        size++;
+        return null;
+    }
+
+    /** Removes {@code key} and returns its value, or null if it wasn't there. */
+    @SuppressWarnings("unchecked")
+    V remove(String key) {
+        int slot = find(key);
+        if (slot == NONE) {
+            return null;
+        }
+        V previous = (V) values[slot];
+        removeSlot(slot);
+        return previous;
+    }
+
+    /** Makes {@code key} the most recent key. Returns false if it isn't there. */
+    boolean touch(String key) {
+        int slot = find(key);
+        if (slot == NONE) {
+            return false;
+        }
+        moveToBack(slot);
+        return true;
+    }
+
+    /** Returns the least recent key, or null if there are none. */
+    String eldestKey() {
+        return eldest != NONE ? keyAt(eldest) : null;
+    }
+
+    void clear() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Returns the values from the least to the most recent. The iterator
+     * supports remove(); other changes while iterating are not allowed.
+     */
+    Iterable<V> values() {
+        return new Iterable<V>() {
+            @Override public Iterator<V> iterator() {
+                return new Cursor();
+            }
+        };
+    }
+
+    /**
+     * Returns the values from the least to the most recent, like
+     * {@link #values}, with their keys.
+     */
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    private String keyAt(int slot) {
+        String key = stringKeys[slot];
+        return key != null ? key : hexKey(keyHigh[slot], keyLow[slot]);
+    }
+
+    private void removeSlot(int slot) {
+        unlink(slot);
+        values[slot] = REMOVED;
+        stringKeys[slot] = null;
+        size--;
+    }
+
+    private void moveToBack(int slot) {
+        if (slot != youngest) {
+            unlink(slot);
+            link(slot);
+        }
+    }
+
+    private void link(int slot) {
+        older[slot] = youngest;
+        newer[slot] = NONE;
+        if (youngest != NONE) {
+            newer[youngest] = slot;
+        } else {
+            eldest = slot;
+        }
+        youngest = slot;
+    }
+
+    private void unlink(int slot) {
+        int o = older[slot];
+        int n = newer[slot];
+        if (o != NONE) {
+            newer[o] = n;
+        } else {
+            eldest = n;
+        }
+        if (n != NONE) {
+            older[n] = o;
+        } else {
+            youngest = o;
+        }
+    }
+
+    /** Returns the slot holding {@code key}, or NONE. */
+    private int find(String key) {
+        int mask = values.length - 1;
+        if (isHexKey(key)) {
+            long high = hexHigh(key);
+            long low = hexLow(key);
+            for (int slot = hash(high, low) & mask; ; slot = (slot + 1) & mask) {
+                Object value = values[slot];
+                if (value == null) {
+                    return NONE;
+                }
+                if (value != REMOVED && stringKeys[slot] == null
+                        && keyHigh[slot] == high && keyLow[slot] == low) {
+                    return slot;
+                }
+            }
+        }
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            Object value = values[slot];
+            if (value == null) {
+                return NONE;
+            }
+            if (value != REMOVED && key.equals(stringKeys[slot])) {
+                return slot;
+            }
+        }
+    }
+
+    /** Claims a free slot for {@code key}, which must not be in the table. */
+    private int insert(String key) {
+        int mask = values.length - 1;
+        int slot;
+        if (isHexKey(key)) {
+            long high = hexHigh(key);
+            long low = hexLow(key);
+            slot = hash(high, low) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keyHigh[slot] = high;
+            keyLow[slot] = low;
+        } else {
+            slot = hash(key) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            stringKeys[slot] = key;
+        }
+        used++;
+        return slot;
+    }
+
+    /** Rebuilds the table with {@code capacity} slots, keeping the order. */
+    private void rehash(int capacity) {
+        long[] oldHigh = keyHigh;
+        long[] oldLow = keyLow;
+        String[] oldStringKeys = stringKeys;
+        Object[] oldValues = values;
+        int[] oldNewer = newer;
+        int slot = eldest;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (; slot != NONE; slot = oldNewer[slot]) {
+            String key = oldStringKeys[slot];
+            int target = key != null ? hash(key) : hash(oldHigh[slot], oldLow[slot]);
+            target &= mask;
+            while (values[target] != null) {
+                target = (target + 1) & mask;
+            }
+            keyHigh[target] = oldHigh[slot];
+            keyLow[target] = oldLow[slot];
+            stringKeys[target] = key;
+            values[target] = oldValues[slot];
+            link(target);
+            size++;
+            used++;
+        }
+    }
+
+    private static int hash(long high, long low) {
+        // MD5 bits are already well mixed
+        long x = high ^ low;
+        return (int) (x ^ (x >>> 32));
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /** Returns true if {@code key} is 32 lower case hex digits. */
+    static boolean isHexKey(String key) {
+        if (key.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < 32; i++) {
+            if (hexValue(key.charAt(i)) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the first 16 digits of a hex key as a long. */
+    static long hexHigh(String key) {
+        return parseHex(key, 0);
+    }
+
+    /** Returns the last 16 digits of a hex key as a long. */
+    static long hexLow(String key) {
+        return parseHex(key, 16);
+    }
+
+    /** Returns the hex key whose digits are {@code high} and {@code low}. */
+    static String hexKey(long high, long low) {
+        char[] chars = new char[32];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = HEX_DIGITS[(int) (high & 0xf)];
+            chars[i + 16] = HEX_DIGITS[(int) (low & 0xf)];
+            high >>>= 4;
+            low >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    private static long parseHex(String key, int start) {
+        long result = 0;
+        for (int i = start; i < start + 16; i++) {
+            result = (result << 4) | hexValue(key.charAt(i));
+        }
+        return result;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Iterates over the values and tells the key of each. The key isn't
+     * kept as a string, so {@link #key} builds one on every call.
+     */
+    final class Cursor implements Iterator<V> {
+        private int next = eldest;
+        private int last = NONE;
+
+        @Override public boolean hasNext() {
+            return next != NONE;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override public V next() {
+            if (next == NONE) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = newer[next];
+            return (V) values[last];
+        }
+
+        /** Returns the key of the value that next() returned last. */
+        String key() {
+            if (last == NONE) {
+                throw new IllegalStateException();
+            }
+            return keyAt(last);
+        }
+
+        @Override public void remove() {
+            if (last == NONE) {
+                throw new IllegalStateException();
+            }
+            removeSlot(last);
+            last = NONE;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.treant.treantimagegrid.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which entry a {@link DiskLruCache} evicts when it has grown past
+ * its maximum size. A cache is opened with one of the policies named below,
+ * see {@link DiskLruCache.Options#evictionPolicy}; the name is recorded in
+ * the journal so the cache keeps its policy across restarts.
+ *
+ * <p>A policy only tracks readable entries. The cache tells it about every
+ * committed write, every hit and every removal, always while holding the
+ * cache lock, and asks it for a {@link #victim} whenever it is over its size.
+ * The policy's own state, such as which segment an entry is in or how often
+ * it was read, is rebuilt from the journal when the cache is opened.
+ */
+public abstract class EvictionPolicy {
+    /** Evicts the least recently used entry. The default. */
+    public static final String LRU = "lru";
+
+    /**
+     * Segmented LRU: entries that are read again move to a protected segment,
+     * so a single scan over many new entries only evicts other new entries.
+     */
+    public static final String SLRU = "slru";
+
+    /**
+     * S3-FIFO: new entries go to a small FIFO queue and are evicted quickly
+     * unless they are read again; a ghost list of recently evicted keys lets
+     * entries that come back skip the small queue.
+     */
+    public static final String S3_FIFO = "s3-fifo";
+
+    /**
+     * W-TinyLFU: a small LRU window in front of a segmented LRU that only
+     * admits an entry from the window if it has been used more often than
+     * the entry it would replace. Usage is counted in a count-min sketch.
+     */
+    public static final String W_TINY_LFU = "w-tinylfu";
+
+    /** The tracked entries by key. */
+    final Map<String, Node> nodes = new HashMap<String, Node>();
+
+    EvictionPolicy() {
+    }
+
+    /**
+     * Returns true if {@code name} is one of the policies above.
+     */
+    public static boolean isSupported(String name) {
+        return LRU.equals(name) || SLRU.equals(name) || S3_FIFO.equals(name)
+                || W_TINY_LFU.equals(name);
+    }
+
+    /**
+     * Returns a new, empty policy named {@code name} for the cache whose
+     * entries are in {@code index}.
+     *
+     * @throws IllegalArgumentException if the name is not supported
+     */
+    static EvictionPolicy create(String name, EntryIndex<?> index) {
+        if (LRU.equals(name)) {
+            return new LruEvictionPolicy(index);
+        } else if (SLRU.equals(name)) {
+            return new SlruEvictionPolicy();
+        } else if (S3_FIFO.equals(name)) {
+            return new S3FifoEvictionPolicy();
+        } else if (W_TINY_LFU.equals(name)) {
+            return new TinyLfuEvictionPolicy();
+        }
+        throw new IllegalArgumentException("unknown eviction policy: " + name);
+    }
+
+    /** Returns the name this policy is persisted as. */
+    abstract String name();
+
+    /**
+     * Sets the number of bytes the cache may use. Policies that split the
+     * cache into segments size them from this.
+     */
+    void setMaxSize(long maxSize) {
+    }
+
+    /**
+     * Records a committed edit of {@code key}, whose values now take
+     * {@code weight} bytes. The entry may or may not be tracked already.
+     */
+    abstract void recordWrite(String key, long weight);
+
+    /** Records a read of the tracked entry {@code key}. */
+    abstract void recordAccess(String key);
+
+    /** Stops tracking {@code key}, if it is tracked. */
+    void recordRemoval(String key) {
+        Node node = nodes.remove(key);
+        if (node != null) {
+            node.queue.remove(node);
+        }
+    }
+
+    /**
+     * Picks the next entry to evict and stops tracking it. Returns null if
+     * no entry is tracked. If the cache cannot evict the entry after all it
+     * records it again with {@link #recordWrite}, or, if the entry isn't
+     * readable, moves it to the back of its index.
+     */
+    abstract String victim();
+
+    /** Stops tracking {@code node} and returns its key. */
+    final String evict(Node node) {
+        node.queue.remove(node);
+        nodes.remove(node.key);
+        return node.key;
+    }
+
+    /** A tracked entry. */
+    static final class Node {
+        final String key;
+        long weight;
+        /** Policy-specific usage count. */
+        int frequency;
+        Queue queue;
+        Node prev;
+        Node next;
+
+        Node(String key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A doubly linked queue of nodes that keeps the total weight of its
+     * nodes. The eldest node is at the front, new nodes join at the back.
+     */
+    static final class Queue {
+        private final Node head = new Node(null, 0);
+        long weight;
+        int count;
+
+        Queue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        boolean isEmpty() {
+            return head.next == head;
+        }
+
+        /** Returns the node at the front, or null if the queue is empty. */
+        Node eldest() {
+            return head.next == head ? null : head.next;
+        }
+
+        void add(Node node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            node.queue = this;
+            weight += node.weight;
+            count++;
+        }
+
+        void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            node.queue = null;
+            weight -= node.weight;
+            count--;
+        }
+
+        void moveToBack(Node node) {
+            remove(node);
+            add(node);
+        }
+
+        void setWeight(Node node, long newWeight) {
+            weight += newWeight - node.weight;
+            node.weight = newWeight;
+        }
+    }
+}
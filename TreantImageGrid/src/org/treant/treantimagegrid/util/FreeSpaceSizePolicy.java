@@ -0,0 +1,38 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.File;
+
+/**
+ * Gives a cache a share of the free space on its volume, between a floor
+ * and a ceiling, see {@link DiskLruCache.Options#sizePolicy}. The bytes the
+ * cache already holds count as free, so a cache doesn't shrink just because
+ * it filled up. On a full device the cache shrinks to the floor instead of
+ * being left out, and on an empty one it grows to the ceiling.
+ */
+public final class FreeSpaceSizePolicy implements DiskLruCache.SizePolicy {
+    private final long minSize;
+    private final long maxSize;
+    private final float fraction;
+
+    /**
+     * @param minSize the smallest maximum size the cache gets
+     * @param maxSize the largest maximum size the cache gets
+     * @param fraction the share of the free space the cache gets, between 0 and 1
+     */
+    public FreeSpaceSizePolicy(long minSize, long maxSize, float fraction) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("0 < minSize <= maxSize required");
+        }
+        if (!(fraction > 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("fraction must be in (0, 1]");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.fraction = fraction;
+    }
+
+    @Override public long maxSize(File directory, long size) {
+        long budget = (long) ((ImageCache.getUsableSpace(directory) + size) * (double) fraction);
+        return Math.max(minSize, Math.min(maxSize, budget));
+    }
+}
@@ -0,0 +1,98 @@
+package org.treant.treantimagegrid.util;
+
+/**
+ * A count-min sketch of how often keys have been used, for
+ * {@link TinyLfuEvictionPolicy}. Counters are 4 bits wide, sixteen to a
+ * long, and every key has one counter in each of four rows; its estimated
+ * frequency is the smallest of them. After {@code 10 * capacity} increments
+ * every counter is halved, so the sketch follows changes in popularity
+ * instead of counting forever.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    /** Clears the bit that halving shifts into each counter from its neighbor. */
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private long[] table = new long[MIN_TABLE_SIZE];
+    private int sampleSize = 10 * MIN_TABLE_SIZE;
+    private int additions;
+
+    /**
+     * Makes room to tell apart the frequencies of about {@code expectedKeys}
+     * keys. The frequencies counted so far are kept: a key's counters in the
+     * grown table start where its counters in the old table were.
+     */
+    void ensureCapacity(int expectedKeys) {
+        if (expectedKeys <= table.length || table.length >= (1 << 30)) {
+            return;
+        }
+        int size = table.length;
+        while (size < expectedKeys && size < (1 << 30)) {
+            size <<= 1;
+        }
+        // A row index is the hash masked by the table length, so every slot of
+        // the grown table is reached by keys that used to share the old slot
+        // with the same low bits. Copying the old table into each part of the
+        // new one keeps all counters; estimates stay upper bounds.
+        long[] grown = new long[size];
+        for (int offset = 0; offset < size; offset += table.length) {
+            System.arraycopy(table, 0, grown, offset, table.length);
+        }
+        table = grown;
+        sampleSize = size >= (1 << 27) ? Integer.MAX_VALUE : 10 * size;
+    }
+
+    /** Returns the estimated number of uses of {@code key}, at most 15. */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int shift = (start + i) << 2;
+            int count = (int) ((table[indexOf(hash, i)] >>> shift) & 0xf);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Counts a use of {@code key}. */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int shift = (start + i) << 2;
+            long mask = 0xfL << shift;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /** Halves every counter. */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & (table.length - 1);
+    }
+
+    private static int spread(int h) {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
@@ -1,11 +1,16 @@
 package org.treant.treantimagegrid.util;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 import org.treant.treantimagegrid.BuildConfig;
 
@@ -39,6 +44,17 @@ public class ImageCache {
 	private static final CompressFormat DEFAULT_COMPRESS_FORMAT=CompressFormat.JPEG;
 	private static final int DISK_CACHE_INDEX=0;
 	private static final int DEFAULT_COMPRESS_QUALITY=70;
+	private static final long DEFAULT_DISK_CACHE_TIME_TO_LIVE=0;
+	private static final int DEFAULT_DISK_CACHE_FAN_OUT=16;
+	private static final DiskLruCache.Durability DEFAULT_DISK_CACHE_DURABILITY=DiskLruCache.Durability.NONE;
+	private static final long DEFAULT_DISK_CACHE_MIN_SIZE=1024*1024*2; //2MB
+	private static final long DEFAULT_DISK_CACHE_MAX_SIZE=0; //0 keeps diskCacheSize
+	private static final float DEFAULT_DISK_CACHE_FREE_SPACE_FRACTION=0.05f;
+	private static final int IO_BUFFER_SIZE = 8 * 1024; //8KB
+	private static final int DEFAULT_DISK_CACHE_VARIANTS=0;
+	private static final int DEFAULT_DISK_CACHE_SEGMENTS=4;
+	// With size variants, value 0 of an entry holds the sizes of the variants in the values after it
+	private static final int VARIANT_META_INDEX=0;
 	
 	// Constants to easily toggle various caches
 	private static final boolean DEFAULT_MEM_CACHE_ENABLED=true;
@@ -46,11 +62,13 @@ public class ImageCache {
 	private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE=false;
 	private static final boolean DEFAULT_CLEAR_DISK_CACHE_ON_START=false;//ûõ
 	
-	private DiskLruCache mDiskLruCache;//cache
+	private ShardedDiskLruCache mDiskLruCache;//cache
 	private LruCache<String, Bitmap> mMemoryCache; //ڴcache
 	private ImageCacheParams mCacheParams;
 	private final Object mDiskCacheLock=new Object();
 	private boolean mDiskCacheStarting=true;
+	// The disk caches with size variants this process has open, by directory, with the number of ImageCaches using each
+	private static final Map<String, SharedDiskCache> sSharedDiskCaches=new HashMap<String, SharedDiskCache>();
 	
 	/**
 	 * Creating a new ImageCache object using the specified parameters.
@@ -114,7 +132,31 @@ public class ImageCache {
 	public static class ImageCacheParams{
 		public int memCacheSize=DEFAULT_MEM_CACHE_SIZE;
 		public int diskCacheSize=DEFAULT_DISK_CACHE_SIZE;
+		// Disk cache entries expire this many milliseconds after they are written, 0 never
+		public long diskCacheTimeToLive=DEFAULT_DISK_CACHE_TIME_TO_LIVE;
+		// Number of subdirectories the disk cache spreads its files over: 0, 16 or 256
+		public int diskCacheFanOut=DEFAULT_DISK_CACHE_FAN_OUT;
+		// Processed bitmaps are cheap to recreate, so by default they are never synced to the device
+		public DiskLruCache.Durability diskCacheDurability=DEFAULT_DISK_CACHE_DURABILITY;
+		// Told about the entries the disk cache evicts or removes, called off the UI thread; may be null
+		public DiskLruCache.EvictionListener diskCacheEvictionListener;
+		// With a diskCacheMaxSize, the disk cache takes diskCacheFreeSpaceFraction of the free space,
+		// but at least diskCacheMinSize and at most diskCacheMaxSize, instead of the fixed diskCacheSize
+		public long diskCacheMinSize=DEFAULT_DISK_CACHE_MIN_SIZE;
+		public long diskCacheMaxSize=DEFAULT_DISK_CACHE_MAX_SIZE;
+		public float diskCacheFreeSpaceFraction=DEFAULT_DISK_CACHE_FREE_SPACE_FRACTION;
+		// Number of sizes of a bitmap one disk cache entry holds, 0 for a single one. With variants, caches that
+		// produce different sizes of the same images can share a directory, and a read is sampled down from a
+		// larger variant when its own size isn't there yet. All caches of a directory must use the same number;
+		// the disk cache is opened with the params of the first of them, and the disk cache params of the
+		// others (size, time to live, eviction listener, free space sizing) are not used.
+		public int diskCacheVariants=DEFAULT_DISK_CACHE_VARIANTS;
+		// Number of segments the disk cache is split into, each with a lock of its own, so that the grid cells
+		// read side by side; see ShardedDiskLruCache. Changing it discards what the disk cache holds.
+		public int diskCacheSegments=DEFAULT_DISK_CACHE_SEGMENTS;
 		public File diskCacheDir;
+		// A directory an earlier version kept this cache in, deleted when the disk cache is opened; may be null
+		public File obsoleteDiskCacheDir;
 		
 		public CompressFormat compressFormat=DEFAULT_COMPRESS_FORMAT;
 		public int compressQuality =DEFAULT_COMPRESS_QUALITY;
@@ -206,8 +248,9 @@ public class ImageCache {
 	 * Adds a bitmap to both memory and disk cache
 	 * @param data Unique identifier for the bitmap to store
 	 * @param bitmap The bitmap to store
+	 * @param groups The groups the bitmap belongs to, such as its album, see removeGroup(String)
 	 */
-	public void addBitmapToCache(String data, Bitmap bitmap){
+	public void addBitmapToCache(final String data, final Bitmap bitmap, final String... groups){
 		if(data==null||bitmap==null){
 			return;
 		}
@@ -215,22 +258,56 @@ public class ImageCache {
 		if(mMemoryCache!=null&&mMemoryCache.get(data)==null){
 			mMemoryCache.put(data, bitmap);
 		}
-		// Add the bitmap to disk cache
+		// Add the bitmap to disk cache behind the reads of the thumbnails on screen, the memory cache serves it meanwhile.
+		// The write holds on to the bitmap, so its size counts against the bitmaps the scheduler lets wait
+		IoScheduler.getDefault().submitWrite(this, hashKeyForDisk(data), new Runnable(){
+			@Override
+			public void run() {
+				addBitmapToDiskCache(data, bitmap, groups);
+			}
+		}, getBitmapSize(bitmap));
+	}
+	/**
+	 * Writes a bitmap to the disk cache, on the thread of the IoScheduler
+	 * @param data Unique identifier for the bitmap to store
+	 * @param bitmap The bitmap to store
+	 * @param groups The groups the bitmap belongs to
+	 */
+	private void addBitmapToDiskCache(String data, Bitmap bitmap, String[] groups){
 		synchronized(mDiskCacheLock){
+			if(mDiskLruCache==null||mDiskLruCache.isClosed()){
+				return;
+			}
 			final String key=hashKeyForDisk(data);
 			OutputStream outputStream=null;
 			try {
+				if(mCacheParams.diskCacheVariants>0){
+					addVariantToDiskCache(key, bitmap, groups);
+					return;
+				}
 				DiskLruCache.Snapshot snapshot=mDiskLruCache.get(key);
 				if(snapshot==null){
 					final DiskLruCache.Editor editor=mDiskLruCache.edit(key);
 					if(editor!=null){
-						outputStream=editor.newOutputStream(DISK_CACHE_INDEX);
+						// Bitmap.compress writes in small pieces, so collect them before they hit the file
+						outputStream=new BufferedOutputStream(editor.newOutputStream(DISK_CACHE_INDEX), IO_BUFFER_SIZE);
 						bitmap.compress(mCacheParams.compressFormat, mCacheParams.compressQuality, outputStream);
-						editor.commit();
 						outputStream.close();
+						if(groups.length>0){
+							editor.setTags(groups);
+						}
+						editor.commit();
 					}
 				}else{
 					snapshot.getInputStream(DISK_CACHE_INDEX).close();;
+					if(groups.length>0){
+						// Already stored; an edit that writes no value only changes the groups
+						final DiskLruCache.Editor editor=snapshot.edit();
+						if(editor!=null){
+							editor.setTags(groups);
+							editor.commit();
+						}
+					}
 				}
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
@@ -247,6 +324,191 @@ public class ImageCache {
 			}
 		}
 	}
+	/**
+	 * Writes a bitmap as a size variant of the entry for key, keeping the variants of other sizes. An entry
+	 * with no free value gives up the variant nearest in size.
+	 * @param key The disk cache key
+	 * @param bitmap The bitmap to store
+	 * @param groups The groups the bitmap belongs to
+	 */
+	private void addVariantToDiskCache(String key, Bitmap bitmap, String[] groups) throws IOException{
+		final DiskLruCache.Snapshot snapshot=mDiskLruCache.get(key);
+		final int[] sizes;
+		final DiskLruCache.Editor editor;
+		if(snapshot==null){
+			sizes=new int[mCacheParams.diskCacheVariants*2];
+			editor=mDiskLruCache.edit(key);
+		}else{
+			try {
+				sizes=parseVariantSizes(snapshot.getString(VARIANT_META_INDEX));
+				// null if the entry changed meanwhile, so that a variant just written by another cache isn't lost
+				editor=snapshot.edit();
+			} finally{
+				snapshot.close();
+			}
+		}
+		if(editor==null){
+			return;
+		}
+		final int width=bitmap.getWidth();
+		final int height=bitmap.getHeight();
+		final int variant=chooseVariantSlot(sizes, width, height);
+		final boolean stored=sizes[2*variant]==width&&sizes[2*variant+1]==height;
+		if(stored&&groups.length==0){
+			editor.abort();
+			return;
+		}
+		boolean committed=false;
+		OutputStream outputStream=null;
+		try {
+			if(!stored){
+				outputStream=new BufferedOutputStream(editor.newOutputStream(VARIANT_META_INDEX+1+variant), IO_BUFFER_SIZE);
+				bitmap.compress(mCacheParams.compressFormat, mCacheParams.compressQuality, outputStream);
+				outputStream.close();
+				outputStream=null;
+				sizes[2*variant]=width;
+				sizes[2*variant+1]=height;
+				editor.set(VARIANT_META_INDEX, formatVariantSizes(sizes));
+				if(snapshot==null){
+					// A new entry needs every value, the other variants start out empty
+					for(int i=0;i<mCacheParams.diskCacheVariants;i++){
+						if(i!=variant){
+							editor.set(VARIANT_META_INDEX+1+i, "");
+						}
+					}
+				}
+			}
+			if(groups.length>0){
+				editor.setTags(groups);
+			}
+			editor.commit();
+			committed=true;
+		} finally{
+			if(outputStream!=null){
+				try {
+					outputStream.close();
+				} catch (IOException e) {}
+			}
+			if(!committed){
+				editor.abort();
+			}
+		}
+	}
+	/**
+	 * Returns the value to write a variant of the given size to: the one that holds this size already,
+	 * else an empty one, else the one whose size is nearest
+	 * @param sizes The width and height of each variant, 0 for an empty value
+	 */
+	private static int chooseVariantSlot(int[] sizes, int width, int height){
+		final int variants=sizes.length/2;
+		for(int i=0;i<variants;i++){
+			if(sizes[2*i]==width&&sizes[2*i+1]==height){
+				return i;
+			}
+		}
+		for(int i=0;i<variants;i++){
+			if(sizes[2*i]==0){
+				return i;
+			}
+		}
+		final long area=Math.max(1L, (long)width*height);
+		int nearest=0;
+		double nearestRatio=Double.MAX_VALUE;
+		for(int i=0;i<variants;i++){
+			final long variantArea=Math.max(1L, variantArea(sizes, i));
+			final double ratio=variantArea>area?(double)variantArea/area:(double)area/variantArea;
+			if(ratio<nearestRatio){
+				nearest=i;
+				nearestRatio=ratio;
+			}
+		}
+		return nearest;
+	}
+	/**
+	 * Decodes the smallest variant in the snapshot whose width and height are both at least as large as
+	 * requested, sampled down to the requested size, and closes the snapshot. A variant that is smaller in
+	 * either dimension is no hit, so that the image is decoded from the original instead.
+	 * @param reqWidth The requested width, 0 for the largest variant as it is
+	 * @param reqHeight The requested height, 0 for the largest variant as it is
+	 * @return The bitmap, or null if every variant is smaller than requested
+	 */
+	private Bitmap decodeVariant(DiskLruCache.Snapshot snapshot, int reqWidth, int reqHeight) throws IOException{
+		try {
+			final int[] sizes=parseVariantSizes(snapshot.getString(VARIANT_META_INDEX));
+			final boolean largest=reqWidth<=0||reqHeight<=0;
+			int variant=-1;
+			for(int i=0;i<sizes.length/2;i++){
+				if(sizes[2*i]==0){
+					continue;
+				}
+				if(largest){
+					if(variant==-1||variantArea(sizes, i)>variantArea(sizes, variant)){
+						variant=i;
+					}
+				}else if(sizes[2*i]>=reqWidth&&sizes[2*i+1]>=reqHeight
+						&&(variant==-1||variantArea(sizes, i)<variantArea(sizes, variant))){
+					variant=i;
+				}
+			}
+			if(variant==-1){
+				return null;
+			}
+			final BitmapFactory.Options options=new BitmapFactory.Options();
+			if(!largest){
+				// The metadata has the size, so the variant is decoded once instead of bounds first
+				options.outWidth=sizes[2*variant];
+				options.outHeight=sizes[2*variant+1];
+				options.inSampleSize=ImageResizer.calculateInSampleSize(options, reqWidth, reqHeight);
+			}
+			if(BuildConfig.DEBUG){
+				Log.d(TAG, "Disk Cache Hit!! variant "+sizes[2*variant]+"x"+sizes[2*variant+1]+", inSampleSize "+options.inSampleSize);
+			}
+			return BitmapFactory.decodeStream(snapshot.getInputStream(VARIANT_META_INDEX+1+variant), null, options);
+		} finally{
+			snapshot.close();
+		}
+	}
+	private static long variantArea(int[] sizes, int variant){
+		return (long)sizes[2*variant]*sizes[2*variant+1];
+	}
+	/**
+	 * Parses the metadata of an entry with size variants, "width x height" of each variant separated by commas,
+	 * with nothing for an empty one
+	 * @return The width and height of each variant, 0 for an empty one
+	 */
+	private int[] parseVariantSizes(String meta){
+		final int[] sizes=new int[mCacheParams.diskCacheVariants*2];
+		final String[] parts=meta.split(",");
+		for(int i=0;i<parts.length&&i<mCacheParams.diskCacheVariants;i++){
+			final int x=parts[i].indexOf('x');
+			if(x==-1){
+				continue;
+			}
+			try {
+				final int width=Integer.parseInt(parts[i].substring(0, x));
+				final int height=Integer.parseInt(parts[i].substring(x+1));
+				if(width>0&&height>0){
+					sizes[2*i]=width;
+					sizes[2*i+1]=height;
+				}
+			} catch (NumberFormatException e) {
+				// taken as empty, and written over
+			}
+		}
+		return sizes;
+	}
+	private static String formatVariantSizes(int[] sizes){
+		final StringBuilder sb=new StringBuilder();
+		for(int i=0;i<sizes.length/2;i++){
+			if(i>0){
+				sb.append(',');
+			}
+			if(sizes[2*i]>0){
+				sb.append(sizes[2*i]).append('x').append(sizes[2*i+1]);
+			}
+		}
+		return sb.toString();
+	}
 	/**
 	 * Get bitmap from memory cache
 	 * @param data Unique identifier for which item to get
@@ -270,40 +532,63 @@ public class ImageCache {
 	 * @return The bitmap if found in disk cache, null otherwise
 	 */
 	public Bitmap getBitmapFromDiskCache(String data){
+		return getBitmapFromDiskCache(data, 0, 0);
+	}
+	/**
+	 * Get bitmap from disk cache. If the disk cache holds size variants (see ImageCacheParams.diskCacheVariants),
+	 * the smallest one that is at least the requested width and height is sampled down to it.
+	 * @param data Unique identifier for which item to get
+	 * @param reqWidth The requested width, 0 for the largest variant
+	 * @param reqHeight The requested height, 0 for the largest variant
+	 * @return The bitmap if found in disk cache, null otherwise
+	 */
+	public Bitmap getBitmapFromDiskCache(String data, int reqWidth, int reqHeight){
 		final String key=hashKeyForDisk(data);
+		final ShardedDiskLruCache diskLruCache;
 		synchronized(mDiskCacheLock){
 			while(mDiskCacheStarting){  //clearCache()initDiskCache()״̬仯
 				try {
 					mDiskCacheLock.wait();
 				} catch (InterruptedException e) {}
 			}
-			if(mDiskLruCache!=null){
-				InputStream inputStream=null;
-				try {
-					final DiskLruCache.Snapshot snapshot=mDiskLruCache.get(key);
-					if(snapshot!=null){
-						if(BuildConfig.DEBUG){
-							Log.d(TAG, "Disk Cache Hit!!");
-						}
-						inputStream =snapshot.getInputStream(DISK_CACHE_INDEX);
-						if(inputStream!=null){
-							final Bitmap bitmap=BitmapFactory.decodeStream(inputStream);
-							return bitmap;
-						}
-					}
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					Log.e(TAG, "getBitmapFromDiskCache--"+e);
-				} finally{
-					try {
-						if(inputStream!=null){
-							inputStream.close();
-						}
-					} catch (IOException e) {}
+			// the read runs outside the lock, so that reads of keys in different segments run side by side
+			diskLruCache=mDiskLruCache;
+		}
+		if(diskLruCache==null){
+			return null;
+		}
+		InputStream inputStream=null;
+		// Pending writes to the disk caches wait until this read is done
+		IoScheduler.getDefault().beginRead();
+		try {
+			final DiskLruCache.Snapshot snapshot=diskLruCache.get(key);
+			if(snapshot!=null&&mCacheParams.diskCacheVariants>0){
+				return decodeVariant(snapshot, reqWidth, reqHeight);
+			}
+			if(snapshot!=null){
+				if(BuildConfig.DEBUG){
+					Log.d(TAG, "Disk Cache Hit!!");
+				}
+				inputStream =snapshot.getInputStream(DISK_CACHE_INDEX);
+				if(inputStream!=null){
+					final Bitmap bitmap=BitmapFactory.decodeStream(inputStream);
+					return bitmap;
 				}
 			}
-			return null;
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			Log.e(TAG, "getBitmapFromDiskCache--"+e);
+		} catch (IllegalStateException e) {
+			// closed or cleared meanwhile, a miss
+		} finally{
+			IoScheduler.getDefault().endRead();
+			try {
+				if(inputStream!=null){
+					inputStream.close();
+				}
+			} catch (IOException e) {}
 		}
+		return null;
 	}
 	
 	/**
@@ -319,9 +604,27 @@ public class ImageCache {
 					if(!diskCacheDir.exists()){
 						diskCacheDir.mkdirs();
 					}
-					if(getUsableSpace(diskCacheDir)>mCacheParams.diskCacheSize){//·ÿռĬֵ
+					deleteObsoleteDiskCacheDir();
+					// A cache sized by the free space shrinks on a full device rather than being left out
+					final boolean sizedByFreeSpace=mCacheParams.diskCacheMaxSize>0;
+					if(getUsableSpace(diskCacheDir)>(sizedByFreeSpace?mCacheParams.diskCacheMinSize:mCacheParams.diskCacheSize)){//·ÿռĬֵ
 						try {
-							mDiskLruCache=DiskLruCache.open(diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+							DiskLruCache.Options options=new DiskLruCache.Options();
+							options.defaultTimeToLiveMillis=mCacheParams.diskCacheTimeToLive;
+							options.directoryFanOut=mCacheParams.diskCacheFanOut;
+							options.durability=mCacheParams.diskCacheDurability;
+							options.evictionListener=mCacheParams.diskCacheEvictionListener;
+							options.ioScheduler=IoScheduler.getDefault();
+							if(sizedByFreeSpace){
+								options.sizePolicy=new FreeSpaceSizePolicy(mCacheParams.diskCacheMinSize,
+										mCacheParams.diskCacheMaxSize, mCacheParams.diskCacheFreeSpaceFraction);
+							}
+							if(mCacheParams.diskCacheVariants>0){
+								mDiskLruCache=acquireSharedDiskCache(diskCacheDir, options);
+							}else{
+								mDiskLruCache=ShardedDiskLruCache.open(diskCacheDir, 1, 1, mCacheParams.diskCacheSize,
+										mCacheParams.diskCacheSegments, options);
+							}
 							if(BuildConfig.DEBUG){
 								Log.d(TAG, "Disk cache initialized successfully");
 							}
@@ -340,6 +643,70 @@ public class ImageCache {
 	
 	}
 	
+	/**
+	 * Deletes ImageCacheParams.obsoleteDiskCacheDir if it is still there, once per ImageCache
+	 */
+	private void deleteObsoleteDiskCacheDir(){
+		final File obsoleteDir=mCacheParams.obsoleteDiskCacheDir;
+		if(obsoleteDir==null){
+			return;
+		}
+		mCacheParams.obsoleteDiskCacheDir=null;
+		if(obsoleteDir.exists()&&!obsoleteDir.equals(mCacheParams.diskCacheDir)){
+			try {
+				DiskLruCache.deleteContents(obsoleteDir);
+				obsoleteDir.delete();
+				if(BuildConfig.DEBUG){
+					Log.d(TAG, "Obsolete disk cache deleted: "+obsoleteDir);
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "deleteObsoleteDiskCacheDir--"+e);
+			} catch (IllegalArgumentException e) {
+				// not a directory
+			}
+		}
+	}
+	
+	/**
+	 * Opens the disk cache with size variants in the given directory, or returns the one this process has open
+	 * there already, since the caches that share a directory must share its ShardedDiskLruCache too.
+	 * The options are only used if it opens the disk cache; an ImageCache that gets the one open already
+	 * shares the size, time to live and eviction listener of the ImageCache that opened it.
+	 * Each call is matched by a releaseSharedDiskCache(ShardedDiskLruCache) in close().
+	 */
+	private ShardedDiskLruCache acquireSharedDiskCache(File diskCacheDir, DiskLruCache.Options options) throws IOException{
+		synchronized(sSharedDiskCaches){
+			final String path=diskCacheDir.getPath();
+			SharedDiskCache shared=sSharedDiskCaches.get(path);
+			if(shared==null){
+				shared=new SharedDiskCache(ShardedDiskLruCache.open(diskCacheDir, 1, mCacheParams.diskCacheVariants+1,
+						mCacheParams.diskCacheSize, mCacheParams.diskCacheSegments, options));
+				sSharedDiskCaches.put(path, shared);
+			}
+			shared.users++;
+			return shared.diskLruCache;
+		}
+	}
+	/**
+	 * Stops using a disk cache returned by acquireSharedDiskCache(File, DiskLruCache.Options),
+	 * and closes it if no other ImageCache uses it
+	 */
+	private static void releaseSharedDiskCache(ShardedDiskLruCache diskLruCache) throws IOException{
+		synchronized(sSharedDiskCaches){
+			for(Iterator<SharedDiskCache> i=sSharedDiskCaches.values().iterator();i.hasNext();){
+				final SharedDiskCache shared=i.next();
+				if(shared.diskLruCache==diskLruCache){
+					if(--shared.users==0){
+						i.remove();
+						diskLruCache.close();
+					}
+					return;
+				}
+			}
+		}
+		diskLruCache.close();
+	}
+	
 	/**
 	 * Clears both memory and disk cache associated with this ImageCache object.
 	 * Note that this includes disk access so this should not be executed on the main/UI thread.
@@ -352,7 +719,18 @@ public class ImageCache {
 			}
 		}
 		
+		// Bitmaps that are still waiting to be written would come back after the clear
+		IoScheduler.getDefault().cancelWrites(this);
 		synchronized(mDiskCacheLock){
+			if(mCacheParams.diskCacheVariants>0&&mDiskLruCache!=null&&!mDiskLruCache.isClosed()){
+				// Other ImageCaches may be using the disk cache, so it is emptied rather than deleted
+				try {
+					mDiskLruCache.evictAll();
+				} catch (IOException e) {
+					Log.e(TAG, "clearCache---"+e);
+				}
+				return;
+			}
 			mDiskCacheStarting=true;//clearΪtrueʹκεgetBitmapFromDiskCache()wait
 			if(mDiskLruCache!=null && !mDiskLruCache.isClosed()){
 				try {
@@ -367,11 +745,42 @@ public class ImageCache {
 		}
 	}
 	
+	/**
+	 * Removes the bitmaps that were added with the given group, leaving all others in place.
+	 * Bitmaps in the memory cache are found through the disk cache, so this only works with
+	 * a disk cache. Note that this includes disk access so this should not be executed on the main/UI thread.
+	 * @param group The group to remove
+	 */
+	public void removeGroup(String group){
+		synchronized(mDiskCacheLock){
+			if(mDiskLruCache!=null && !mDiskLruCache.isClosed()){
+				try {
+					final Set<String> keys=mDiskLruCache.groupKeys(group);
+					if(mMemoryCache!=null&&!keys.isEmpty()){
+						for(String data:mMemoryCache.snapshot().keySet()){
+							if(keys.contains(hashKeyForDisk(data))){
+								mMemoryCache.remove(data);
+							}
+						}
+					}
+					int removed=mDiskLruCache.removeGroup(group);
+					if(BuildConfig.DEBUG){
+						Log.d(TAG, "Group "+group+" removed, "+removed+" entries");
+					}
+				} catch (IOException e) {
+					Log.e(TAG, "removeGroup---"+e);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Flushes the disk cache associated with this ImageCache object.
 	 * Note that this includes disk access and this should not be executed on the main/UI thread.
 	 */
 	public void flush(){
+		// Bitmaps still waiting behind reads are written first, so that the flush covers them
+		IoScheduler.getDefault().runWrites(this);
 		synchronized(mDiskCacheLock){
 			if(mDiskLruCache!=null){
 				try {
@@ -392,11 +801,17 @@ public class ImageCache {
 	 * Note that this includes disk access and this should not be executed on the main/UI thread.
 	 */
 	public void close(){
+		// Bitmaps still waiting behind reads are written before the disk cache goes away
+		IoScheduler.getDefault().runWrites(this);
 		synchronized(mDiskCacheLock){
 			if(mDiskLruCache!=null){
 				try {
 					if(!mDiskLruCache.isClosed()){
-						mDiskLruCache.close();
+						if(mCacheParams.diskCacheVariants>0){
+							releaseSharedDiskCache(mDiskLruCache);
+						}else{
+							mDiskLruCache.close();
+						}
 						mDiskLruCache=null;
 						if(BuildConfig.DEBUG){
 							Log.d(TAG, "Disk cache closed!");
@@ -476,6 +891,18 @@ public class ImageCache {
 		return mRetainFragment;
 	}
 	
+	/**
+	 * A disk cache with size variants and the number of ImageCaches using it
+	 */
+	private static class SharedDiskCache{
+		final ShardedDiskLruCache diskLruCache;
+		int users;
+		
+		SharedDiskCache(ShardedDiskLruCache diskLruCache){
+			this.diskLruCache=diskLruCache;
+		}
+	}
+	
 	/**
 	 * A simple non-UI Fragment that stores a single Object and is retained over
 	 * configuration changes. It will be used to retain the ImageCache object.
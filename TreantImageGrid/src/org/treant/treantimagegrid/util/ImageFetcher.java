@@ -1,15 +1,17 @@
 package org.treant.treantimagegrid.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
 
 import org.treant.treantimagegrid.BuildConfig;
@@ -34,13 +36,22 @@ public class ImageFetcher extends ImageResizer {
 	private static final String HTTP_CACHE_DIR="http";
 	
 	private static final int HTTP_CACHE_SIZE=1024*1024*10; //10MB
-	private static final int IO_BUFFER_SIZE = 8 * 1024; //8KB
+	// The HTTP cache takes a share of the free space between these sizes, 10MB is only where it starts
+	private static final long HTTP_CACHE_MIN_SIZE=1024*1024*2; //2MB
+	private static final long HTTP_CACHE_MAX_SIZE=1024*1024*50; //50MB
+	private static final float HTTP_CACHE_FREE_SPACE_FRACTION=0.05f;
+	private static final int HTTP_CACHE_FAN_OUT=16;
+	// Store images that are served under several URLs once
+	private static final boolean HTTP_CACHE_DEDUPLICATE=true;
 	
 	private File mHttpCacheDir;
 	private Object mHttpDiskCacheLock=new Object();
-	private DiskLruCache mHttpDiskCache;
+	private ContentAddressedCache mHttpDiskCache;
 	private boolean mHttpDiskCacheStarting=true;
-	private static final int DISK_CACHE_INDEX=0;
+	private static final int DISK_CACHE_INDEX=ContentAddressedCache.PAYLOAD;
+	// The HTTP caches this process has open, by directory, with the number of ImageFetchers using each:
+	// the grid and the detail pager fetch through the same directory, which a process may only open once
+	private static final Map<String, SharedHttpCache> sSharedHttpCaches=new HashMap<String, SharedHttpCache>();
 	
 	/**
 	 * Initialize providing a single target image size (used both width and height)
@@ -83,9 +94,20 @@ public class ImageFetcher extends ImageResizer {
 			mHttpCacheDir.mkdirs();
 		}
 		synchronized(mHttpDiskCacheLock){
-			if(ImageCache.getUsableSpace(mHttpCacheDir)>HTTP_CACHE_SIZE){
+			if(ImageCache.getUsableSpace(mHttpCacheDir)>HTTP_CACHE_MIN_SIZE){
 				try {
-					mHttpDiskCache=DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE);
+					DiskLruCache.Options options=new DiskLruCache.Options();
+					// Interrupted downloads are kept so that they can be continued
+					options.keepPartialValues=true;
+					options.directoryFanOut=HTTP_CACHE_FAN_OUT;
+					// Downloads are expensive to repeat; sync them every second without making commits wait
+					options.durability=DiskLruCache.Durability.BATCHED;
+					options.sizePolicy=new FreeSpaceSizePolicy(HTTP_CACHE_MIN_SIZE, HTTP_CACHE_MAX_SIZE, HTTP_CACHE_FREE_SPACE_FRACTION);
+					// Duplicate downloads are merged and the journal compacted while the thumbnail reads are quiet
+					options.ioScheduler=IoScheduler.getDefault();
+					// A sync service or widget may open the same directory; the downloads are shared with it
+					options.multiProcess=true;
+					mHttpDiskCache=acquireSharedHttpCache(mHttpCacheDir, options);
 					if(BuildConfig.DEBUG){
 						Log.d(TAG, "HTTPDiskCache initialized");
 					}
@@ -100,6 +122,45 @@ public class ImageFetcher extends ImageResizer {
 
 	}
 	
+	/**
+	 * Opens the HTTP cache in the given directory, or returns the one this process has open there already.
+	 * Each call is matched by a releaseSharedHttpCache(ContentAddressedCache) in closeCacheInternal().
+	 */
+	private static ContentAddressedCache acquireSharedHttpCache(File httpCacheDir, DiskLruCache.Options options) throws IOException{
+		synchronized(sSharedHttpCaches){
+			final String path=httpCacheDir.getPath();
+			SharedHttpCache shared=sSharedHttpCaches.get(path);
+			if(shared==null){
+				// Unlike the thumbnail cache this one isn't sharded: it takes one commit per download, so its lock
+				// is rarely contended, and it is shared with other processes, which a ShardedDiskLruCache can't
+				// keep within one budget since it reads the sizes of its segments in this process only
+				shared=new SharedHttpCache(ContentAddressedCache.open(httpCacheDir, 1, HTTP_CACHE_SIZE, options, HTTP_CACHE_DEDUPLICATE));
+				sSharedHttpCaches.put(path, shared);
+			}
+			shared.users++;
+			return shared.httpCache;
+		}
+	}
+	/**
+	 * Stops using an HTTP cache returned by acquireSharedHttpCache(File, DiskLruCache.Options),
+	 * and closes it if no other ImageFetcher uses it
+	 */
+	private static void releaseSharedHttpCache(ContentAddressedCache httpCache) throws IOException{
+		synchronized(sSharedHttpCaches){
+			for(Iterator<SharedHttpCache> i=sSharedHttpCaches.values().iterator();i.hasNext();){
+				final SharedHttpCache shared=i.next();
+				if(shared.httpCache==httpCache){
+					if(--shared.users==0){
+						i.remove();
+						httpCache.close();
+					}
+					return;
+				}
+			}
+		}
+		httpCache.close();
+	}
+	
 	@Override
 	protected void clearCacheInternal() {
 		// TODO Auto-generated method stub
@@ -107,7 +168,8 @@ public class ImageFetcher extends ImageResizer {
 		synchronized(mHttpDiskCacheLock){
 			if(mHttpDiskCache!=null && !mHttpDiskCache.isClosed()){
 				try {
-					mHttpDiskCache.delete();
+					// Other ImageFetchers may be using the cache, so it is emptied rather than deleted
+					mHttpDiskCache.evictAll();
 					if(BuildConfig.DEBUG){
 						Log.d(TAG, "Http Cache Cleared!");
 					}
@@ -115,9 +177,6 @@ public class ImageFetcher extends ImageResizer {
 					// TODO Auto-generated catch block
 					Log.e(TAG, "clearHttpDiskCacheInternal--"+e);
 				}
-				mHttpDiskCache=null;
-				mHttpDiskCacheStarting=true;//reset the flag
-				initHttpDiskCache();
 			}
 		}
 	}
@@ -149,7 +208,7 @@ public class ImageFetcher extends ImageResizer {
 			if(mHttpDiskCache!=null){
 				try {
 					if(!mHttpDiskCache.isClosed()){
-						mHttpDiskCache.close();
+						releaseSharedHttpCache(mHttpDiskCache);
 						if(BuildConfig.DEBUG){
 							Log.d(TAG, "HttpDiskCache closed");
 						}
@@ -157,6 +216,9 @@ public class ImageFetcher extends ImageResizer {
 				} catch (IOException e) {
 					// TODO Auto-generated catch block
 					Log.e(TAG, "HttpDiskCache close----"+e);
+				} finally{
+					// released even if closing failed, so that it is never released twice
+					mHttpDiskCache=null;
 				}
 			}
 		}
@@ -184,6 +246,7 @@ public class ImageFetcher extends ImageResizer {
 		FileDescriptor fileDescriptor=null;  //Wraps a Unix file descriptor
 		FileInputStream fileInputStream=null;
 		DiskLruCache.Snapshot snapshot;
+		ContentAddressedCache httpDiskCache;
 		synchronized(mHttpDiskCacheLock){
 			// wait for disk cache to initialize 
 			// until then mHttpDiskCacheStarting turns false and mHttpDiskCacheLock.notifyAll() is invoked
@@ -194,52 +257,66 @@ public class ImageFetcher extends ImageResizer {
 					// TODO Auto-generated catch block
 				}
 			}
-			
-			if(mHttpDiskCache!=null){
-				try {
-					snapshot=mHttpDiskCache.get(key);
-					if(snapshot==null){
-						if(BuildConfig.DEBUG){
-							Log.d(TAG, "processBitmap works,--not found in http cache, downloading~~");
-						}
-						DiskLruCache.Editor editor=mHttpDiskCache.edit(key);
-						if(editor!=null){
-							if(downloadUrlToStream(data, editor.newOutputStream(DISK_CACHE_INDEX))){
-								editor.commit();
-							}else{
-								editor.abort();
-							}
-						}
-						snapshot=mHttpDiskCache.get(key);     //reacquire snapshot
-					}
-					
-					if(snapshot!=null){
-						fileInputStream=(FileInputStream)snapshot.getInputStream(DISK_CACHE_INDEX);
-						fileDescriptor=fileInputStream.getFD();
+			// the download runs outside the lock, so that other URLs are fetched meanwhile
+			httpDiskCache=mHttpDiskCache;
+		}
+		
+		if(httpDiskCache!=null){
+			try {
+				snapshot=httpDiskCache.get(key);
+				if(snapshot==null){
+					if(BuildConfig.DEBUG){
+						Log.d(TAG, "processBitmap works,--not found in http cache, downloading~~");
 					}
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					Log.e(TAG, "processBitmap--error"+e);
-				} catch (IllegalStateException e){
-					//Thrown when an action is attempted at a time when the VM is not in the correct state.
-					Log.e(TAG, "processBitmap--error"+e);
-				} finally{
-					if(fileDescriptor==null&&fileInputStream!=null){
-						try {
-							fileInputStream.close();
-						} catch (IOException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
+					DiskLruCache.Editor editor=httpDiskCache.edit(key);
+					if(editor!=null){
+						if(downloadUrlToCache(data, editor)){
+							httpDiskCache.commit(key, editor);
+						}else{
+							// Keep what was downloaded, the next attempt continues from there
+							editor.suspend();
 						}
+						snapshot=httpDiskCache.get(key);     //reacquire snapshot
+					}else{
+						// Another thread is downloading the same URL, use what it commits
+						snapshot=httpDiskCache.awaitEdit(key);
+					}
+				}
+				
+				if(snapshot!=null){
+					fileInputStream=(FileInputStream)snapshot.getInputStream(DISK_CACHE_INDEX);
+					fileDescriptor=fileInputStream.getFD();
+				}
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				Log.e(TAG, "processBitmap--error"+e);
+			} catch (IllegalStateException e){
+				//Thrown when an action is attempted at a time when the VM is not in the correct state.
+				Log.e(TAG, "processBitmap--error"+e);
+			} catch (InterruptedException e){
+				Log.e(TAG, "processBitmap--interrupted while waiting for "+data);
+				Thread.currentThread().interrupt();
+			} finally{
+				if(fileDescriptor==null&&fileInputStream!=null){
+					try {
+						fileInputStream.close();
+					} catch (IOException e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
 					}
 				}
 			}
-			
 		}
 		
 		Bitmap bitmap=null;
 		if(fileDescriptor!=null){
-			bitmap=decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth, mImageHeight);
+			// Pending writes to the disk caches wait until this read is done
+			IoScheduler.getDefault().beginRead();
+			try {
+				bitmap=decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth, mImageHeight);
+			} finally{
+				IoScheduler.getDefault().endRead();
+			}
 		}
 		if(fileInputStream!=null){
 			try {
@@ -253,30 +330,39 @@ public class ImageFetcher extends ImageResizer {
 	}
 	
 	/**
-	 * Download a bitmap from a URL and write the content to a output stream.
+	 * Download a bitmap from a URL and write the content to a disk cache entry.
 	 * @param urlString The URL from which a bitmap will be fetched
-	 * @param outputStream The output stream the bitmap content will be write to
+	 * @param editor The editor of the entry the bitmap content will be write to
 	 * @return true if successful, false otherwise
 	 */
-	private boolean downloadUrlToStream(String urlString, OutputStream outputStream){
+	private boolean downloadUrlToCache(String urlString, DiskLruCache.Editor editor){
 		disableConnectionReuseIfNecessary();
 		HttpURLConnection urlConnection=null;
-		BufferedInputStream in=null;
-		BufferedOutputStream out=null;
+		ReadableByteChannel in=null;
 		
 		try {
 			URL url=new URL(urlString);
+				// An earlier attempt may have left part of the image behind
+				long offset=editor.resume(DISK_CACHE_INDEX);
 				urlConnection=(HttpURLConnection)url.openConnection();
-				in=new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-				out=new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-				int b;
-				while((b=in.read())!=-1){
-					out.write(b);
+				if(offset>0){
+					urlConnection.setRequestProperty("Range", "bytes="+offset+"-");
+					if(!isRangeResponse(urlConnection, offset)){
+						// The server doesn't continue where we left off, download the whole image again
+						editor.restart(DISK_CACHE_INDEX);
+						if(urlConnection.getResponseCode()!=HttpURLConnection.HTTP_OK){
+							urlConnection.disconnect();
+							urlConnection=(HttpURLConnection)url.openConnection();
+						}
+					}
 				}
+				in=Channels.newChannel(urlConnection.getInputStream());
+				// Copied straight to the cache file instead of byte by byte through buffered streams
+				editor.transferFrom(DISK_CACHE_INDEX, in);
 				return true;
 		} catch (MalformedURLException e) {
 			// Actually, MalformedURLException extends IOException
-			Log.e(TAG, "downloadUrlToStream---urlString couldn't be parsed!");
+			Log.e(TAG, "downloadUrlToCache---urlString couldn't be parsed!");
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			Log.e(TAG, "IO Error in download bitmap--"+e);
@@ -286,9 +372,6 @@ public class ImageFetcher extends ImageResizer {
 				urlConnection.disconnect();
 			}
 			try {
-				if(out!=null){
-					out.close();
-				}
 				if(in!=null){
 					in.close();
 				}
@@ -300,6 +383,32 @@ public class ImageFetcher extends ImageResizer {
 		return false;
 	}
 	
+	/**
+	 * An HTTP cache and the number of ImageFetchers using it
+	 */
+	private static class SharedHttpCache{
+		final ContentAddressedCache httpCache;
+		int users;
+		
+		SharedHttpCache(ContentAddressedCache httpCache){
+			this.httpCache=httpCache;
+		}
+	}
+	
+	/**
+	 * Whether the server answered a Range request with the content from offset on.
+	 * @param urlConnection The connection the Range request was sent on
+	 * @param offset The first byte that was asked for
+	 * @return true if the response continues the content at offset, false otherwise
+	 */
+	private static boolean isRangeResponse(HttpURLConnection urlConnection, long offset) throws IOException{
+		if(urlConnection.getResponseCode()!=HttpURLConnection.HTTP_PARTIAL){
+			return false;
+		}
+		String contentRange=urlConnection.getHeaderField("Content-Range");
+		return contentRange!=null&&contentRange.startsWith("bytes "+offset+"-");
+	}
+	
 	/**
 	 * Work-around for bug prior to Froyo, see here for more info:
 	 * http://android-developers.blogspot.com/2011/09/android-http-clients.html
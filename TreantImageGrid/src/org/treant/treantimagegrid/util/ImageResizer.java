@@ -56,6 +56,16 @@ public class ImageResizer extends ImageWorker  {
 		mImageHeight=height;
 	}
 	
+	@Override
+	protected int getImageWidth() {
+		return mImageWidth;
+	}
+	
+	@Override
+	protected int getImageHeight() {
+		return mImageHeight;
+	}
+	
 	/**
 	 * Decode and sample down a bitmap from a file input stream to the requested dimensions
 	 * @param fileDescriptor The file descriptor to read from
@@ -90,7 +100,7 @@ public class ImageResizer extends ImageWorker  {
 	 * @param reqHeight The requested height of the requesting bitmap
 	 * @return The suitable value to be used for inSampleSize
 	 */
-	private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight){
+	static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight){
 		// Raw dimension of image
 		final int width=options.outWidth;
 		final int height=options.outHeight;
@@ -118,6 +118,8 @@ public abstract class ImageWorker {
 		this.mExitTasksEarly=exitTasksEarly;
 	}
 	public void setPauseWork(boolean pauseWork){
+		// Disk writes and cache maintenance wait for the fling to end as well
+		IoScheduler.getDefault().setScrolling(pauseWork);
 		synchronized(mPauseWorkLock){
 			this.mPauseWork=pauseWork;
 			if(!mPauseWork){
@@ -207,7 +209,7 @@ public abstract class ImageWorker {
 			// and our "exit early" flag is not set then try and fetch the bitmap from the cache.
 			if(mImageCache!=null&&!isCancelled()
 					&&getAttachedImageView()!=null&&!mExitTasksEarly){
-				bitmap=mImageCache.getBitmapFromDiskCache(dataString);
+				bitmap=mImageCache.getBitmapFromDiskCache(dataString, getImageWidth(), getImageHeight());
 			}
 			
 			// If the bitmap was not found in the cache and this task has not been cancelled by another thread
@@ -406,4 +408,19 @@ public abstract class ImageWorker {
 	 */
 	protected abstract Bitmap processBitmap(Object data);
 	
+	/**
+	 * The width of the bitmaps processBitmap(Object) produces, so that a disk cache that holds size variants
+	 * can sample a larger variant down to it. 0 by default, which reads the largest variant.
+	 */
+	protected int getImageWidth(){
+		return 0;
+	}
+	
+	/**
+	 * The height of the bitmaps processBitmap(Object) produces, see getImageWidth()
+	 */
+	protected int getImageHeight(){
+		return 0;
+	}
+	
 }
@@ -0,0 +1,267 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link CacheFileSystem} that keeps its files in the heap. It lets the
+ * cache run without touching the device's storage, for example to measure
+ * the cache's own overhead, and it can be wrapped by a file system that fails
+ * on purpose to test how the cache copes with I/O errors.
+ *
+ * <p>Like on disk, a file can only be created in a directory that exists, and
+ * a stream keeps working on its file after the file was deleted or replaced.
+ * Files are limited to 2 GiB.
+ */
+public final class InMemoryFileSystem implements CacheFileSystem {
+    /** Guarded by this. Files by path. */
+    private final Map<String, Inode> files = new HashMap<String, Inode>();
+    /** Guarded by this. */
+    private final Set<String> directories = new HashSet<String>();
+
+    /** The contents of a file. Guarded by the file system. */
+    private static final class Inode {
+        byte[] data = new byte[64];
+        int length;
+    }
+
+    @Override public synchronized InputStream open(File file) throws FileNotFoundException {
+        Inode inode = files.get(file.getPath());
+        if (inode == null) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return new MemoryInputStream(inode);
+    }
+
+    @Override public synchronized OutputStream create(File file) throws FileNotFoundException {
+        checkParent(file);
+        Inode inode = new Inode();
+        files.put(file.getPath(), inode);
+        return new MemoryOutputStream(inode);
+    }
+
+    @Override public synchronized OutputStream append(File file) throws FileNotFoundException {
+        Inode inode = files.get(file.getPath());
+        if (inode == null) {
+            return create(file);
+        }
+        return new MemoryOutputStream(inode);
+    }
+
+    private void checkParent(File file) throws FileNotFoundException {
+        String parent = file.getParent();
+        if (directories.contains(file.getPath())
+                || (parent != null && !directories.contains(parent))) {
+            throw new FileNotFoundException(file.getPath());
+        }
+    }
+
+    @Override public synchronized boolean rename(File from, File to) {
+        Inode inode = files.get(from.getPath());
+        if (inode == null) {
+            return false;
+        }
+        try {
+            checkParent(to);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        files.remove(from.getPath());
+        files.put(to.getPath(), inode);
+        return true;
+    }
+
+    @Override public synchronized boolean delete(File file) {
+        String path = file.getPath();
+        if (files.remove(path) != null) {
+            return true;
+        }
+        if (directories.contains(path) && list(file).length == 0) {
+            directories.remove(path);
+            return true;
+        }
+        return false;
+    }
+
+    @Override public synchronized boolean exists(File file) {
+        return files.containsKey(file.getPath()) || directories.contains(file.getPath());
+    }
+
+    @Override public synchronized void truncate(File file, long length)
+            throws FileNotFoundException {
+        Inode inode = files.get(file.getPath());
+        if (inode == null) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        if (inode.length > length) {
+            inode.length = (int) length;
+        }
+    }
+
+    @Override public synchronized void truncate(OutputStream out, long length)
+            throws IOException {
+        if (!(out instanceof MemoryOutputStream)) {
+            throw new IOException("not a stream of this file system: " + out);
+        }
+        Inode inode = ((MemoryOutputStream) out).inode;
+        if (inode.length > length) {
+            inode.length = (int) length;
+        }
+    }
+
+    @Override public synchronized void sync(File file) throws FileNotFoundException {
+        if (!files.containsKey(file.getPath())) {
+            throw new FileNotFoundException(file.getPath());
+        }
+    }
+
+    @Override public void sync(OutputStream out) {
+    }
+
+    @Override public synchronized long size(File file) {
+        Inode inode = files.get(file.getPath());
+        return inode != null ? inode.length : 0;
+    }
+
+    @Override public synchronized File[] list(File directory) {
+        String path = directory.getPath();
+        if (!directories.contains(path)) {
+            return null;
+        }
+        List<File> result = new ArrayList<File>();
+        for (String file : files.keySet()) {
+            addIfChild(result, path, file);
+        }
+        for (String dir : directories) {
+            addIfChild(result, path, dir);
+        }
+        return result.toArray(new File[result.size()]);
+    }
+
+    private static void addIfChild(List<File> result, String directory, String path) {
+        File file = new File(path);
+        if (directory.equals(file.getParent())) {
+            result.add(file);
+        }
+    }
+
+    @Override public synchronized void mkdirs(File directory) throws IOException {
+        for (File dir = directory; dir != null; dir = dir.getParentFile()) {
+            if (files.containsKey(dir.getPath())) {
+                throw new IOException("not a directory: " + dir);
+            }
+            directories.add(dir.getPath());
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by all files, including those that
+     * are only kept alive by open streams.
+     */
+    public synchronized long totalBytes() {
+        long total = 0;
+        for (Inode inode : files.values()) {
+            total += inode.length;
+        }
+        return total;
+    }
+
+    private final class MemoryInputStream extends InputStream {
+        private final Inode inode;
+        private int position;
+
+        private MemoryInputStream(Inode inode) {
+            this.inode = inode;
+        }
+
+        @Override public int read() {
+            synchronized (InMemoryFileSystem.this) {
+                return position < inode.length ? inode.data[position++] & 0xff : -1;
+            }
+        }
+
+        @Override public int read(byte[] buffer, int offset, int count) {
+            synchronized (InMemoryFileSystem.this) {
+                if (count == 0) {
+                    return 0;
+                }
+                int read = Math.min(count, inode.length - position);
+                if (read <= 0) {
+                    return -1;
+                }
+                System.arraycopy(inode.data, position, buffer, offset, read);
+                position += read;
+                return read;
+            }
+        }
+
+        @Override public long skip(long count) {
+            synchronized (InMemoryFileSystem.this) {
+                int skipped = (int) Math.max(0, Math.min(count, inode.length - position));
+                position += skipped;
+                return skipped;
+            }
+        }
+
+        @Override public int available() {
+            synchronized (InMemoryFileSystem.this) {
+                return Math.max(0, inode.length - position);
+            }
+        }
+    }
+
+    private final class MemoryOutputStream extends OutputStream {
+        private final Inode inode;
+        private boolean closed;
+
+        private MemoryOutputStream(Inode inode) {
+            this.inode = inode;
+        }
+
+        @Override public void write(int oneByte) throws IOException {
+            synchronized (InMemoryFileSystem.this) {
+                ensureCapacity(1);
+                inode.data[inode.length++] = (byte) oneByte;
+            }
+        }
+
+        @Override public void write(byte[] buffer, int offset, int count) throws IOException {
+            synchronized (InMemoryFileSystem.this) {
+                ensureCapacity(count);
+                System.arraycopy(buffer, offset, inode.data, inode.length, count);
+                inode.length += count;
+            }
+        }
+
+        private void ensureCapacity(int extra) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (extra > Integer.MAX_VALUE - inode.length) {
+                throw new IOException("file too large");
+            }
+            if (inode.length + extra > inode.data.length) {
+                int capacity = (int) Math.min(Integer.MAX_VALUE,
+                        Math.max(2L * inode.data.length, (long) inode.length + extra));
+                byte[] grown = new byte[capacity];
+                System.arraycopy(inode.data, 0, grown, 0, inode.length);
+                inode.data = grown;
+            }
+        }
+
+        @Override public void close() {
+            synchronized (InMemoryFileSystem.this) {
+                closed = true;
+            }
+        }
+    }
+}
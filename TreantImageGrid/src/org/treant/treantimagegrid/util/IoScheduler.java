@@ -0,0 +1,370 @@
+package org.treant.treantimagegrid.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders the disk I/O of the caches that share it, so that a thumbnail that
+ * is about to be shown isn't read behind work that can wait.
+ *
+ * <ul>
+ * <li>Reads are marked with {@link #beginRead} and {@link #endRead}, and
+ *     run on the caller's thread as before.
+ * <li>Writes handed to {@link #submitWrite} run one at a time on the
+ *     scheduler's thread, but only while no read is in progress and the
+ *     user isn't scrolling, see {@link #setScrolling}. A write of a key that
+ *     is still waiting replaces the earlier one. Writes that hold on to
+ *     their data, such as a bitmap to compress, say how many bytes they
+ *     hold; once the waiting ones hold more than the scheduler allows, the
+ *     oldest are run on the thread that submits the next one.
+ * <li>Maintenance handed to {@link #runWhenIdle}, such as the journal
+ *     compaction and expiry sweeps of a cache with
+ *     {@link DiskLruCache.Options#ioScheduler}, is started once there have
+ *     been no reads or writes for a while.
+ * </ul>
+ *
+ * <p>A write that has started isn't interrupted by a read; reads only go
+ * first in between writes. A cache that is flushed or closed runs its
+ * waiting writes right away with {@link #runWrites}. A write or maintenance
+ * task that throws is logged, and the ones after it still run.
+ */
+public final class IoScheduler {
+    private static final String TAG = "IoScheduler";
+    /** How many bytes the writes waiting in the default scheduler may hold. */
+    static final long DEFAULT_MAX_PENDING_WRITE_BYTES = 4 * 1024 * 1024;
+    private static final IoScheduler DEFAULT =
+            new IoScheduler(500, DEFAULT_MAX_PENDING_WRITE_BYTES);
+
+    private final long idleDelayNanos;
+    private final long maxPendingWriteBytes;
+    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    /** Writes waiting for their turn, oldest first. Guarded by this. */
+    private final Map<WriteKey, PendingWrite> writes =
+            new LinkedHashMap<WriteKey, PendingWrite>();
+    /** The bytes that the waiting writes hold. Guarded by this. */
+    private long pendingWriteBytes;
+    /** Guarded by this. */
+    private final List<Runnable> idleTasks = new ArrayList<Runnable>();
+    private int readsInProgress;
+    private boolean scrolling;
+    /** When the last read or write ended. */
+    private long lastActivity = System.nanoTime();
+    /** True while the worker is submitted or running. */
+    private boolean running;
+    /** The owners of the writes that are running, one for each write. */
+    private final List<Object> writeOwners = new ArrayList<Object>();
+
+    /**
+     * Returns the scheduler shared by the caches of this process.
+     * {@link ImageWorker} tells it when the user is scrolling.
+     */
+    public static IoScheduler getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param idleDelayMillis how long there have to be no reads or writes
+     *     before maintenance starts
+     */
+    public IoScheduler(long idleDelayMillis) {
+        this(idleDelayMillis, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param idleDelayMillis how long there have to be no reads or writes
+     *     before maintenance starts
+     * @param maxPendingWriteBytes how many bytes the waiting writes may hold,
+     *     see {@link #submitWrite(Object, String, Runnable, long)}
+     */
+    public IoScheduler(long idleDelayMillis, long maxPendingWriteBytes) {
+        if (idleDelayMillis < 0) {
+            throw new IllegalArgumentException("idleDelayMillis < 0");
+        }
+        if (maxPendingWriteBytes < 0) {
+            throw new IllegalArgumentException("maxPendingWriteBytes < 0");
+        }
+        this.idleDelayNanos = TimeUnit.MILLISECONDS.toNanos(idleDelayMillis);
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+    }
+
+    /** Marks the start of a read; writes wait until it ends. */
+    public synchronized void beginRead() {
+        readsInProgress++;
+    }
+
+    /** Marks the end of a read started with {@link #beginRead}. */
+    public synchronized void endRead() {
+        if (readsInProgress == 0) {
+            throw new IllegalStateException("endRead() without beginRead()");
+        }
+        readsInProgress--;
+        lastActivity = System.nanoTime();
+        notifyAll();
+    }
+
+    /** Holds writes and maintenance back while {@code scrolling} is true. */
+    public synchronized void setScrolling(boolean scrolling) {
+        this.scrolling = scrolling;
+        if (!scrolling) {
+            lastActivity = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Runs {@code write} on the scheduler's thread once no reads are in
+     * progress. If a write of the same {@code key} and {@code owner} is still
+     * waiting, {@code write} takes its place and the earlier one never runs.
+     *
+     * @param owner the cache the write is for, since caches may share keys
+     */
+    public void submitWrite(Object owner, String key, Runnable write) {
+        submitWrite(owner, key, write, 0);
+    }
+
+    /**
+     * Like {@link #submitWrite(Object, String, Runnable)}, for a write that
+     * holds on to {@code bytes} of data until it runs. If the waiting writes
+     * then hold more than the scheduler allows, the oldest of them are run on
+     * the calling thread, even if reads are in progress, until the rest
+     * don't; so a caller that produces data faster than the disk takes it
+     * is slowed down to its pace, rather than piling the data up in memory.
+     */
+    public void submitWrite(Object owner, String key, Runnable write, long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes < 0");
+        }
+        List<PendingWrite> overflow = null;
+        synchronized (this) {
+            PendingWrite replaced = writes.put(new WriteKey(owner, key),
+                    new PendingWrite(owner, write, bytes));
+            if (replaced != null) {
+                pendingWriteBytes -= replaced.bytes;
+            }
+            pendingWriteBytes += bytes;
+            while (pendingWriteBytes > maxPendingWriteBytes) {
+                if (overflow == null) {
+                    overflow = new ArrayList<PendingWrite>();
+                }
+                overflow.add(takeOldestWrite());
+            }
+            schedule();
+        }
+        if (overflow != null) {
+            for (PendingWrite oldest : overflow) {
+                runTask(oldest.write);
+                taskEnded(oldest.owner);
+            }
+        }
+    }
+
+    /** Drops the writes for {@code owner} that haven't started yet. */
+    public synchronized void cancelWrites(Object owner) {
+        for (Iterator<Map.Entry<WriteKey, PendingWrite>> i = writes.entrySet().iterator();
+                i.hasNext(); ) {
+            Map.Entry<WriteKey, PendingWrite> write = i.next();
+            if (write.getKey().owner == owner) {
+                pendingWriteBytes -= write.getValue().bytes;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Waits for the writes for {@code owner} that are running, if any, and
+     * then runs the writes for {@code owner} that haven't started yet on the
+     * calling thread, oldest first, without waiting for reads. A cache calls it before it is flushed or closed,
+     * so that no write handed to {@link #submitWrite} is lost.
+     */
+    public void runWrites(Object owner) {
+        List<Runnable> owned = new ArrayList<Runnable>();
+        synchronized (this) {
+            boolean interrupted = false;
+            while (writeOwners.contains(owner)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            for (Iterator<Map.Entry<WriteKey, PendingWrite>> i = writes.entrySet().iterator();
+                    i.hasNext(); ) {
+                Map.Entry<WriteKey, PendingWrite> write = i.next();
+                if (write.getKey().owner == owner) {
+                    owned.add(write.getValue().write);
+                    pendingWriteBytes -= write.getValue().bytes;
+                    i.remove();
+                }
+            }
+        }
+        for (Runnable write : owned) {
+            write.run();
+        }
+    }
+
+    /**
+     * Runs {@code task} on the scheduler's thread once there are no writes
+     * waiting, no reads in progress and none for the idle delay, and the
+     * user isn't scrolling. The task should only start the maintenance on a
+     * thread of its own, so that it doesn't hold up the writes behind it.
+     */
+    public synchronized void runWhenIdle(Runnable task) {
+        idleTasks.add(task);
+        schedule();
+    }
+
+    /** Returns the number of writes that haven't started yet. */
+    public synchronized int pendingWrites() {
+        return writes.size();
+    }
+
+    private void schedule() {
+        if (!running) {
+            running = true;
+            executorService.execute(worker);
+        }
+    }
+
+    /**
+     * Removes the oldest waiting write and records that it is running; it
+     * has to be followed by {@link #taskEnded}.
+     */
+    private PendingWrite takeOldestWrite() {
+        Iterator<PendingWrite> i = writes.values().iterator();
+        PendingWrite write = i.next();
+        i.remove();
+        pendingWriteBytes -= write.bytes;
+        writeOwners.add(write.owner);
+        return write;
+    }
+
+    /**
+     * Runs a write or maintenance task, logging what it throws rather than
+     * letting it end the thread, and with it the app: no caller is waiting
+     * to handle it, and the tasks after it still have to run.
+     */
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Write or maintenance task failed", e);
+        }
+    }
+
+    /**
+     * Records that a task has ended, which was a write for {@code owner}
+     * unless that is null.
+     */
+    private synchronized void taskEnded(Object owner) {
+        lastActivity = System.nanoTime();
+        if (owner != null) {
+            writeOwners.remove(owner);
+            notifyAll();
+        }
+    }
+
+    private final Runnable worker = new Runnable() {
+        @Override public void run() {
+            while (true) {
+                List<PendingWrite> tasks = nextTasks();
+                if (tasks == null) {
+                    return;
+                }
+                for (PendingWrite task : tasks) {
+                    runTask(task.write);
+                    taskEnded(task.owner);
+                }
+            }
+        }
+    };
+
+    /**
+     * Waits until the next write or the idle tasks may run, and returns
+     * them; or returns null and stops the worker if there is nothing to do.
+     */
+    private synchronized List<PendingWrite> nextTasks() {
+        while (true) {
+            if (writes.isEmpty() && idleTasks.isEmpty()) {
+                running = false;
+                return null;
+            }
+            long wait = 0;
+            if (readsInProgress == 0 && !scrolling) {
+                if (!writes.isEmpty()) {
+                    List<PendingWrite> result = new ArrayList<PendingWrite>(1);
+                    result.add(takeOldestWrite());
+                    return result;
+                }
+                wait = idleDelayNanos - (System.nanoTime() - lastActivity);
+                if (wait <= 0) {
+                    List<PendingWrite> result = new ArrayList<PendingWrite>(idleTasks.size());
+                    for (Runnable task : idleTasks) {
+                        result.add(new PendingWrite(null, task, 0));
+                    }
+                    idleTasks.clear();
+                    return result;
+                }
+            }
+            try {
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /** A write, or a maintenance task if {@link #owner} is null. */
+    private static final class PendingWrite {
+        final Object owner;
+        final Runnable write;
+        /** The bytes the write holds until it runs. */
+        final long bytes;
+
+        PendingWrite(Object owner, Runnable write, long bytes) {
+            this.owner = owner;
+            this.write = write;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class WriteKey {
+        final Object owner;
+        final String key;
+
+        WriteKey(Object owner, String key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof WriteKey)) {
+                return false;
+            }
+            WriteKey other = (WriteKey) o;
+            return owner == other.owner && key.equals(other.key);
+        }
+
+        @Override public int hashCode() {
+            return System.identityHashCode(owner) * 31 + key.hashCode();
+        }
+    }
+}
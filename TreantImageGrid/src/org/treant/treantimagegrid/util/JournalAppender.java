@@ -0,0 +1,762 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Appends {@link DiskLruCache} journal records on a dedicated thread.
+ *
+ * <p>Callers only queue a record, which is cheap enough to do while holding
+ * the cache lock and keeps the records in the order the index was changed.
+ * The appender thread encodes everything queued since its last run, from any
+ * number of threads, and writes and flushes it with a single write. It runs
+ * when one of these is true:
+ * <ul>
+ *     <li>{@code flushRecords} records are waiting, if positive;
+ *     <li>the oldest waiting record is {@code flushIntervalMillis} old, if positive;
+ *     <li>a caller waits for a record with {@link #awaitFlushed} or {@link #flush};
+ *     <li>{@link #MAX_PENDING_RECORDS} records are waiting, which bounds memory.
+ * </ul>
+ * Records that are still queued when the process dies are lost, just like
+ * the contents of a buffered writer would be; "flushed" means handed to the
+ * operating system, not synced to the device.
+ *
+ * <p>An appender that is given a {@link Sync} also forces the journal to the
+ * device: every {@code syncIntervalMillis} while records are unsynced, if
+ * positive, when a caller waits with {@link #sync}, and when it is closed.
+ * The values are forced first, so the journal never reaches the device
+ * ahead of the values its records refer to.
+ *
+ * <p>A failed write is reported to the callers waiting for the records it
+ * held, and only to them. An appender that is given a {@link Repair} cuts
+ * the journal back to its last complete record right away, keeps the records
+ * and writes them again after {@link #RETRY_DELAY_MILLIS}, together with
+ * whatever was queued meanwhile; the error is forgotten once that succeeds.
+ * Records that can't be retried, without a repair or because the repair
+ * says so, are dropped. A failed sync is retried like a failed write.
+ *
+ * <p>The appender also performs the only step of a journal compaction that
+ * has to be atomic. {@link #beginCompaction} makes it keep a copy of every
+ * record written from then on; {@link #completeCompaction} appends that copy
+ * to the compacted journal, lets the caller swap the files and continues
+ * writing to the compacted journal. Neither step blocks callers that queue
+ * records in the meantime.
+ */
+final class JournalAppender implements Closeable {
+    /** Records queued before the appender runs regardless of the flush policy. */
+    static final int MAX_PENDING_RECORDS = 512;
+    /** How long the appender waits after a failed write or sync before trying again. */
+    static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final int flushRecords;
+    private final long flushIntervalMillis;
+    /** Forces the journal and values to the device, or null to never do so. */
+    private final Sync sync;
+    private final long syncIntervalMillis;
+    /** Cuts off what a failed write left behind, or null to drop its records. */
+    private final Repair repair;
+    private final Thread thread;
+
+    /** Guards all fields below. */
+    private final Object lock = new Object();
+    private List<Object> pending = new ArrayList<Object>();
+    private long pendingSince;
+    private long enqueuedSeq;
+    private long flushedSeq;
+    private long flushRequestedSeq;
+    private long syncedSeq;
+    private long syncRequestedSeq;
+    /** When the oldest record that hasn't been synced was queued. */
+    private long unsyncedSince;
+    private boolean closed;
+    /** The error of the last failed write, for the records up to writeFailedSeq. */
+    private IOException writeFailure;
+    private long writeFailedSeq;
+    /** The error of the last write whose records were dropped, those after lostFromSeq. */
+    private IOException lostFailure;
+    private long lostFromSeq;
+    private long lostToSeq;
+    /** The error of the last failed sync, for the records up to syncFailedSeq. */
+    private IOException syncFailure;
+    private long syncFailedSeq;
+    /** The appender doesn't run before this time after a failure, unless closed. */
+    private long retryAt;
+
+    /** Only touched by the appender thread once it has started. */
+    private OutputStream out;
+    private long length;
+    /** True if a failed write may have left part of a record at the end of the journal. */
+    private boolean damaged;
+    /** How many items of the batch being written have reached the journal. */
+    private int itemsWritten;
+    /** Records written since the compaction began, or null when not compacting. */
+    private DiskLruJournal.Buffer compactionTail;
+
+    /**
+     * Installs a compacted journal in place of the current one. Called on the
+     * appender thread once the compacted journal holds every record.
+     */
+    interface Swap {
+        /** Returns false if the compacted journal could not be installed. */
+        boolean swap() throws IOException;
+    }
+
+    /**
+     * Forces the journal, and the values its records refer to, to the
+     * device. Called on the appender thread.
+     */
+    interface Sync {
+        /** Forces every value that the journaled records refer to. */
+        void syncValues() throws IOException;
+
+        /** Forces what was written to {@code journal}. */
+        void syncJournal(OutputStream journal) throws IOException;
+    }
+
+    /**
+     * Cuts off what a failed write left of its records. Called on the
+     * appender thread right after the write failed, and again before the next
+     * write if that threw.
+     */
+    interface Repair {
+        /**
+         * Truncates {@code journal}, of which the appender had written
+         * {@code length} bytes before the failed write, after its last
+         * complete record. Returns false if the failed records must not be
+         * written later, as in a shared journal that may only be appended to
+         * while the journal lock is held; they are dropped then.
+         */
+        boolean repair(OutputStream journal, long length) throws IOException;
+    }
+
+    JournalAppender(OutputStream out, long length, int flushRecords, long flushIntervalMillis,
+            String name) {
+        this(out, length, flushRecords, flushIntervalMillis, null, 0, null, name);
+    }
+
+    JournalAppender(OutputStream out, long length, int flushRecords, long flushIntervalMillis,
+            Sync sync, long syncIntervalMillis, Repair repair, String name) {
+        this.out = out;
+        this.length = length;
+        this.flushRecords = flushRecords;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.sync = sync;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.repair = repair;
+        this.thread = new Thread(new Runnable() {
+            @Override public void run() {
+                drainLoop();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /** A record waiting to be encoded. */
+    private static final class Record {
+        final int op;
+        final String key;
+        final long[] lengths;
+        final String value;
+
+        Record(int op, String key, long[] lengths, String value) {
+            this.op = op;
+            this.key = key;
+            this.lengths = lengths;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Records that are queued, written and replayed as a unit, see
+     * {@link #append(Batch)}.
+     */
+    static final class Batch {
+        private final List<Record> records = new ArrayList<Record>();
+
+        /** Adds a record; {@code lengths} is copied like {@link #append} does. */
+        void add(int op, String key, long[] lengths) {
+            records.add(new Record(op, key, copy(lengths), null));
+        }
+
+        /** Adds a TAG record. */
+        void addTag(String key, String tag) {
+            records.add(new Record(DiskLruJournal.OP_TAG, key, null, tag));
+        }
+
+        boolean isEmpty() {
+            return records.isEmpty();
+        }
+    }
+
+    /** Makes the records queued after it go to another journal file. */
+    private static final class Switch {
+        final OutputStream out;
+        final long length;
+
+        Switch(OutputStream out, long length) {
+            this.out = out;
+            this.length = length;
+        }
+    }
+
+    /** Takes the place of a record that was dropped after a failed write. */
+    private static final Object DROPPED = new Object();
+
+    /** Starts copying written records for a compaction. */
+    private static final Object BEGIN_COMPACTION = new Object();
+
+    /** Finishes a compaction. */
+    private static final class CompleteCompaction {
+        final OutputStream out;
+        final long length;
+        final Swap swap;
+
+        CompleteCompaction(OutputStream out, long length, Swap swap) {
+            this.out = out;
+            this.length = length;
+            this.swap = swap;
+        }
+    }
+
+    /** Captures the journal length at the point it was queued. */
+    static final class Mark {
+        private final long seq;
+        private long offset;
+
+        private Mark(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Queues a record and returns its sequence number. {@code lengths} is
+     * copied, so the caller may keep modifying its array.
+     */
+    long append(int op, String key, long[] lengths) {
+        return enqueue(new Record(op, key, copy(lengths), null));
+    }
+
+    /**
+     * Queues the records of {@code batch} with a single lock acquisition and
+     * returns one sequence number for all of them. They are written with one
+     * write behind a BATCH header, so a replay applies either all or none.
+     */
+    long append(Batch batch) {
+        return enqueue(batch);
+    }
+
+    private static long[] copy(long[] lengths) {
+        if (lengths == null) {
+            return null;
+        }
+        long[] copy = new long[lengths.length];
+        System.arraycopy(lengths, 0, copy, 0, lengths.length);
+        return copy;
+    }
+
+    /**
+     * Queues a META record setting {@code name} to {@code value}.
+     */
+    long appendMeta(String name, String value) {
+        return enqueue(new Record(DiskLruJournal.OP_META, name, null, value));
+    }
+
+    /**
+     * Makes every record queued after this call go to {@code newOut}, which
+     * already holds {@code newLength} bytes. Records queued before still go
+     * to the previous stream, which is then closed.
+     */
+    void switchTo(OutputStream newOut, long newLength) {
+        enqueue(new Switch(newOut, newLength));
+    }
+
+    /**
+     * Makes the appender keep a copy of every record queued after this call,
+     * until {@link #completeCompaction}. Queue it together with the snapshot
+     * of the index that the compacted journal is written from.
+     */
+    void beginCompaction() {
+        enqueue(BEGIN_COMPACTION);
+    }
+
+    /**
+     * Appends the records queued since {@link #beginCompaction} to
+     * {@code compacted}, which already holds {@code compactedLength} bytes,
+     * and then calls {@code swap}. If that succeeds, records queued after this
+     * call go to {@code compacted}; otherwise {@code compacted} is closed and
+     * the current journal is kept. Returns a sequence number for
+     * {@link #awaitFlushed}.
+     */
+    long completeCompaction(OutputStream compacted, long compactedLength, Swap swap) {
+        return enqueue(new CompleteCompaction(compacted, compactedLength, swap));
+    }
+
+    /**
+     * Queues a mark. {@link #awaitMark} returns the journal length right after
+     * the records queued before it, so a snapshot of the index taken together
+     * with the mark can be matched to a journal offset.
+     */
+    Mark mark() {
+        synchronized (lock) {
+            Mark mark = new Mark(enqueuedSeq + 1);
+            enqueue(mark);
+            return mark;
+        }
+    }
+
+    /**
+     * Waits until {@code mark} has been reached and returns its journal offset.
+     */
+    long awaitMark(Mark mark) throws IOException {
+        awaitFlushed(mark.seq);
+        synchronized (lock) {
+            return mark.offset;
+        }
+    }
+
+    private long enqueue(Object item) {
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("journal is closed");
+            }
+            if (pending.isEmpty()) {
+                pendingSince = System.currentTimeMillis();
+            }
+            if (syncedSeq == enqueuedSeq) {
+                unsyncedSince = System.currentTimeMillis();
+            }
+            pending.add(item);
+            long seq = ++enqueuedSeq;
+            if (!isRecords(item)
+                    || pending.size() >= MAX_PENDING_RECORDS
+                    || (flushRecords > 0 && pending.size() >= flushRecords)
+                    || (flushIntervalMillis > 0 && pending.size() == 1)
+                    || (sync != null && syncIntervalMillis > 0 && seq == syncedSeq + 1)) {
+                lock.notifyAll();
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * Waits until the record with sequence number {@code seq} has been
+     * written and flushed. Throws the error of the write that failed to
+     * write it; the record may still be written by a retry.
+     */
+    void awaitFlushed(long seq) throws IOException {
+        synchronized (lock) {
+            if (flushRequestedSeq < seq) {
+                flushRequestedSeq = seq;
+                lock.notifyAll();
+            }
+            boolean interrupted = false;
+            while (flushedSeq < seq && writeErrorFor(seq) == null && thread.isAlive()) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            IOException error = writeErrorFor(seq);
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /** Returns the error that kept record {@code seq} from being written, or null. */
+    private IOException writeErrorFor(long seq) {
+        if (seq > lostFromSeq && seq <= lostToSeq) {
+            return lostFailure;
+        }
+        return flushedSeq < seq && seq <= writeFailedSeq ? writeFailure : null;
+    }
+
+    /** Returns the error that kept record {@code seq} from being synced, or null. */
+    private IOException syncErrorFor(long seq) {
+        IOException error = writeErrorFor(seq);
+        if (error == null && syncedSeq < seq && seq <= syncFailedSeq) {
+            error = syncFailure;
+        }
+        return error;
+    }
+
+    /**
+     * Writes and flushes every record queued so far.
+     */
+    void flush() throws IOException {
+        long seq;
+        synchronized (lock) {
+            seq = enqueuedSeq;
+        }
+        awaitFlushed(seq);
+    }
+
+    /**
+     * Writes every record queued so far and forces them, and the values they
+     * refer to, to the device. Without a {@link Sync} this only flushes.
+     * Callers that sync at the same time share a single sync.
+     */
+    void sync() throws IOException {
+        if (sync == null) {
+            flush();
+            return;
+        }
+        synchronized (lock) {
+            long seq = enqueuedSeq;
+            if (syncRequestedSeq < seq) {
+                syncRequestedSeq = seq;
+                lock.notifyAll();
+            }
+            boolean interrupted = false;
+            while (syncedSeq < seq && syncErrorFor(seq) == null && thread.isAlive()) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            IOException error = syncErrorFor(seq);
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to the current journal file.
+     * Records still in the queue are not included.
+     */
+    long length() {
+        synchronized (lock) {
+            return length;
+        }
+    }
+
+    /**
+     * Writes and flushes all queued records, syncs them if the appender has
+     * a {@link Sync}, then closes the journal file. Throws if that failed;
+     * failed records are not retried once the appender is closed.
+     */
+    @Override public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+        synchronized (lock) {
+            IOException error = syncErrorFor(enqueuedSeq);
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private boolean shouldDrain(long now) {
+        return drainDue(now) && (closed || now >= retryAt);
+    }
+
+    private boolean drainDue(long now) {
+        if (syncDue(now)) {
+            return true;
+        }
+        if (pending.isEmpty()) {
+            return false;
+        }
+        return closed
+                || flushRequestedSeq > flushedSeq
+                || !isRecords(pending.get(pending.size() - 1))
+                || pending.size() >= MAX_PENDING_RECORDS
+                || (flushRecords > 0 && pending.size() >= flushRecords)
+                || (flushIntervalMillis > 0 && now - pendingSince >= flushIntervalMillis);
+    }
+
+    private boolean syncDue(long now) {
+        if (sync == null || syncedSeq == enqueuedSeq) {
+            return false;
+        }
+        return closed
+                || syncRequestedSeq > syncedSeq
+                || (syncIntervalMillis > 0 && now - unsyncedSince >= syncIntervalMillis);
+    }
+
+    /**
+     * Returns when the appender must run next by the flush and sync intervals,
+     * or when it may try again after a failure.
+     */
+    private long nextDeadline(long now) {
+        if (drainDue(now)) {
+            return retryAt; // waiting to retry
+        }
+        long deadline = Long.MAX_VALUE;
+        if (flushIntervalMillis > 0 && !pending.isEmpty()) {
+            deadline = pendingSince + flushIntervalMillis;
+        }
+        if (sync != null && syncIntervalMillis > 0 && syncedSeq < enqueuedSeq) {
+            deadline = Math.min(deadline, unsyncedSince + syncIntervalMillis);
+        }
+        return deadline;
+    }
+
+    /** Returns true for queued records, which follow the flush policy. */
+    private static boolean isRecords(Object item) {
+        return item instanceof Record || item instanceof Batch;
+    }
+
+    private void drainLoop() {
+        DiskLruJournal.Buffer buffer = new DiskLruJournal.Buffer(8 * 1024);
+        while (true) {
+            List<Object> batch;
+            long batchSeq;
+            boolean syncNow;
+            synchronized (lock) {
+                while (!shouldDrain(System.currentTimeMillis())) {
+                    if (closed && pending.isEmpty()) {
+                        lock.notifyAll();
+                        return;
+                    }
+                    try {
+                        long deadline = nextDeadline(System.currentTimeMillis());
+                        if (deadline != Long.MAX_VALUE) {
+                            lock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                        } else {
+                            lock.wait();
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                syncNow = syncDue(System.currentTimeMillis());
+                batch = pending;
+                batchSeq = enqueuedSeq;
+                pending = new ArrayList<Object>();
+            }
+
+            IOException writeError = null;
+            boolean retry = false;
+            itemsWritten = 0;
+            try {
+                if (damaged) {
+                    repair.repair(out, length);
+                    damaged = false;
+                }
+                write(batch, buffer);
+            } catch (IOException e) {
+                writeError = e;
+                retry = repairAfterFailure();
+            }
+            IOException syncError = null;
+            if (writeError == null && syncNow) {
+                try {
+                    // the values first: a synced record must not refer to a lost value
+                    sync.syncValues();
+                    sync.syncJournal(out);
+                } catch (IOException e) {
+                    syncError = e;
+                }
+            }
+
+            synchronized (lock) {
+                long now = System.currentTimeMillis();
+                if (writeError != null) {
+                    // the items before the failed write reached the journal
+                    flushedSeq = batchSeq - batch.size() + itemsWritten;
+                    if (retry) {
+                        writeFailure = writeError;
+                        writeFailedSeq = batchSeq;
+                    } else {
+                        lostFailure = writeError;
+                        lostFromSeq = flushedSeq;
+                        lostToSeq = batchSeq;
+                    }
+                    if (closed) {
+                        lock.notifyAll();
+                        return; // close() reports the error
+                    }
+                    List<Object> failed = new ArrayList<Object>(
+                            batch.subList(itemsWritten, batch.size()));
+                    if (retry) {
+                        retryAt = now + RETRY_DELAY_MILLIS;
+                    } else {
+                        // switches and marks still have to take effect
+                        for (int i = 0; i < failed.size(); i++) {
+                            if (isRecords(failed.get(i))) {
+                                failed.set(i, DROPPED);
+                            }
+                        }
+                    }
+                    failed.addAll(pending);
+                    pending = failed;
+                    pendingSince = now;
+                } else {
+                    flushedSeq = batchSeq;
+                    writeFailure = null;
+                    if (syncError != null) {
+                        syncFailure = syncError;
+                        syncFailedSeq = batchSeq;
+                        if (closed) {
+                            lock.notifyAll();
+                            return; // close() reports the error
+                        }
+                        retryAt = now + RETRY_DELAY_MILLIS;
+                    } else if (syncNow) {
+                        syncedSeq = batchSeq;
+                        syncFailure = null;
+                        if (enqueuedSeq > batchSeq) {
+                            unsyncedSince = now;
+                        }
+                    }
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Cuts off what the write that just failed left in the journal. Returns
+     * true if its records are to be written again.
+     */
+    private boolean repairAfterFailure() {
+        // the records copied for a compaction would be repeated by the retry;
+        // the journal is compacted again later instead
+        compactionTail = null;
+        if (repair == null) {
+            return false;
+        }
+        try {
+            return repair.repair(out, length);
+        } catch (IOException e) {
+            damaged = true; // repaired again before the next write
+            return true;
+        }
+    }
+
+    /**
+     * Encodes and writes {@code batch}. If that throws, {@link #itemsWritten}
+     * tells how many of its items reached the journal.
+     */
+    private void write(List<Object> batch, DiskLruJournal.Buffer buffer) throws IOException {
+        buffer.reset();
+        for (int i = 0; i < batch.size(); i++) {
+            Object item = batch.get(i);
+            if (item == DROPPED) {
+                continue;
+            }
+            if (item instanceof Record || item instanceof Batch) {
+                int start = buffer.size();
+                if (item instanceof Record) {
+                    writeRecord(buffer, (Record) item);
+                } else {
+                    List<Record> records = ((Batch) item).records;
+                    DiskLruJournal.writeBatch(buffer, records.size());
+                    for (Record record : records) {
+                        writeRecord(buffer, record);
+                    }
+                }
+                if (compactionTail != null) {
+                    buffer.copyTo(compactionTail, start);
+                }
+            } else if (item instanceof Switch) {
+                Switch next = (Switch) item;
+                writeBuffer(buffer);
+                out.flush();
+                DiskLruCache.closeQuietly(out);
+                compactionTail = null; // the journal was rebuilt instead
+                synchronized (lock) {
+                    out = next.out;
+                    length = next.length;
+                }
+                itemsWritten = i + 1;
+            } else if (item == BEGIN_COMPACTION) {
+                compactionTail = new DiskLruJournal.Buffer(8 * 1024);
+            } else if (item instanceof CompleteCompaction) {
+                writeBuffer(buffer);
+                out.flush();
+                completeCompaction((CompleteCompaction) item);
+                itemsWritten = i + 1;
+            } else {
+                writeBuffer(buffer);
+                synchronized (lock) {
+                    ((Mark) item).offset = length;
+                }
+                itemsWritten = i + 1;
+            }
+        }
+        writeBuffer(buffer);
+        out.flush();
+        itemsWritten = batch.size();
+    }
+
+    private static void writeRecord(DiskLruJournal.Buffer buffer, Record record) {
+        if (record.op == DiskLruJournal.OP_META) {
+            DiskLruJournal.writeMeta(buffer, record.key, record.value);
+        } else if (record.op == DiskLruJournal.OP_TAG) {
+            DiskLruJournal.writeTag(buffer, record.key, record.value);
+        } else {
+            DiskLruJournal.writeRecord(buffer, record.op, record.key, record.lengths);
+        }
+    }
+
+    private void completeCompaction(CompleteCompaction complete) {
+        DiskLruJournal.Buffer tail = compactionTail;
+        compactionTail = null;
+        boolean swapped = false;
+        try {
+            if (tail != null) {
+                tail.writeTo(complete.out);
+                complete.out.flush();
+                if (sync != null) {
+                    sync.syncJournal(complete.out);
+                }
+                swapped = complete.swap.swap();
+            }
+        } catch (IOException e) {
+            // the current journal is still complete; keep writing to it
+        } finally {
+            if (!swapped) {
+                DiskLruCache.closeQuietly(complete.out);
+            }
+        }
+        if (swapped) {
+            DiskLruCache.closeQuietly(out);
+            synchronized (lock) {
+                out = complete.out;
+                length = complete.length + tail.size();
+            }
+        }
+    }
+
+    private void writeBuffer(DiskLruJournal.Buffer buffer) throws IOException {
+        if (buffer.size() == 0) {
+            return;
+        }
+        buffer.writeTo(out);
+        synchronized (lock) {
+            length += buffer.size();
+        }
+        buffer.reset();
+    }
+}
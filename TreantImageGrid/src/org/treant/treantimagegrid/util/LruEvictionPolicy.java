@@ -0,0 +1,34 @@
+package org.treant.treantimagegrid.util;
+
+/**
+ * Evicts the least recently written or read entry. The cache's
+ * {@link EntryIndex} already keeps its entries in that order, so this policy
+ * evicts from there instead of tracking the entries a second time.
+ */
+final class LruEvictionPolicy extends EvictionPolicy {
+    private final EntryIndex<?> index;
+
+    LruEvictionPolicy(EntryIndex<?> index) {
+        this.index = index;
+    }
+
+    @Override String name() {
+        return LRU;
+    }
+
+    @Override void recordWrite(String key, long weight) {
+        index.touch(key);
+    }
+
+    @Override void recordAccess(String key) {
+        index.touch(key);
+    }
+
+    @Override void recordRemoval(String key) {
+        // the cache removes the key from the index itself
+    }
+
+    @Override String victim() {
+        return index.eldestKey();
+    }
+}
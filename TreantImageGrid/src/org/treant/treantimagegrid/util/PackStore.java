@@ -0,0 +1,429 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only segment files that hold the small values of a
+ * {@link DiskLruCache}, so that they don't each need a file of their own.
+ *
+ * <p>Segments live in the {@code pack} sub directory and are named after
+ * their id, starting at 1. Values are appended to the active segment until it
+ * reaches the segment size; a new segment is started then and whenever the
+ * cache is opened, so a segment is never appended to after a crash. A value
+ * is addressed by its location, the segment id in the upper 32 bits and the
+ * offset in the lower 32, together with its length from the index. Location 0
+ * is never used, so the index can use it for "not packed".
+ *
+ * <p>The store counts how many bytes of every segment are still referenced
+ * by the index. A segment that is no longer referenced at all is deleted
+ * right away; one whose live ratio has dropped below the threshold is offered
+ * for compaction, which the cache does by copying its live values to the
+ * active segment, see {@link #startCompaction}. Readers of a deleted segment
+ * keep their open file, so snapshots stay readable.
+ */
+final class PackStore implements Closeable {
+    static final String PACK_DIR = "pack";
+    static final String SEGMENT_SUFFIX = ".pack";
+
+    private final CacheFileSystem fileSystem;
+    private final File directory;
+    private final long segmentSize;
+    private final float minLiveRatio;
+    private final boolean durable;
+
+    /** Guarded by this. */
+    private final Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+    private Segment active;
+    private OutputStream activeOut;
+    private int nextId = 1;
+    /** False until the live bytes have been counted from a complete index. */
+    private boolean counted;
+    private int compactingId;
+    private boolean closed;
+    /** Whether the active segment has been appended to since it was last synced. */
+    private boolean unsynced;
+    /** Segments that were finished since the last sync(), if the store is durable. */
+    private final List<File> unsyncedSegments = new ArrayList<File>();
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        long length;
+        long live;
+
+        Segment(int id, File file, long length) {
+            this.id = id;
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Opens the pack store of the cache in {@code cacheDirectory}. A durable
+     * store remembers which segments it has written to, so that
+     * {@link #sync} can force them to the device.
+     */
+    PackStore(CacheFileSystem fileSystem, File cacheDirectory, long segmentSize,
+            float minLiveRatio, boolean durable) {
+        this.fileSystem = fileSystem;
+        this.durable = durable;
+        this.directory = new File(cacheDirectory, PACK_DIR);
+        this.segmentSize = segmentSize;
+        this.minLiveRatio = minLiveRatio;
+        File[] files = fileSystem.list(directory);
+        if (files != null) {
+            for (File file : files) {
+                int id = parseId(file.getName());
+                if (id > 0) {
+                    segments.put(id, new Segment(id, file, fileSystem.size(file)));
+                    nextId = Math.max(nextId, id + 1);
+                }
+            }
+        }
+        counted = segments.isEmpty(); // otherwise the cache counts once its index is loaded
+    }
+
+    private static int parseId(String name) {
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static long offsetOf(long location) {
+        return location & 0xffffffffL;
+    }
+
+    /**
+     * Appends a value to the active segment and returns its location.
+     */
+    synchronized long append(byte[] value, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("pack store is closed");
+        }
+        if (active == null || (active.length > 0 && active.length + length > segmentSize)) {
+            startSegment();
+        }
+        try {
+            activeOut.write(value, offset, length);
+        } catch (IOException e) {
+            // the segment may hold part of the value now; don't append behind it
+            active.length = fileSystem.size(active.file);
+            finishSegment();
+            throw e;
+        }
+        long location = ((long) active.id << 32) | active.length;
+        active.length += length;
+        active.live += length;
+        unsynced = true;
+        return location;
+    }
+
+    private void startSegment() throws IOException {
+        finishSegment();
+        fileSystem.mkdirs(directory);
+        int id = nextId++;
+        File file = new File(directory, id + SEGMENT_SUFFIX);
+        activeOut = fileSystem.create(file);
+        active = new Segment(id, file, 0);
+        segments.put(id, active);
+    }
+
+    private void finishSegment() {
+        if (activeOut != null) {
+            DiskLruCache.closeQuietly(activeOut);
+            activeOut = null;
+            if (durable && unsynced) {
+                unsyncedSegments.add(active.file);
+            }
+        }
+        unsynced = false;
+        active = null;
+    }
+
+    /**
+     * Forces every value appended so far to the device. Only a durable store
+     * covers the segments that have been finished since the last call.
+     */
+    synchronized void sync() throws IOException {
+        while (!unsyncedSegments.isEmpty()) {
+            File file = unsyncedSegments.get(unsyncedSegments.size() - 1);
+            try {
+                fileSystem.sync(file);
+            } catch (FileNotFoundException e) {
+                // compacted away; its values have been appended again
+            }
+            unsyncedSegments.remove(unsyncedSegments.size() - 1);
+        }
+        if (activeOut != null && unsynced) {
+            fileSystem.sync(activeOut);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Opens the value at {@code location}. Throws FileNotFoundException if
+     * its segment has been deleted or doesn't hold the whole value.
+     */
+    InputStream open(long location, long length) throws IOException {
+        if (length == 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        File file;
+        synchronized (this) {
+            Segment segment = segments.get(segmentOf(location));
+            if (segment == null) {
+                throw new FileNotFoundException("no pack segment for " + Long.toHexString(location));
+            }
+            file = segment.file;
+        }
+        long offset = offsetOf(location);
+        InputStream in = fileSystem.open(file);
+        try {
+            seek(in, offset, length);
+        } catch (IOException e) {
+            DiskLruCache.closeQuietly(in);
+            throw new FileNotFoundException("truncated pack segment " + file);
+        }
+        return new ValueInputStream(in, offset, length);
+    }
+
+    /**
+     * Moves {@code in} to {@code offset}, failing if the segment is too short
+     * to hold {@code length} bytes there.
+     */
+    private static void seek(InputStream in, long offset, long length) throws IOException {
+        if (in instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) in).getChannel();
+            if (channel.size() < offset + length) {
+                throw new EOFException();
+            }
+            channel.position(offset);
+            return;
+        }
+        for (long skipped = 0; skipped < offset; ) {
+            long count = in.skip(offset - skipped);
+            if (count <= 0) {
+                throw new EOFException();
+            }
+            skipped += count;
+        }
+        if (in.available() < length) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Records that the value at {@code location} is no longer referenced.
+     * Deletes its segment if that was the last live value in it.
+     */
+    synchronized void release(long location, long length) {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment == null) {
+            return;
+        }
+        segment.live -= length;
+        if (counted && segment.live <= 0 && segment != active
+                && segment.id != compactingId) {
+            segments.remove(segment.id);
+            fileSystem.delete(segment.file);
+        }
+    }
+
+    /**
+     * Forgets the live byte counts, before {@link #countLive} is called for
+     * every value of a complete index.
+     */
+    synchronized void beginCount() {
+        for (Segment segment : segments.values()) {
+            segment.live = 0;
+        }
+        counted = false;
+    }
+
+    synchronized void countLive(long location, long length) {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null) {
+            segment.live += length;
+        }
+    }
+
+    /**
+     * Deletes the segments that no value of the index refers to.
+     */
+    synchronized void finishCount() {
+        for (Iterator<Segment> i = segments.values().iterator(); i.hasNext(); ) {
+            Segment segment = i.next();
+            if (segment.live <= 0 && segment != active) {
+                fileSystem.delete(segment.file);
+                i.remove();
+            }
+        }
+        counted = true;
+    }
+
+    /**
+     * Returns true if a segment should be compacted.
+     */
+    synchronized boolean compactionRequired() {
+        return compactingId == 0 && candidate() != null;
+    }
+
+    /**
+     * Picks the closed segment with the lowest live ratio below the threshold
+     * and returns its id, or 0 if none qualifies. Its live values should be
+     * copied elsewhere and the segment deleted with {@link #finishCompaction}.
+     */
+    synchronized int startCompaction() {
+        if (compactingId != 0) {
+            return 0;
+        }
+        Segment segment = candidate();
+        if (segment != null) {
+            compactingId = segment.id;
+        }
+        return compactingId;
+    }
+
+    private Segment candidate() {
+        if (!counted) {
+            return null;
+        }
+        Segment result = null;
+        double resultRatio = minLiveRatio;
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.length == 0) {
+                continue;
+            }
+            double ratio = (double) segment.live / segment.length;
+            if (ratio < resultRatio) {
+                result = segment;
+                resultRatio = ratio;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the segment being compacted. Nothing may refer to it anymore.
+     */
+    synchronized void finishCompaction(int id) {
+        Segment segment = segments.remove(id);
+        if (segment != null) {
+            fileSystem.delete(segment.file);
+        }
+        compactingId = 0;
+    }
+
+    /**
+     * Gives up the compaction in progress and keeps its segment.
+     */
+    synchronized void abortCompaction() {
+        compactingId = 0;
+    }
+
+    /**
+     * Returns the number of bytes in all segments, live or not.
+     */
+    synchronized long totalBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.length;
+        }
+        return total;
+    }
+
+    /**
+     * Closes the active segment. The store can't be appended to afterwards.
+     */
+    @Override public synchronized void close() {
+        closed = true;
+        finishSegment();
+    }
+
+    /**
+     * Reads a single value out of a segment.
+     */
+    static final class ValueInputStream extends FilterInputStream {
+        private final long offset;
+        private long remaining;
+
+        ValueInputStream(InputStream segment, long offset, long length) {
+            super(segment);
+            this.offset = offset;
+            this.remaining = length;
+        }
+
+        /**
+         * Returns the channel of the whole segment file, or null if the
+         * segment isn't kept on disk.
+         */
+        FileChannel channel() {
+            return in instanceof FileInputStream ? ((FileInputStream) in).getChannel() : null;
+        }
+
+        /** Returns the offset of the value in the segment file. */
+        long offset() {
+            return offset;
+        }
+
+        @Override public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int result = in.read();
+            if (result != -1) {
+                remaining--;
+            }
+            return result;
+        }
+
+        @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(count, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override public long skip(long count) throws IOException {
+            long skipped = in.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override public boolean markSupported() {
+            return false;
+        }
+    }
+}
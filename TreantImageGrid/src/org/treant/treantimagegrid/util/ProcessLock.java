@@ -0,0 +1,269 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The file locks through which the processes that share a cache directory
+ * take turns with its journal, see {@link DiskLruCache.Options#multiProcess}.
+ *
+ * <p>Everything lives in one lock file, whose bytes are used as follows:
+ * <ul>
+ * <li>Byte 0 is locked by a process while it reads or appends the journal.
+ * <li>Bytes 8 to 23 hold the journal generation, which every compaction
+ *     raises, and the length of the journal that compaction wrote.
+ * <li>Each process that has the cache open holds the lock of one slot byte,
+ *     from {@link #SLOT_LOCKS} on, for as long as it has it open. A process
+ *     that dies loses its lock, so the slot locks tell which processes are
+ *     alive.
+ * <li>The data of each slot, from {@link #SLOT_DATA} on, holds a random
+ *     token that tells the process that holds the slot from the earlier ones
+ *     that held it, and the journal generation that process reads.
+ * </ul>
+ *
+ * <p>The data is only read and written with the journal lock held. File
+ * locks belong to a process, not a thread, so a process must open a
+ * directory only once; {@link #open} enforces that.
+ */
+final class ProcessLock implements Closeable {
+    /** The most processes that may have a cache open at the same time. */
+    static final int MAX_PROCESSES = 32;
+    private static final long JOURNAL_LOCK = 0;
+    private static final long GENERATION = 8;
+    private static final long COMPACTED_LENGTH = 16;
+    private static final long SLOT_LOCKS = 64;
+    private static final long SLOT_DATA = SLOT_LOCKS + MAX_PROCESSES;
+    private static final int SLOT_DATA_SIZE = 16;
+
+    /** The lock files opened by this process. */
+    private static final Set<String> OPEN_FILES = new HashSet<String>();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(8);
+    private FileLock journalLock;
+    private FileLock slotLock;
+    private int slot = -1;
+    private long token;
+
+    private ProcessLock(String path, RandomAccessFile file) {
+        this.path = path;
+        this.file = file;
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Opens the lock file {@code file}, creating it if it doesn't exist.
+     * The caller claims a slot with {@link #claimSlot} once it holds the
+     * journal lock.
+     *
+     * @throws IllegalStateException if this process has the file open already
+     */
+    static ProcessLock open(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        synchronized (OPEN_FILES) {
+            if (!OPEN_FILES.add(path)) {
+                throw new IllegalStateException("already open in this process: " + file);
+            }
+        }
+        try {
+            return new ProcessLock(path, new RandomAccessFile(file, "rw"));
+        } catch (IOException e) {
+            synchronized (OPEN_FILES) {
+                OPEN_FILES.remove(path);
+            }
+            throw e;
+        }
+    }
+
+    /** Waits for the journal lock and takes it. */
+    void lock() throws IOException {
+        journalLock = channel.lock(JOURNAL_LOCK, 1, false);
+    }
+
+    /** Releases the journal lock. */
+    void unlock() throws IOException {
+        FileLock lock = journalLock;
+        journalLock = null;
+        if (lock != null) {
+            lock.release();
+        }
+    }
+
+    /**
+     * Takes a free slot for this process and records that it reads
+     * {@code generation}. Must be called with the journal lock held.
+     *
+     * @throws IOException if {@link #MAX_PROCESSES} processes have the cache open
+     */
+    void claimSlot(long generation) throws IOException {
+        for (int i = 0; i < MAX_PROCESSES; i++) {
+            FileLock lock = channel.tryLock(SLOT_LOCKS + i, 1, false);
+            if (lock != null) {
+                slotLock = lock;
+                slot = i;
+                token = RANDOM.nextLong();
+                writeLong(slotData(i), token);
+                setSeenGeneration(generation);
+                return;
+            }
+        }
+        throw new IOException("more than " + MAX_PROCESSES + " processes share " + path);
+    }
+
+    /**
+     * Returns a name for this process that no other process, and no earlier
+     * process with the same slot, has.
+     */
+    String owner() {
+        return slot + ":" + Long.toHexString(token);
+    }
+
+    /**
+     * Returns true if the process named {@code owner}, as returned by
+     * {@link #owner}, still has the cache open.
+     */
+    boolean isAlive(String owner) throws IOException {
+        int colon = owner.indexOf(':');
+        if (colon == -1) {
+            return false;
+        }
+        int ownerSlot;
+        long ownerToken;
+        try {
+            ownerSlot = Integer.parseInt(owner.substring(0, colon));
+            ownerToken = parseHexLong(owner.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (ownerSlot < 0 || ownerSlot >= MAX_PROCESSES) {
+            return false;
+        }
+        if (ownerSlot == slot) {
+            return ownerToken == token;
+        }
+        return isSlotHeld(ownerSlot) && readLong(slotData(ownerSlot)) == ownerToken;
+    }
+
+    /** Returns true if no other process has the cache open. */
+    boolean isAlone() throws IOException {
+        for (int i = 0; i < MAX_PROCESSES; i++) {
+            if (i != slot && isSlotHeld(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if every other process that has the cache open reads
+     * journal generation {@code generation}.
+     */
+    boolean othersRead(long generation) throws IOException {
+        for (int i = 0; i < MAX_PROCESSES; i++) {
+            if (i != slot && isSlotHeld(i) && readLong(slotData(i) + 8) != generation) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isSlotHeld(int i) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock(SLOT_LOCKS + i, 1, false);
+        } catch (OverlappingFileLockException e) {
+            return true;
+        }
+        if (lock == null) {
+            return true;
+        }
+        lock.release();
+        return false;
+    }
+
+    /** Records that this process reads journal generation {@code generation}. */
+    void setSeenGeneration(long generation) throws IOException {
+        writeLong(slotData(slot) + 8, generation);
+    }
+
+    /** Returns the current journal generation. */
+    long generation() throws IOException {
+        return readLong(GENERATION);
+    }
+
+    /** Returns the length of the journal written by the last compaction. */
+    long compactedLength() throws IOException {
+        return readLong(COMPACTED_LENGTH);
+    }
+
+    /**
+     * Starts journal generation {@code generation}, whose journal was
+     * compacted to {@code compactedLength} bytes.
+     */
+    void setGeneration(long generation, long compactedLength) throws IOException {
+        writeLong(COMPACTED_LENGTH, compactedLength);
+        writeLong(GENERATION, generation);
+    }
+
+    private static long slotData(int i) {
+        return SLOT_DATA + (long) i * SLOT_DATA_SIZE;
+    }
+
+    private long readLong(long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                return 0; // never written
+            }
+        }
+        buffer.flip();
+        return buffer.getLong();
+    }
+
+    private void writeLong(long position, long value) throws IOException {
+        buffer.clear();
+        buffer.putLong(value);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static long parseHexLong(String s) {
+        if (s.length() == 0 || s.length() > 16) {
+            throw new NumberFormatException(s);
+        }
+        long result = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit == -1) {
+                throw new NumberFormatException(s);
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    /** Releases the slot of this process and closes the lock file. */
+    @Override public void close() throws IOException {
+        try {
+            file.close(); // releases the locks
+        } finally {
+            synchronized (OPEN_FILES) {
+                OPEN_FILES.remove(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.treant.treantimagegrid.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * S3-FIFO. New entries join a small FIFO queue that takes
+ * {@link #SMALL_PERCENT} of the cache. An entry leaving the small queue moves
+ * to the main FIFO queue if it was read while it was there, and is evicted
+ * otherwise; its key is then remembered in a ghost list, and an entry whose
+ * key is still in the ghost list when it is written again skips the small
+ * queue. An entry leaving the main queue is put back at its end for as long
+ * as it has been read since, up to {@link #MAX_FREQUENCY} times.
+ */
+final class S3FifoEvictionPolicy extends EvictionPolicy {
+    static final int SMALL_PERCENT = 10;
+    static final int MAX_FREQUENCY = 3;
+    /** Lower bound of the ghost list, which otherwise remembers as many keys as main holds. */
+    private static final int MIN_GHOST_COUNT = 64;
+
+    private final Queue small = new Queue();
+    private final Queue main = new Queue();
+    private final Map<String, Boolean> ghost = new LinkedHashMap<String, Boolean>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > Math.max(main.count, MIN_GHOST_COUNT);
+        }
+    };
+    private long smallMaxSize = Long.MAX_VALUE;
+
+    @Override String name() {
+        return S3_FIFO;
+    }
+
+    @Override void setMaxSize(long maxSize) {
+        smallMaxSize = maxSize / 100 * SMALL_PERCENT;
+    }
+
+    @Override void recordWrite(String key, long weight) {
+        Node node = nodes.get(key);
+        if (node != null) {
+            node.queue.setWeight(node, weight);
+            recordAccess(node);
+            return;
+        }
+        node = new Node(key, weight);
+        nodes.put(key, node);
+        if (ghost.remove(key) != null) {
+            main.add(node);
+        } else {
+            small.add(node);
+        }
+    }
+
+    @Override void recordAccess(String key) {
+        Node node = nodes.get(key);
+        if (node != null) {
+            recordAccess(node);
+        }
+    }
+
+    private void recordAccess(Node node) {
+        if (node.frequency < MAX_FREQUENCY) {
+            node.frequency++;
+        }
+    }
+
+    @Override String victim() {
+        while (true) {
+            if (!small.isEmpty() && (small.weight > smallMaxSize || main.isEmpty())) {
+                Node node = small.eldest();
+                if (node.frequency > 0) {
+                    small.remove(node);
+                    main.add(node);
+                    continue;
+                }
+                ghost.put(node.key, Boolean.TRUE);
+                return evict(node);
+            }
+            Node node = main.eldest();
+            if (node == null) {
+                return null;
+            }
+            if (node.frequency > 0) {
+                node.frequency--;
+                main.moveToBack(node);
+                continue;
+            }
+            return evict(node);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link DiskLruCache} split into a fixed number of independent segments.
+ * Keys are routed to a segment by hash and every segment is a complete cache
+ * of its own, living in a sub directory of the cache directory: it has its own
+ * lock, its own size accounting and its own journal. Reads and commits of keys
+ * that land in different segments therefore never wait for each other.
+ *
+ * <p>The segments share the budget rather than splitting it evenly: while
+ * the cache as a whole is below {@code maxSize}, the space left is handed
+ * out again and again, half of it to the segment that ran out, so keys that
+ * are spread unevenly don't cause early evictions. Once it is over, the bytes are taken back from the segments
+ * that hold more than their even share, in proportion to how much more. Each
+ * segment evicts in LRU order within itself, so eviction is exact per segment
+ * and approximate across the whole cache. The budget is shared out again on
+ * the background thread of a segment that a commit takes over its part,
+ * while there is room left, and otherwise every
+ * {@link #REBALANCE_INTERVAL_MILLIS}; in between the segments don't touch
+ * each other's locks.
+ *
+ * <p>The number of segments is recorded in the cache directory. Opening a
+ * directory that was written with a different segment count discards its
+ * contents, since the keys would no longer be found in their segments.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+    static final String SEGMENTS_FILE = "segments";
+    static final String SEGMENT_DIR_PREFIX = "segment.";
+    /** How often a segment has the budget shared out again while it commits. */
+    static final long REBALANCE_INTERVAL_MILLIS = 1000;
+
+    private final File directory;
+    private final CacheFileSystem fileSystem;
+    /** Asked for the maximum size of the whole cache, or null to keep it. */
+    private final DiskLruCache.SizePolicy sizePolicy;
+    private final long sizeCheckIntervalMillis;
+    /** Filled in as the segments are opened; null until then. */
+    private final DiskLruCache[] segments;
+    /** Guards the budget fields below and serializes rebalancing. */
+    private final Object budgetLock = new Object();
+    private long maxSize;
+    private long nextSizeCheck;
+
+    private ShardedDiskLruCache(File directory, CacheFileSystem fileSystem, long maxSize,
+            int segmentCount, DiskLruCache.Options options) {
+        this.directory = directory;
+        this.fileSystem = fileSystem;
+        this.maxSize = maxSize;
+        this.sizePolicy = options.sizePolicy;
+        this.sizeCheckIntervalMillis = options.sizeCheckIntervalMillis;
+        this.segments = new DiskLruCache[segmentCount];
+    }
+
+    /**
+     * Opens the sharded cache in {@code directory}, creating a cache if none
+     * exists there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes all segments together should use
+     * @param segmentCount the number of independent segments. Must be positive.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize, int segmentCount) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, segmentCount,
+                new DiskLruCache.Options());
+    }
+
+    /**
+     * Opens the sharded cache in {@code directory}, creating a cache if none
+     * exists there. The segments are opened with a copy of {@code options}
+     * whose size policy shares out the budget; a
+     * {@link DiskLruCache.Options#sizePolicy} set in {@code options} is asked
+     * for the maximum size of the whole cache instead, every
+     * {@link DiskLruCache.Options#sizeCheckIntervalMillis}.
+     */
+    public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize, int segmentCount, DiskLruCache.Options options) throws IOException {
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("segmentCount <= 0");
+        }
+        if (maxSize < segmentCount) {
+            throw new IllegalArgumentException("maxSize < segmentCount");
+        }
+
+        CacheFileSystem fileSystem = options.fileSystem != null
+                ? options.fileSystem : CacheFileSystem.DISK;
+        fileSystem.mkdirs(directory);
+        File segmentsFile = new File(directory, SEGMENTS_FILE);
+        if (readSegmentCount(fileSystem, segmentsFile) != segmentCount) {
+            // a different layout (or none at all): the keys would be looked up in the wrong segments
+            DiskLruCache.deleteContents(fileSystem, directory);
+            writeSegmentCount(fileSystem, segmentsFile, segmentCount);
+        }
+
+        ShardedDiskLruCache cache = new ShardedDiskLruCache(directory, fileSystem, maxSize,
+                segmentCount, options);
+        DiskLruCache.Options segmentOptions = options.copy();
+        segmentOptions.sizePolicy = cache.new SegmentBudget();
+        segmentOptions.sizeCheckIntervalMillis = REBALANCE_INTERVAL_MILLIS;
+        long segmentMaxSize = maxSize / segmentCount;
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                DiskLruCache segment = DiskLruCache.open(
+                        new File(directory, SEGMENT_DIR_PREFIX + i), appVersion, valueCount,
+                        segmentMaxSize, segmentOptions);
+                synchronized (cache.budgetLock) {
+                    cache.segments[i] = segment;
+                }
+            }
+        } catch (IOException e) {
+            for (DiskLruCache segment : cache.segments) {
+                DiskLruCache.closeQuietly(segment);
+            }
+            throw e;
+        }
+        cache.rebalance(-1, 0);
+        return cache;
+    }
+
+    /**
+     * Shares out the budget and sets the maximum sizes of the segments other
+     * than {@code index}, whose maximum size is returned instead; pass -1 to
+     * set them all. Called without any segment lock held, or, while a segment
+     * is being opened, with only that segment's lock held.
+     *
+     * @param size the size of segment {@code index}, which may not be
+     *     readable from it yet
+     */
+    private long rebalance(int index, long size) {
+        synchronized (budgetLock) {
+            long[] sizes = new long[segments.length];
+            long total = 0;
+            for (int i = 0; i < segments.length; i++) {
+                if (i == index) {
+                    sizes[i] = size;
+                } else if (segments[i] != null && !segments[i].isClosed()) {
+                    sizes[i] = segments[i].size();
+                }
+                total += sizes[i];
+            }
+            if (sizePolicy != null && System.currentTimeMillis() >= nextSizeCheck) {
+                long newMaxSize = sizePolicy.maxSize(directory, total);
+                if (newMaxSize >= segments.length) {
+                    maxSize = newMaxSize;
+                }
+                nextSizeCheck = System.currentTimeMillis() + sizeCheckIntervalMillis;
+            }
+
+            long[] budgets = shareBudget(sizes, total, maxSize, index);
+            for (int i = 0; i < segments.length; i++) {
+                DiskLruCache segment = segments[i];
+                if (i == index || segment == null || segment.maxSize() == budgets[i]) {
+                    continue;
+                }
+                try {
+                    segment.setMaxSize(budgets[i]);
+                } catch (IllegalStateException e) {
+                    // closed meanwhile
+                }
+            }
+            return index == -1 ? maxSize : budgets[index];
+        }
+    }
+
+    /**
+     * Returns the maximum size of each segment, given their {@code sizes}:
+     * the space that is left goes half to segment {@code index} and the rest
+     * evenly to the others, or all evenly if {@code index} is -1, and space
+     * over budget is taken from the segments above their even share, in
+     * proportion to how far above it they are. The budgets never add up to
+     * more than {@code maxSize}, so the segments can't outgrow it between
+     * two calls.
+     */
+    static long[] shareBudget(long[] sizes, long total, long maxSize, int index) {
+        long[] budgets = new long[sizes.length];
+        if (total <= maxSize) {
+            long free = maxSize - total;
+            long ownShare = 0;
+            int others = sizes.length;
+            if (index != -1 && others > 1) {
+                ownShare = free / 2;
+                others--;
+            }
+            for (int i = 0; i < sizes.length; i++) {
+                long share = i == index && others < sizes.length
+                        ? ownShare : (free - ownShare) / others;
+                budgets[i] = Math.max(1, sizes[i] + share);
+            }
+            return budgets;
+        }
+        long share = maxSize / sizes.length;
+        long excess = 0;
+        for (long size : sizes) {
+            excess += Math.max(0, size - share);
+        }
+        double over = total - maxSize;
+        for (int i = 0; i < sizes.length; i++) {
+            long budget = sizes[i];
+            if (sizes[i] > share) {
+                budget -= (long) Math.ceil(over * (sizes[i] - share) / excess);
+            }
+            budgets[i] = Math.max(1, budget);
+        }
+        return budgets;
+    }
+
+    /**
+     * The size policy of the segments, which it tells apart by their
+     * directory.
+     */
+    private final class SegmentBudget implements DiskLruCache.SizePolicy {
+        @Override public long maxSize(File segmentDirectory, long size) {
+            int index;
+            try {
+                index = Integer.parseInt(
+                        segmentDirectory.getName().substring(SEGMENT_DIR_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                return 0; // not a segment; keeps its maximum size
+            }
+            return rebalance(index, size);
+        }
+    }
+
+    private static int readSegmentCount(CacheFileSystem fileSystem, File segmentsFile) {
+        if (!fileSystem.exists(segmentsFile)) {
+            return -1;
+        }
+        InputStream in = null;
+        try {
+            in = fileSystem.open(segmentsFile);
+            return Integer.parseInt(DiskLruCache.readAsciiLine(in));
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+    }
+
+    private static void writeSegmentCount(CacheFileSystem fileSystem, File segmentsFile,
+            int segmentCount) throws IOException {
+        OutputStream out = fileSystem.create(segmentsFile);
+        try {
+            out.write((Integer.toString(segmentCount) + "\n").getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the segment responsible for {@code key}.
+     */
+    DiskLruCache segmentFor(String key) {
+        int h = key.hashCode();
+        // spread the high bits down, hex keys differ mostly in their last characters
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist or is not currently readable. Only the key's segment is locked.
+     */
+    public DiskLruCache.Snapshot get(String key) throws IOException {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress. Only the key's segment is locked.
+     */
+    public DiskLruCache.Editor edit(String key) throws IOException {
+        return segmentFor(key).edit(key);
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean remove(String key) throws IOException {
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * Drops the entries tagged with {@code tag} from every segment, see
+     * {@link DiskLruCache#removeGroup}.
+     *
+     * @return the number of entries removed.
+     */
+    public int removeGroup(String tag) throws IOException {
+        int removed = 0;
+        for (DiskLruCache segment : segments) {
+            removed += segment.removeGroup(tag);
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the keys of the readable entries tagged with {@code tag} in
+     * every segment, see {@link DiskLruCache#groupKeys}.
+     */
+    public Set<String> groupKeys(String tag) {
+        Set<String> keys = new HashSet<String>();
+        for (DiskLruCache segment : segments) {
+            keys.addAll(segment.groupKeys(tag));
+        }
+        return keys;
+    }
+
+    /**
+     * Removes every entry of every segment that isn't being edited, see
+     * {@link DiskLruCache#evictAll}.
+     */
+    public void evictAll() throws IOException {
+        for (DiskLruCache segment : segments) {
+            segment.evictAll();
+        }
+    }
+
+    /**
+     * Returns the directory where this cache stores its segments.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of bytes that all segments together should
+     * use to store their data.
+     */
+    public long maxSize() {
+        synchronized (budgetLock) {
+            return maxSize;
+        }
+    }
+
+    /**
+     * Returns the number of segments in this cache.
+     */
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Returns the number of bytes currently used by all segments. Segments
+     * are read one after another, so concurrent edits may make this slightly
+     * inaccurate.
+     */
+    public long size() {
+        long size = 0;
+        for (DiskLruCache segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns true if this cache has been closed.
+     */
+    public boolean isClosed() {
+        return segments[0].isClosed();
+    }
+
+    /**
+     * Force buffered operations of every segment to the filesystem.
+     */
+    public void flush() throws IOException {
+        for (DiskLruCache segment : segments) {
+            segment.flush();
+        }
+    }
+
+    /**
+     * Closes all segments. Stored values will remain on the filesystem.
+     */
+    public void close() throws IOException {
+        IOException failure = null;
+        for (DiskLruCache segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values, including the
+     * segment layout. This will delete all files in the cache directory.
+     */
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(fileSystem, directory);
+    }
+}
@@ -0,0 +1,84 @@
+package org.treant.treantimagegrid.util;
+
+/**
+ * Segmented LRU. New entries join a probation segment; an entry that is used
+ * again moves to a protected segment, which takes up to
+ * {@link #PROTECTED_PERCENT} of the cache. When the protected segment is
+ * full its least recently used entries go back to probation. Victims are
+ * taken from probation first, so entries that were only used once never
+ * push out entries that were used repeatedly.
+ */
+final class SlruEvictionPolicy extends EvictionPolicy {
+    static final int PROTECTED_PERCENT = 80;
+
+    private final Queue probation = new Queue();
+    private final Queue protectedQueue = new Queue();
+    private long protectedMaxSize = Long.MAX_VALUE;
+
+    @Override String name() {
+        return SLRU;
+    }
+
+    @Override void setMaxSize(long maxSize) {
+        protectedMaxSize = maxSize / 100 * PROTECTED_PERCENT;
+    }
+
+    /** Returns true if {@code key} is tracked by this policy. */
+    boolean contains(String key) {
+        return nodes.containsKey(key);
+    }
+
+    /** Returns the total weight of the tracked entries. */
+    long weight() {
+        return probation.weight + protectedQueue.weight;
+    }
+
+    /** Returns the number of tracked entries. */
+    int count() {
+        return nodes.size();
+    }
+
+    @Override void recordWrite(String key, long weight) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node(key, weight);
+            nodes.put(key, node);
+            probation.add(node);
+        } else {
+            node.queue.setWeight(node, weight);
+            touch(node);
+        }
+    }
+
+    @Override void recordAccess(String key) {
+        Node node = nodes.get(key);
+        if (node != null) {
+            touch(node);
+        }
+    }
+
+    private void touch(Node node) {
+        if (node.queue != probation) {
+            protectedQueue.moveToBack(node);
+            return;
+        }
+        probation.remove(node);
+        protectedQueue.add(node);
+        while (protectedQueue.weight > protectedMaxSize && protectedQueue.count > 1) {
+            Node demoted = protectedQueue.eldest();
+            protectedQueue.remove(demoted);
+            probation.add(demoted);
+        }
+    }
+
+    /** Returns the entry {@link #victim} would pick without evicting it. */
+    Node peekVictim() {
+        Node node = probation.eldest();
+        return node != null ? node : protectedQueue.eldest();
+    }
+
+    @Override String victim() {
+        Node node = peekVictim();
+        return node != null ? evict(node) : null;
+    }
+}
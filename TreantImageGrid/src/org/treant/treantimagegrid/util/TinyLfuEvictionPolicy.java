@@ -0,0 +1,92 @@
+package org.treant.treantimagegrid.util;
+
+/**
+ * W-TinyLFU. New entries join an LRU window that takes
+ * {@link #WINDOW_PERCENT} of the cache; the rest is a segmented LRU, see
+ * {@link SlruEvictionPolicy}. Entries that fall out of the window are
+ * admitted to the main segments freely while those have room. Once the cache
+ * is full, the eldest entry of the window has to compete with the victim of
+ * the main segments: whichever has been used less often, according to a
+ * {@link FrequencySketch} of all writes and reads, is evicted. A burst of
+ * entries that are used once, such as a fast fling through a list, therefore
+ * only ever replaces other entries of the window.
+ */
+final class TinyLfuEvictionPolicy extends EvictionPolicy {
+    static final int WINDOW_PERCENT = 1;
+
+    private final Queue window = new Queue();
+    private final SlruEvictionPolicy main = new SlruEvictionPolicy();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private long windowMaxSize = Long.MAX_VALUE;
+    private long mainMaxSize = Long.MAX_VALUE;
+
+    @Override String name() {
+        return W_TINY_LFU;
+    }
+
+    @Override void setMaxSize(long maxSize) {
+        windowMaxSize = Math.max(1, maxSize / 100 * WINDOW_PERCENT);
+        mainMaxSize = maxSize - windowMaxSize;
+        main.setMaxSize(mainMaxSize);
+    }
+
+    @Override void recordWrite(String key, long weight) {
+        sketch.increment(key);
+        Node node = nodes.get(key);
+        if (node != null) {
+            window.setWeight(node, weight);
+            window.moveToBack(node);
+        } else if (main.contains(key)) {
+            main.recordWrite(key, weight);
+        } else {
+            node = new Node(key, weight);
+            nodes.put(key, node);
+            window.add(node);
+            sketch.ensureCapacity(nodes.size() + main.count());
+        }
+    }
+
+    @Override void recordAccess(String key) {
+        sketch.increment(key);
+        Node node = nodes.get(key);
+        if (node != null) {
+            window.moveToBack(node);
+        } else {
+            main.recordAccess(key);
+        }
+    }
+
+    @Override void recordRemoval(String key) {
+        if (nodes.containsKey(key)) {
+            super.recordRemoval(key);
+        } else {
+            main.recordRemoval(key);
+        }
+    }
+
+    @Override String victim() {
+        while (window.weight > windowMaxSize || main.count() == 0) {
+            Node candidate = window.eldest();
+            if (candidate == null) {
+                return null;
+            }
+            if (main.weight() + candidate.weight <= mainMaxSize || main.count() == 0) {
+                admit(candidate);
+                continue;
+            }
+            Node mainVictim = main.peekVictim();
+            if (sketch.frequency(candidate.key) > sketch.frequency(mainVictim.key)) {
+                String victim = main.victim();
+                admit(candidate);
+                return victim;
+            }
+            return evict(candidate);
+        }
+        return main.victim();
+    }
+
+    private void admit(Node candidate) {
+        evict(candidate);
+        main.recordWrite(candidate.key, candidate.weight);
+    }
+}
@@ -0,0 +1,170 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the reference counts of a {@link ContentAddressedCache}, on an
+ * in-memory file system.
+ */
+public final class ContentAddressedCacheTest extends TestCase {
+    private static final String PAYLOAD = "the same download, twice over";
+    /** Value 1 of a content entry holds its reference count. */
+    private static final int REFERENCE = 1;
+    private static final long RELEASE_TIMEOUT_MILLIS = 5000;
+
+    private final File cacheDir = new File("/cache");
+    private FaultyFileSystem fileSystem;
+    private ContentAddressedCache cache;
+    private String contentKey;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        fileSystem = new FaultyFileSystem();
+        cache = open();
+        contentKey = md5(PAYLOAD);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        cache.close();
+        super.tearDown();
+    }
+
+    public void testIdenticalPayloadsAreStoredOnce() throws Exception {
+        set("k0", PAYLOAD);
+        set("k1", PAYLOAD);
+        set("k2", PAYLOAD);
+        assertReferences(3);
+        assertPayload("k0", PAYLOAD);
+        assertPayload("k2", PAYLOAD);
+        // one payload plus three links of 32 bytes
+        assertEquals(PAYLOAD.length() + 1 + 3 * 32, cache.getCache().size());
+    }
+
+    public void testRemovingLinksLowersReferenceCount() throws Exception {
+        set("k0", PAYLOAD);
+        set("k1", PAYLOAD);
+        set("k2", PAYLOAD);
+
+        cache.getCache().remove("k0");
+        awaitReferences(2);
+        assertPayload("k1", PAYLOAD);
+
+        cache.getCache().remove("k1");
+        awaitReferences(1);
+        cache.getCache().remove("k2");
+        awaitReferences(0);
+        assertNull(cache.get("k2"));
+    }
+
+    public void testLinksWrittenBeforeOpenAreReleased() throws Exception {
+        set("k0", PAYLOAD);
+        set("k1", PAYLOAD);
+        set("other", "a different payload");
+        cache.close();
+
+        cache = open();
+        assertReferences(2);
+        cache.getCache().remove("k0");
+        awaitReferences(1);
+        cache.getCache().remove("k1");
+        awaitReferences(0);
+        assertPayload("other", "a different payload");
+    }
+
+    public void testLinkToEvictedContentIsAMiss() throws Exception {
+        set("k0", PAYLOAD);
+        cache.getCache().remove(contentKey);
+        assertNull(cache.get("k0"));
+        assertNull(cache.getCache().get("k0"));
+    }
+
+    public void testFailedCopyDoesNotLockContentEntry() throws Exception {
+        // fail each read made while the payload is moved, until the commit succeeds
+        int reads = 0;
+        for (; ; reads++) {
+            cache.close();
+            fileSystem = new FaultyFileSystem();
+            cache = open();
+            set("k0", PAYLOAD);
+
+            fileSystem.failValueReadAfter(reads);
+            try {
+                set("k1", PAYLOAD);
+            } catch (IOException expected) {
+            }
+            fileSystem.failValueReadAfter(-1);
+
+            DiskLruCache.Editor editor = cache.getCache().edit(contentKey);
+            assertNotNull("content entry left locked after read " + reads, editor);
+            editor.abort();
+            if (cache.get("k1") != null && references() == 2) {
+                break;
+            }
+            assertTrue("too many reads", reads < 20);
+        }
+        assertTrue("no read failed", reads > 0);
+    }
+
+    private ContentAddressedCache open() throws IOException {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.fileSystem = fileSystem;
+        return ContentAddressedCache.open(cacheDir, 1, Integer.MAX_VALUE, options, true);
+    }
+
+    private void set(String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        assertNotNull(key + " is being edited", editor);
+        editor.set(ContentAddressedCache.PAYLOAD, value);
+        cache.commit(key, editor);
+    }
+
+    private void assertPayload(String key, String value) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(key, snapshot);
+        try {
+            assertEquals(value, snapshot.getString(ContentAddressedCache.PAYLOAD));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /** Returns the reference count of the content entry, or 0 if it is gone. */
+    private long references() throws IOException {
+        DiskLruCache.Snapshot content = cache.getCache().get(contentKey);
+        if (content == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(content.getString(REFERENCE));
+        } finally {
+            content.close();
+        }
+    }
+
+    private void assertReferences(long expected) throws IOException {
+        assertEquals(expected, references());
+    }
+
+    /** Waits for the removals, which are reported on another thread, to be released. */
+    private void awaitReferences(long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + RELEASE_TIMEOUT_MILLIS;
+        while (references() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertReferences(expected);
+    }
+
+    private static String md5(String s) throws Exception {
+        byte[] md5 = MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+        StringBuilder result = new StringBuilder();
+        for (byte b : md5) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,162 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how a {@link DiskLruCache} recovers from a journal that was cut
+ * short or could not be written, on an in-memory file system.
+ */
+public final class DiskLruCacheJournalTest extends TestCase {
+    private final File cacheDir = new File("/cache");
+    private final File journalFile = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+    private FaultyFileSystem fileSystem;
+    private DiskLruCache cache;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        fileSystem = new FaultyFileSystem();
+        cache = open();
+    }
+
+    @Override protected void tearDown() throws Exception {
+        fileSystem.setFailJournalWrites(false);
+        cache.close();
+        super.tearDown();
+    }
+
+    public void testTruncatedRecordIsDropped() throws Exception {
+        set("a", "aaa");
+        set("b", "bb");
+        cache.flush();
+        long length = fileSystem.size(journalFile);
+        set("c", "c");
+        cache.close();
+
+        fileSystem.truncate(journalFile, fileSystem.size(journalFile) - 1);
+        assertTrue(fileSystem.size(journalFile) > length);
+        cache = open();
+        assertValue("a", "aaa");
+        assertValue("b", "bb");
+        assertAbsent("c");
+        assertEquals(5, cache.size());
+    }
+
+    public void testCacheIsUsableAfterTruncatedJournal() throws Exception {
+        set("a", "aaa");
+        set("b", "bb");
+        cache.close();
+
+        fileSystem.truncate(journalFile, fileSystem.size(journalFile) - 1);
+        cache = open();
+        set("c", "cccc");
+        cache.remove("a");
+        cache.close();
+
+        cache = open();
+        assertAbsent("a");
+        assertAbsent("b");
+        assertValue("c", "cccc");
+        assertEquals(4, cache.size());
+    }
+
+    public void testJournalTruncatedInItsHeaderStartsOver() throws Exception {
+        set("a", "aaa");
+        cache.close();
+
+        fileSystem.truncate(journalFile, 3);
+        cache = open();
+        assertAbsent("a");
+        assertEquals(0, cache.size());
+        set("b", "bb");
+        cache.close();
+
+        cache = open();
+        assertValue("b", "bb");
+    }
+
+    public void testEditsAfterFailedJournalWriteAreRecovered() throws Exception {
+        set("a", "aaa");
+        cache.flush();
+
+        fileSystem.setFailJournalWrites(true);
+        int failures = 0;
+        for (int i = 0; i < 3; i++) {
+            try {
+                set("b" + i, "b");
+            } catch (IOException expected) {
+                failures++;
+            }
+        }
+        assertTrue(failures > 0);
+        fileSystem.setFailJournalWrites(false);
+
+        // the records that failed are written again, so the keys can be edited
+        for (int i = 0; i < 3; i++) {
+            set("b" + i, "bbb");
+        }
+        set("c", "cc");
+        cache.close();
+
+        cache = open();
+        assertValue("a", "aaa");
+        for (int i = 0; i < 3; i++) {
+            assertValue("b" + i, "bbb");
+        }
+        assertValue("c", "cc");
+    }
+
+    public void testCloseReportsJournalWriteFailure() throws Exception {
+        set("a", "aaa");
+        cache.flush();
+
+        fileSystem.setFailJournalWrites(true);
+        try {
+            set("b", "bb");
+        } catch (IOException ignored) {
+            // reported by commit() or by close()
+        }
+        try {
+            cache.close();
+            fail();
+        } catch (IOException expected) {
+        }
+        fileSystem.setFailJournalWrites(false);
+
+        cache = open();
+        assertValue("a", "aaa");
+    }
+
+    private DiskLruCache open() throws IOException {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.fileSystem = fileSystem;
+        return DiskLruCache.open(cacheDir, 1, 1, Integer.MAX_VALUE, options);
+    }
+
+    private void set(String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        assertNotNull(key + " is being edited", editor);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private void assertValue(String key, String value) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(key, snapshot);
+        try {
+            assertEquals(value, snapshot.getString(0));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private void assertAbsent(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot != null) {
+            snapshot.close();
+            fail(key + " is present");
+        }
+    }
+}
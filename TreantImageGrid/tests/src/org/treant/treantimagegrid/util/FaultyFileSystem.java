@@ -0,0 +1,144 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link InMemoryFileSystem} that fails on request, for the tests of how
+ * the cache copes with I/O errors. A failing journal write writes half of
+ * its bytes before it throws, as a full device would; a failing value read
+ * throws on its first read.
+ */
+final class FaultyFileSystem implements CacheFileSystem {
+    private final InMemoryFileSystem delegate = new InMemoryFileSystem();
+
+    /** True while writes to the journal fail. */
+    private volatile boolean failJournalWrites;
+    /** Value files opened before the one whose reads fail, or -1 for none. Guarded by this. */
+    private int valueReadsBeforeFailure = -1;
+
+    void setFailJournalWrites(boolean failJournalWrites) {
+        this.failJournalWrites = failJournalWrites;
+    }
+
+    /** Makes the reads of the value file opened after the next {@code count} fail. */
+    synchronized void failValueReadAfter(int count) {
+        valueReadsBeforeFailure = count;
+    }
+
+    private synchronized boolean takeValueReadFailure() {
+        return valueReadsBeforeFailure >= 0 && valueReadsBeforeFailure-- == 0;
+    }
+
+    private static boolean isJournal(File file) {
+        return file.getName().equals(DiskLruCache.JOURNAL_FILE)
+                || file.getName().equals(DiskLruCache.JOURNAL_FILE_TMP);
+    }
+
+    @Override public InputStream open(File file) throws FileNotFoundException {
+        InputStream in = delegate.open(file);
+        if (file.getName().startsWith(DiskLruCache.JOURNAL_FILE) || !takeValueReadFailure()) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override public int read() throws IOException {
+                throw new IOException("injected read failure");
+            }
+
+            @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+                throw new IOException("injected read failure");
+            }
+        };
+    }
+
+    @Override public OutputStream create(File file) throws FileNotFoundException {
+        OutputStream out = delegate.create(file);
+        return isJournal(file) ? new JournalOutputStream(out) : out;
+    }
+
+    @Override public OutputStream append(File file) throws FileNotFoundException {
+        OutputStream out = delegate.append(file);
+        return isJournal(file) ? new JournalOutputStream(out) : out;
+    }
+
+    @Override public boolean rename(File from, File to) {
+        return delegate.rename(from, to);
+    }
+
+    @Override public boolean delete(File file) {
+        return delegate.delete(file);
+    }
+
+    @Override public boolean exists(File file) {
+        return delegate.exists(file);
+    }
+
+    @Override public void truncate(File file, long length) throws IOException {
+        delegate.truncate(file, length);
+    }
+
+    @Override public void truncate(OutputStream out, long length) throws IOException {
+        if (out instanceof JournalOutputStream) {
+            out = ((JournalOutputStream) out).out;
+        }
+        delegate.truncate(out, length);
+    }
+
+    @Override public void sync(File file) throws IOException {
+        delegate.sync(file);
+    }
+
+    @Override public void sync(OutputStream out) throws IOException {
+        if (out instanceof JournalOutputStream) {
+            out = ((JournalOutputStream) out).out;
+        }
+        delegate.sync(out);
+    }
+
+    @Override public long size(File file) {
+        return delegate.size(file);
+    }
+
+    @Override public File[] list(File directory) {
+        return delegate.list(directory);
+    }
+
+    @Override public void mkdirs(File directory) throws IOException {
+        delegate.mkdirs(directory);
+    }
+
+    private final class JournalOutputStream extends OutputStream {
+        final OutputStream out;
+
+        JournalOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override public void write(int oneByte) throws IOException {
+            if (failJournalWrites) {
+                throw new IOException("injected write failure");
+            }
+            out.write(oneByte);
+        }
+
+        @Override public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (failJournalWrites) {
+                out.write(buffer, offset, count / 2);
+                throw new IOException("injected write failure");
+            }
+            out.write(buffer, offset, count);
+        }
+
+        @Override public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override public void close() throws IOException {
+            out.close();
+        }
+    }
+}
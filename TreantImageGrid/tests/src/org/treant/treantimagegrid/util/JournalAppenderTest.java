@@ -0,0 +1,138 @@
+package org.treant.treantimagegrid.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how a {@link JournalAppender} writes records and copes with writes
+ * that fail, on an in-memory file system.
+ */
+public final class JournalAppenderTest extends TestCase {
+    private final File journalFile = new File("/cache/journal");
+    private FaultyFileSystem fileSystem;
+    private JournalAppender appender;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        fileSystem = new FaultyFileSystem();
+        fileSystem.mkdirs(journalFile.getParentFile());
+    }
+
+    @Override protected void tearDown() throws Exception {
+        fileSystem.setFailJournalWrites(false);
+        if (appender != null) {
+            try {
+                appender.close();
+            } catch (IOException ignored) {
+                // a test may leave records that could not be written
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testRecordsAreWrittenInOrder() throws Exception {
+        appender = newAppender(true);
+        appender.append(DiskLruJournal.OP_CLEAN, "a", new long[] { 1 });
+        appender.append(DiskLruJournal.OP_READ, "a", null);
+        appender.append(DiskLruJournal.OP_REMOVE, "a", null);
+        appender.flush();
+        assertJournal("CLEAN a", "READ a", "REMOVE a");
+    }
+
+    public void testFailedWriteIsRetried() throws Exception {
+        appender = newAppender(true);
+        appender.awaitFlushed(appender.append(DiskLruJournal.OP_CLEAN, "a", new long[] { 1 }));
+
+        fileSystem.setFailJournalWrites(true);
+        long failed = appender.append(DiskLruJournal.OP_CLEAN, "b", new long[] { 2 });
+        try {
+            appender.awaitFlushed(failed);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        fileSystem.setFailJournalWrites(false);
+        appender.awaitFlushed(appender.append(DiskLruJournal.OP_REMOVE, "a", null));
+        assertJournal("CLEAN a", "CLEAN b", "REMOVE a");
+    }
+
+    public void testFailedWriteIsDroppedWhenItCannotBeRetried() throws Exception {
+        appender = newAppender(false);
+        appender.awaitFlushed(appender.append(DiskLruJournal.OP_CLEAN, "a", new long[] { 1 }));
+
+        fileSystem.setFailJournalWrites(true);
+        long failed = appender.append(DiskLruJournal.OP_CLEAN, "b", new long[] { 2 });
+        try {
+            appender.awaitFlushed(failed);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        fileSystem.setFailJournalWrites(false);
+        appender.awaitFlushed(appender.append(DiskLruJournal.OP_REMOVE, "a", null));
+        try {
+            appender.awaitFlushed(failed);
+            fail("a dropped record must stay failed");
+        } catch (IOException expected) {
+        }
+        assertJournal("CLEAN a", "REMOVE a");
+    }
+
+    public void testCloseReportsRecordsThatCouldNotBeWritten() throws Exception {
+        appender = newAppender(true);
+        fileSystem.setFailJournalWrites(true);
+        appender.append(DiskLruJournal.OP_CLEAN, "a", new long[] { 1 });
+        try {
+            appender.close();
+            fail();
+        } catch (IOException expected) {
+        }
+        appender = null;
+    }
+
+    /**
+     * Returns an appender that writes every record right away and repairs
+     * the journal after a failed write, retrying the write if {@code retry}.
+     */
+    private JournalAppender newAppender(final boolean retry) throws IOException {
+        OutputStream out = fileSystem.append(journalFile);
+        return new JournalAppender(out, 0, 1, 0, null, 0, new JournalAppender.Repair() {
+            @Override public boolean repair(OutputStream journal, long length)
+                    throws IOException {
+                fileSystem.truncate(journal, length);
+                return retry;
+            }
+        }, "JournalAppenderTest");
+    }
+
+    /** Asserts that the journal holds {@code expected} and no partial record. */
+    private void assertJournal(String... expected) throws IOException {
+        DiskLruJournal.Reader reader = new DiskLruJournal.Reader(
+                DiskLruJournal.readFile(fileSystem, journalFile), 1);
+        List<String> records = new ArrayList<String>();
+        while (reader.next()) {
+            records.add(opName(reader.op) + " " + reader.key);
+        }
+        assertEquals(Arrays.asList(expected), records);
+        assertFalse(reader.truncated);
+    }
+
+    private static String opName(int op) {
+        switch (op) {
+            case DiskLruJournal.OP_CLEAN:
+                return "CLEAN";
+            case DiskLruJournal.OP_READ:
+                return "READ";
+            case DiskLruJournal.OP_REMOVE:
+                return "REMOVE";
+            default:
+                return Integer.toString(op);
+        }
+    }
+}